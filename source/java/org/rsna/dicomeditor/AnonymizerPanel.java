@@ -9,17 +9,27 @@ package org.rsna.dicomeditor;
 
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.*;
+import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.*;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmEncodeParam;
+import org.dcm4che.data.DcmObjectFactory;
+import org.dcm4che.data.DcmParser;
+import org.dcm4che.data.DcmParserFactory;
+import org.dcm4che.data.FileFormat;
+import org.dcm4che.dict.Tags;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerContext;
 import org.rsna.ui.ApplicationProperties;
+import org.rsna.ui.FileEvent;
+import org.rsna.ui.FileListener;
 import org.rsna.ui.PropertyEvent;
 import org.rsna.ui.PropertyListener;
 import org.rsna.util.FileUtil;
-import org.rsna.util.XmlUtil;
-import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
-import org.w3c.dom.*;
 
 /**
  * A JPanel that provides a user interface for editing the scripts of
@@ -33,17 +43,45 @@ import org.w3c.dom.*;
  * elements in sequence and because elements that are not enabled
  * are not present in the hashtable.
  * <p>
+ * The rules are displayed in a JTable, so only the visible rows are
+ * rendered, no matter how many elements the script contains. The rows
+ * can be filtered by searching for text in the tag, name or script of
+ * each element, using a ScriptIndex built when the script is loaded.
+ * <p>
+ * When the preview is enabled, the script as currently edited (saved
+ * or not) is applied in memory to the file selected in the Directory
+ * tab, and the resulting changes to the header are displayed. The
+ * preview is refreshed as the rules are edited; the script is compiled
+ * once for each set of edits, not for each file, and the header of the
+ * selected file is parsed once, up to the pixel data, not for each edit.
+ * <p>
  * See the <a href="http://mirc.rsna.org/mircdocumentation">
  * MIRC documentation</a> for more more information.
  */
-public class AnonymizerPanel extends JPanel implements ActionListener {
+public class AnonymizerPanel extends JPanel implements ActionListener, FileListener {
+
+	static final Logger logger = Logger.getLogger(AnonymizerPanel.class);
 
 	private JScrollPane configSP;
-	private ConfiguratorPanel configuratorPanel;
+	private ScriptTableModel model;
+	private JTable table;
 	private FooterPanel footerPanel;
+	private JSplitPane splitPane;
+	private JPanel previewPanel;
+	private JLabel previewStatus;
+	private DiffTable previewTable;
+	private javax.swing.Timer previewTimer;
+	private CompiledScript compiledScript = null;
+	private File currentSelection = null;
+	private volatile int generation = 0;
+	private Dataset header = null;
+	private File headerFile = null;
+	private long headerModified = 0;
+	private Properties lookupTable = null;
+	private File lookupFile = null;
+	private long lookupModified = 0;
 	File scriptFile;
 	Color background;
-	boolean showAll = true;
 
 	/**
 	 * Class constructor.
@@ -56,344 +94,413 @@ public class AnonymizerPanel extends JPanel implements ActionListener {
 		background = config.background;
 		setBackground(background);
 
-		configuratorPanel = new ConfiguratorPanel();
+		model = new ScriptTableModel();
+		table = new ScriptTable(model);
 		configSP = new JScrollPane();
-		configSP.setViewportView(configuratorPanel);
+		configSP.setViewportView(table);
 		configSP.getVerticalScrollBar().setUnitIncrement(25);
 		configSP.getHorizontalScrollBar().setUnitIncrement(15);
+		configSP.getViewport().setBackground(background);
 		footerPanel = new FooterPanel();
-		footerPanel.showItems.addActionListener(this);
+		footerPanel.filter.addActionListener(this);
+		footerPanel.search.getDocument().addDocumentListener(new SearchListener());
 		footerPanel.uncheck.addActionListener(this);
 		footerPanel.save.addActionListener(this);
 		footerPanel.reset.addActionListener(this);
+		footerPanel.preview.addActionListener(this);
 		this.add(footerPanel,BorderLayout.SOUTH);
 		this.add(configSP,BorderLayout.CENTER);
+
+		previewStatus = new JLabel(" ");
+		previewTable = new DiffTable();
+		JScrollPane previewSP = new JScrollPane(previewTable);
+		previewSP.getVerticalScrollBar().setUnitIncrement(25);
+		previewPanel = new JPanel(new BorderLayout());
+		previewPanel.setBackground(background);
+		previewPanel.add(previewStatus, BorderLayout.NORTH);
+		previewPanel.add(previewSP, BorderLayout.CENTER);
+		splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT);
+		splitPane.setResizeWeight(0.6);
+		splitPane.setContinuousLayout(true);
+
+		//Refresh the preview shortly after the last edit.
+		previewTimer = new javax.swing.Timer(250, new ActionListener() {
+			public void actionPerformed(ActionEvent event) { preview(); }
+		});
+		previewTimer.setRepeats(false);
+		model.addTableModelListener(new TableModelListener() {
+			public void tableChanged(TableModelEvent event) {
+				if (event.getType() == TableModelEvent.UPDATE) {
+					//Filtering fires a full update; only cell updates are edits.
+					if (event.getFirstRow() != TableModelEvent.HEADER_ROW
+							&& event.getFirstRow() == event.getLastRow()) {
+						scriptChanged();
+					}
+				}
+			}
+		});
    }
 
 	/**
-	 * Implementation of the ActionListener for the Save Changes button.
-	 * @param event the event.
+	 * The FileListener implementation; tracks the current selection
+	 * and refreshes the preview if it is displayed.
+	 * @param event the event containing the current file selection.
 	 */
-    public void actionPerformed(ActionEvent event) {
-		if (event.getSource().equals(footerPanel.save)) {
-			configuratorPanel.save();
-		}
-		else if (event.getSource().equals(footerPanel.reset)) {
-			configuratorPanel = new ConfiguratorPanel();
-			configSP.setViewportView(configuratorPanel);
-		}
-		else if (event.getSource().equals(footerPanel.uncheck)) {
-			configuratorPanel.uncheckAll();
-		}
-		else if (event.getSource().equals(footerPanel.showItems)) {
-			showAll = !showAll;
-			configuratorPanel.showItems(showAll);
+	public void fileEventOccurred(FileEvent event) {
+		if (event.isSELECT()) {
+			currentSelection = event.getFile();
+			if (footerPanel.preview.isSelected()) preview();
 		}
 	}
 
-	// JPanel to display the editable fields for the anonymizer scripts
-	class ConfiguratorPanel extends JPanel {
-		public ConfiguratorPanel() {
-			super();
-			setBackground(background);
-			setLayout(new BoxLayout(this,BoxLayout.Y_AXIS));
-			DAScript script = DAScript.getInstance( scriptFile );
-			Document doc = script.toXML();
-			Element root = doc.getDocumentElement();
-			Node child = root.getFirstChild();
-			while (child != null) {
-				if (child instanceof Element) {
-					Element el = (Element)child;
-					String tag = el.getTagName();
-					if (tag.equals("p"))
-						this.add(new ParamProp(el));
-					else if (tag.equals("e") )
-						this.add(new SetProp(el));
-					else if (tag.equals("r"))
-						this.add(new RemoveProp(el));
-					else if (tag.equals("k"))
-						this.add(new KeepProp(el));
-				}
-				child = child.getNextSibling();
-			}
-		}
-		public void showItems(boolean all) {
-			Component[] components = getComponents();
-			for (int i=0; i<components.length; i++) {
-				if (components[i] instanceof Prop) {
-					boolean checked = ((Prop)components[i]).isChecked();
-					((Prop)components[i]).makeVisible(checked || all);
-				}
-			}
-		}
-		public void uncheckAll() {
-			Component[] components = getComponents();
-			for (int i=0; i<components.length; i++) {
-				if (components[i] instanceof Prop) {
-					((Prop)components[i]).uncheck();
-				}
+	// Show or hide the preview
+	private void showPreview(boolean show) {
+		if (show) {
+			remove(configSP);
+			splitPane.setTopComponent(configSP);
+			splitPane.setBottomComponent(previewPanel);
+			add(splitPane, BorderLayout.CENTER);
+			preview();
+		}
+		else {
+			remove(splitPane);
+			add(configSP, BorderLayout.CENTER);
+		}
+		revalidate();
+		repaint();
+	}
+
+	// Note that the script has been edited
+	private void scriptChanged() {
+		compiledScript = null;
+		if (footerPanel.preview.isSelected()) previewTimer.restart();
+	}
+
+	// Apply the current script to the selected file in memory
+	// and display the changes to the header. The script is compiled
+	// here; the header is parsed and anonymized in a background thread,
+	// and the result is discarded if another preview has started since.
+	private void preview() {
+		if (!footerPanel.preview.isSelected()) return;
+		final int gen = ++generation;
+		final File file = currentSelection;
+		if ((file == null) || !file.isFile()) {
+			previewTable.setDifferences(null);
+			previewStatus.setText(" Select a DICOM file in the Directory tab to preview the script.");
+			return;
+		}
+		if (compiledScript == null) {
+			try { compiledScript = new CompiledScript(model.script); }
+			catch (RuntimeException ex) {
+				previewTable.setDifferences(null);
+				previewStatus.setText(" " + ex.getMessage());
+				return;
 			}
 		}
-		public void save() {
-			boolean ok = true;
-			try {
-				Component[] components = getComponents();
-				Document doc = XmlUtil.getDocument();
-				Element root = doc.createElement("script");
-				doc.appendChild(root);
-				for (int i=0; i<components.length; i++) {
-					if (components[i] instanceof Prop) {
-						((Prop)components[i]).appendPropTo(root);
+		final CompiledScript script = compiledScript;
+		Thread thread = new Thread() {
+			public void run() {
+				java.util.List<HeaderDiff.Difference> differences = null;
+				String text;
+				try {
+					long startTime = System.currentTimeMillis();
+					Dataset inDS = getHeader(file);
+					if (gen != generation) return;
+					Dataset outDS = DcmObjectFactory.getInstance().newDataset();
+					inDS.writeDataset(outDS.getDcmHandler(), DcmEncodeParam.EVR_LE);
+					outDS.setFileMetaInfo(inDS.getFileMetaInfo());
+					IntegerStore integers = Configuration.getInstance().getIntegerStore();
+					if (integers != null) integers = integers.getPreview();
+					DICOMAnonymizerContext context =
+						script.getContext(getLookupTable(), integers, inDS, outDS);
+					String result = "";
+					try {
+						String exceptions = DatasetAnonymizer.anonymize(script, context);
+						if (!exceptions.equals("")) result = " [unable to update " + exceptions + "]";
 					}
-				}
-				StringBuffer sb = new StringBuffer();
-				sb.append("<" + root.getTagName() + ">\n");
-				Node child = root.getFirstChild();
-				while (child != null) {
-					if (child instanceof Element) {
-						Element el = (Element)child;
-						String tag = el.getTagName();
-						String en = el.getAttribute("en");
-						String t = el.getAttribute("t");
-						String n = XmlUtil.escapeChars(el.getAttribute("n"));
-						String value = XmlUtil.escapeChars(el.getTextContent());
-						sb.append(" <"+tag);
-						if (!en.equals("")) sb.append(" en=\""+en+"\"");
-						sb.append(" t=\""+t+"\"");
-						if (!n.equals("")) sb.append(" n=\""+n+"\"");
-						sb.append(">"+value+"</"+tag+">\n");
+					catch (Exception ex) {
+						String msg = (ex.getMessage() != null) ? ex.getMessage() : ex.toString();
+						if (msg.contains("!skip!")) result = " [the file would be skipped]";
+						else result = " [the file would be quarantined]";
 					}
-					child = child.getNextSibling();
+					HeaderDiff diff = new HeaderDiff(inDS, outDS);
+					long time = System.currentTimeMillis() - startTime;
+					differences = diff.getDifferences();
+					text = " " + file.getName() + ": "
+							+ differences.size() + " changes (" + time + " ms)" + result;
+				}
+				catch (Exception ex) {
+					logger.debug("Unable to preview "+file, ex);
+					text = " " + file.getName() + " is not a DICOM file.";
 				}
-				sb.append("</" + root.getTagName() + ">\n");
-				ok = FileUtil.setText(scriptFile, sb.toString());
+				final java.util.List<HeaderDiff.Difference> list = differences;
+				final String status = text;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (gen != generation) return;
+						previewTable.setDifferences(list);
+						previewStatus.setText(status);
+					}
+				});
 			}
-			catch (Exception e) { ok = false; }
-			if (!ok) {
-				JOptionPane.showMessageDialog(this,
-					"An error has occurred while saving the changes to\n" +
-					"the anonymizer configuration. You should stop the\n" +
-					"program now and consult IT to ensure that anonymization\n" +
-					"has not been damaged in such a way as to allow PHI to\n" +
-					"be transmitted on the internet.",
-					"Error Saving the Anonymizer Configuration",
-					JOptionPane.ERROR_MESSAGE);
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Get the header of a file up to the pixel data, parsing it only
+	// if it is not the file that was parsed for the last preview or
+	// if it has changed since. The header is only read by the preview.
+	private synchronized Dataset getHeader(File file) throws Exception {
+		if (file.equals(headerFile) && (file.lastModified() == headerModified)) return header;
+		long lastModified = file.lastModified();
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			DcmParser parser = DcmParserFactory.getInstance().newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new IOException("Unrecognized file format");
+			Dataset ds = DcmObjectFactory.getInstance().newDataset();
+			parser.setDcmHandler(ds.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.PixelData);
+			if (ds.getString(Tags.SpecificCharacterSet) == null) {
+				ds.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
 			}
+			header = ds;
+			headerFile = file;
+			headerModified = lastModified;
+			return ds;
 		}
+		finally { FileUtil.close(in); }
 	}
 
-	// Interface to provide a call to get the text of a script
-	interface Prop {
-		public void appendPropTo(Element parent);
-		public void uncheck();
-		public boolean isChecked();
-		public void makeVisible(boolean vis);
+	// Get the lookup table, loading it only if the configured file
+	// has changed since the last preview.
+	private synchronized Properties getLookupTable() {
+		File file = new File(Configuration.getInstance().lookupTableFile);
+		if ((lookupTable == null) || !file.equals(lookupFile)
+				|| (file.lastModified() != lookupModified)) {
+			lookupModified = file.lastModified();
+			lookupTable = LookupStore.getProperties(file);
+			lookupFile = file;
+		}
+		return lookupTable;
 	}
 
-	// Prop to handle P elements
-	// <p t="PROFILENAME">CTP Clinical Trial Default</p>
-	class ParamProp extends JPanel implements Prop {
-		JLabel label;
-		JTextField value;
-		String t;
-		public ParamProp(Element prop) {
-			super();
-			setLayout(new FlowLayout(FlowLayout.LEFT));
-			setBackground(background);
-			t = prop.getAttribute("t").trim();
-			label = new PropLabel(t);
-			value = new PropTextField();
-			value.setText(prop.getTextContent().trim());
-			add(Box.createHorizontalStrut(39));
-			add(label);
-			add(value);
-			add(Box.createHorizontalGlue());
+	/**
+	 * Implementation of the ActionListener for the Save Changes button.
+	 * @param event the event.
+	 */
+    public void actionPerformed(ActionEvent event) {
+		if (table.isEditing()) table.getCellEditor().stopCellEditing();
+		if (event.getSource().equals(footerPanel.save)) {
+			save();
 		}
-		public void appendPropTo(Element parent) {
-			Element el = parent.getOwnerDocument().createElement("p");
-			el.setAttribute("t", t);
-			el.setTextContent(value.getText().trim());
-			parent.appendChild(el);
+		else if (event.getSource().equals(footerPanel.reset)) {
+			model.load();
+			scriptChanged();
 		}
-		public void uncheck() {
-			//do nothing
+		else if (event.getSource().equals(footerPanel.uncheck)) {
+			model.uncheckAll();
+			scriptChanged();
 		}
-		public boolean isChecked() {
-			return true;
+		else if (event.getSource().equals(footerPanel.preview)) {
+			showPreview(footerPanel.preview.isSelected());
 		}
-		public void makeVisible(boolean vis) {
-			this.setVisible(vis);
+		else if (event.getSource().equals(footerPanel.filter)) {
+			filter();
 		}
 	}
 
-	// Prop to handle E elements
-	// <e en="T" t="04000402" n="RefDigitalSignatureSeq">@remove()</e>
-	class SetProp extends JPanel implements Prop {
-		JCheckBox cb;
-		JLabel label;
-		JTextField value;
-		String t;
-		String n;
-		public SetProp(Element prop) {
-			super();
-			setLayout(new FlowLayout(FlowLayout.LEFT));
-			setBackground(background);
-			cb = new PropCheckBox();
-			cb.setSelected(prop.getAttribute("en").equals("T"));
-			t = prop.getAttribute("t").trim();
-			n = prop.getAttribute("n").trim();
-			label = new PropLabel("["+t.substring(0,4)+","+t.substring(4,8)+"] "+n);
-			value = new PropTextField();
-			value.setText(prop.getTextContent().trim());
-			add(Box.createHorizontalStrut(5));
-			add(cb);
-			add(Box.createHorizontalStrut(3));
-			add(label);
-			add(value);
-			add(Box.createHorizontalGlue());
-		}
-		public void appendPropTo(Element parent) {
-			Element el = parent.getOwnerDocument().createElement("e");
-			el.setAttribute("en", (cb.isSelected() ? "T" : "F"));
-			el.setAttribute("t", t);
-			el.setAttribute("n", n);
-			el.setTextContent(value.getText().trim());
-			parent.appendChild(el);
-		}
-		public void uncheck() {
-			cb.setSelected(false);
-		}
-		public boolean isChecked() {
-			return cb.isSelected();
-		}
-		public void makeVisible(boolean vis) {
-			this.setVisible(vis);
+	// Filter the rows using the search text and the quick filter
+	private void filter() {
+		model.filter(footerPanel.search.getText(), footerPanel.filter.getSelectedIndex());
+	}
+
+	// DocumentListener to filter the rows as the search text is typed
+	class SearchListener implements DocumentListener {
+		public void insertUpdate(DocumentEvent e) { filter(); }
+		public void removeUpdate(DocumentEvent e) { filter(); }
+		public void changedUpdate(DocumentEvent e) { filter(); }
+	}
+
+	// Save the script
+	private void save() {
+		boolean ok = true;
+		try { model.script.save(scriptFile, Configuration.scriptBackups); }
+		catch (Exception e) {
+			logger.warn("Unable to save "+scriptFile, e);
+			ok = false;
+		}
+		if (!ok) {
+			JOptionPane.showMessageDialog(this,
+				"An error has occurred while saving the changes to\n" +
+				"the anonymizer configuration. You should stop the\n" +
+				"program now and consult IT to ensure that anonymization\n" +
+				"has not been damaged in such a way as to allow PHI to\n" +
+				"be transmitted on the internet.",
+				"Error Saving the Anonymizer Configuration",
+				JOptionPane.ERROR_MESSAGE);
 		}
 	}
 
-	// Prop to handle R elements
-	// <r en="T" t="privategroups">Remove private groups</r>
-	class RemoveProp extends JPanel implements Prop {
-		JCheckBox cb;
-		JLabel label;
-		String t;
-		public RemoveProp(Element prop) {
+	// TableModel for the rules of the anonymizer script. The model
+	// holds all the rules; the view array holds the indexes of the
+	// rules that are currently displayed.
+	class ScriptTableModel extends AbstractTableModel {
+		final String[] columnNames = { "", "Element", "Script" };
+		AnonymizerScript script;
+		ScriptIndex index;
+		String searchText = "";
+		int quickFilter = ScriptIndex.ALL;
+		int[] view;
+
+		public ScriptTableModel() {
 			super();
-			setLayout(new FlowLayout(FlowLayout.LEFT));
-			setBackground(background);
-			cb = new PropCheckBox();
-			cb.setSelected(prop.getAttribute("en").equals("T"));
-			t = prop.getAttribute("t").trim();
-			String labelText = prop.getTextContent();
-			if (t.equals("privategroups")) labelText = "Remove private groups [recommended]";
-			else if (t.equals("unspecifiedelements")) labelText = "Remove unchecked elements";
-			else if (t.equals("overlays")) labelText = "Remove overlays (groups 60xx)";
-			label = new PropLabel(labelText);
-			add(Box.createHorizontalStrut(5));
-			add(cb);
-			add(Box.createHorizontalStrut(3));
-			add(label);
-			add(Box.createHorizontalGlue());
+			load();
+		}
+		public void load() {
+			script = AnonymizerScript.load(scriptFile);
+			for (AnonymizerScript.Rule rule : script.getRules()) {
+				if (rule.type == 'r') {
+					if (rule.t.equals("privategroups")) rule.value = "Remove private groups [recommended]";
+					else if (rule.t.equals("unspecifiedelements")) rule.value = "Remove unchecked elements";
+					else if (rule.t.equals("overlays")) rule.value = "Remove overlays (groups 60xx)";
+				}
+				else if (rule.type == 'k') {
+					if (rule.t.equals("group18")) rule.value = "Keep group 18 [recommended]";
+					else if (rule.t.equals("group20")) rule.value = "Keep group 20 [recommended]";
+					else if (rule.t.equals("group28")) rule.value = "Keep group 28 [recommended]";
+				}
+			}
+			index = new ScriptIndex(script);
+			filter(searchText, quickFilter);
 		}
-		public void appendPropTo(Element parent) {
-			Element el = parent.getOwnerDocument().createElement("r");
-			el.setAttribute("en", (cb.isSelected() ? "T" : "F"));
-			el.setAttribute("t", t);
-			el.setTextContent(label.getText());
-			parent.appendChild(el);
+		public void filter(String searchText, int quickFilter) {
+			this.searchText = searchText;
+			this.quickFilter = quickFilter;
+			view = index.search(searchText, quickFilter);
+			fireTableDataChanged();
 		}
-		public void uncheck() {
-			cb.setSelected(false);
+		public void uncheckAll() {
+			for (AnonymizerScript.Rule rule : script.getRules()) {
+				if (rule.isCheckable()) rule.enabled = false;
+			}
+			filter(searchText, quickFilter);
 		}
-		public boolean isChecked() {
-			return cb.isSelected();
+		public AnonymizerScript.Rule getRule(int row) {
+			return script.get(view[row]);
 		}
-		public void makeVisible(boolean vis) {
-			this.setVisible(vis);
+		public int getRowCount() {
+			return view.length;
 		}
-	}
-
-	// Prop to handle K elements
-	// <k en="F" t="0020">Keep group 0020</k>
-	class KeepProp extends JPanel implements Prop {
-		JCheckBox cb;
-		JLabel label;
-		String t;
-		public KeepProp(Element prop) {
-			super();
-			setLayout(new FlowLayout(FlowLayout.LEFT));
-			setBackground(background);
-			cb = new PropCheckBox();
-			cb.setSelected(prop.getAttribute("en").equals("T"));
-			t = prop.getAttribute("t").trim();
-			String labelText = prop.getTextContent().trim();
-			if (t.equals("group18")) labelText = "Keep group 18 [recommended]";
-			else if (t.equals("group20")) labelText = "Keep group 20 [recommended]";
-			else if (t.equals("group28")) labelText = "Keep group 28 [recommended]";
-			label = new PropLabel(labelText);
-			add(Box.createHorizontalStrut(5));
-			add(cb);
-			add(Box.createHorizontalStrut(3));
-			add(label);
-			add(Box.createHorizontalGlue());
+		public int getColumnCount() {
+			return columnNames.length;
 		}
-		public void appendPropTo(Element parent) {
-			Element el = parent.getOwnerDocument().createElement("k");
-			el.setAttribute("en", (cb.isSelected() ? "T" : "F"));
-			el.setAttribute("t", t);
-			el.setTextContent(label.getText());
-			parent.appendChild(el);
+		public String getColumnName(int col) {
+			return columnNames[col];
 		}
-		public void uncheck() {
-			cb.setSelected(false);
+		public Class<?> getColumnClass(int col) {
+			return (col == 0) ? Boolean.class : String.class;
 		}
-		public boolean isChecked() {
-			return cb.isSelected();
+		public boolean isCellEditable(int row, int col) {
+			AnonymizerScript.Rule rule = getRule(row);
+			if (col == 0) return rule.isCheckable();
+			if (col == 2) return rule.isEditable();
+			return false;
 		}
-		public void makeVisible(boolean vis) {
-			this.setVisible(vis);
+		public Object getValueAt(int row, int col) {
+			AnonymizerScript.Rule rule = getRule(row);
+			if (col == 0) return rule.isCheckable() ? Boolean.valueOf(rule.enabled) : null;
+			if (col == 1) return rule.getLabel();
+			return rule.isEditable() ? rule.value : "";
 		}
-	}
-
-	class PropLabel extends JLabel {
-		public PropLabel(String labelText) {
-			super(labelText);
-			setFont(new Font("Monospaced", Font.BOLD, 12));
-			Dimension d = getPreferredSize();
-			d.width = 350;
-			setPreferredSize(d);
-		};
-	}
-
-	class PropCheckBox extends JCheckBox {
-		public PropCheckBox() {
-			super();
-			setBackground(background);
+		public void setValueAt(Object value, int row, int col) {
+			AnonymizerScript.Rule rule = getRule(row);
+			if (col == 0) rule.enabled = ((Boolean)value).booleanValue();
+			else if (col == 2) {
+				rule.value = ((String)value).trim();
+				index.update(view[row]);
+			}
+			fireTableCellUpdated(row, col);
 		}
 	}
 
-	class PropTextField extends JTextField {
-		public PropTextField() {
-			super(100);
-			setFont(new Font("Monospaced", Font.BOLD, 12));
+	// JTable to display the editable fields for the anonymizer scripts
+	class ScriptTable extends JTable {
+		public ScriptTable(ScriptTableModel model) {
+			super(model);
+			Font font = new Font("Monospaced", Font.BOLD, 12);
+			setFont(font);
+			setRowHeight(getFontMetrics(font).getHeight() + 8);
+			setBackground(background);
+			setShowGrid(false);
+			setIntercellSpacing(new Dimension(0, 2));
+			setFillsViewportHeight(true);
+			setSurrendersFocusOnKeystroke(true);
+			getTableHeader().setReorderingAllowed(false);
+			setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
+			TableColumnModel tcm = getColumnModel();
+			tcm.getColumn(0).setMinWidth(30);
+			tcm.getColumn(0).setMaxWidth(30);
+			tcm.getColumn(1).setPreferredWidth(350);
+			tcm.getColumn(2).setPreferredWidth(700);
+			JTextField editor = new JTextField();
+			editor.setFont(font);
+			tcm.getColumn(2).setCellEditor(new DefaultCellEditor(editor));
+			final TableCellRenderer checkRenderer = getDefaultRenderer(Boolean.class);
+			setDefaultRenderer(Boolean.class, new TableCellRenderer() {
+				JLabel blank = new JLabel();
+				public Component getTableCellRendererComponent(
+						JTable table, Object value, boolean isSelected,
+						boolean hasFocus, int row, int col) {
+					if (value == null) return blank;
+					Component c = checkRenderer.getTableCellRendererComponent(
+									table, value, isSelected, hasFocus, row, col);
+					if (!isSelected) c.setBackground(background);
+					return c;
+				}
+			});
+			setDefaultRenderer(String.class, new DefaultTableCellRenderer() {
+				public Component getTableCellRendererComponent(
+						JTable table, Object value, boolean isSelected,
+						boolean hasFocus, int row, int col) {
+					super.getTableCellRendererComponent(
+									table, value, isSelected, hasFocus, row, col);
+					if (!isSelected) {
+						boolean field = (col == 2) && getModel().isCellEditable(row, col);
+						setBackground(field ? Color.white : background);
+					}
+					return this;
+				}
+			});
 		}
 	}
 
 	// Class to display a single property script
-	class FooterPanel extends JPanel implements ActionListener {
+	class FooterPanel extends JPanel {
 		public JButton save;
 		public JButton reset;
 		public JButton uncheck;
-		public JButton showItems;
-		public boolean showAll = true;
+		public JToggleButton preview;
+		public JTextField search;
+		public JComboBox<String> filter;
 		public FooterPanel() {
 			super();
 			setBorder(BorderFactory.createBevelBorder(BevelBorder.LOWERED));
 			setLayout(new FlowLayout());
 			setBackground(background);
-			showItems = new JButton("Show Checked Elements Only");
-			showItems.addActionListener(this);
-			add(showItems);
+			add(new JLabel("Search:"));
+			search = new JTextField(20);
+			search.setToolTipText("Tag, name or script text, e.g. 0010,0010 or @hashuid");
+			add(search);
+			add(Box.createHorizontalStrut(10));
+			filter = new JComboBox<String>(new String[] {
+							"All Elements",
+							"Checked Elements",
+							"Unchecked Elements",
+							"Private Groups" });
+			add(filter);
 			add(Box.createHorizontalStrut(20));
 			uncheck = new JButton("Uncheck All");
 			add(uncheck);
@@ -403,11 +510,10 @@ public class AnonymizerPanel extends JPanel implements ActionListener {
 			add(Box.createHorizontalStrut(20));
 			reset = new JButton("Reset");
 			add(reset);
-		}
-	    public void actionPerformed(ActionEvent event) {
-			showAll = !showAll;
-			if (showAll) showItems.setText("Show Checked Elements Only");
-			else showItems.setText("Show All Elements");
+			add(Box.createHorizontalStrut(20));
+			preview = new JToggleButton("Preview");
+			preview.setToolTipText("Apply the unsaved script to the selected file");
+			add(preview);
 		}
 	}
 
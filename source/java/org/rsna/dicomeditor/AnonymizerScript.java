@@ -0,0 +1,284 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
+import org.rsna.util.FileUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.*;
+
+/**
+ * The rules of a DICOM anonymizer script, in the order in which they
+ * appear in the script file. Each rule corresponds to one child of the
+ * root element of the XML script:
+ * <pre>
+ *     &lt;p t="PROFILENAME"&gt;CTP Clinical Trial Default&lt;/p&gt;
+ *     &lt;e en="T" t="04000402" n="RefDigitalSignatureSeq"&gt;@remove()&lt;/e&gt;
+ *     &lt;r en="T" t="privategroups"&gt;Remove private groups&lt;/r&gt;
+ *     &lt;k en="F" t="0020"&gt;Keep group 0020&lt;/k&gt;
+ * </pre>
+ */
+public class AnonymizerScript {
+
+	ArrayList<Rule> rules = new ArrayList<Rule>();
+
+	/**
+	 * Load a script file.
+	 * @param file the script file.
+	 * @return the script.
+	 */
+	public static AnonymizerScript load(File file) {
+		AnonymizerScript script = new AnonymizerScript();
+		Document doc = DAScript.getInstance( file ).toXML();
+		Element root = doc.getDocumentElement();
+		Node child = root.getFirstChild();
+		while (child != null) {
+			if (child instanceof Element) {
+				Element el = (Element)child;
+				String tag = el.getTagName();
+				if ((tag.length() == 1) && ("perk".indexOf(tag.charAt(0)) >= 0)) {
+					script.rules.add(
+						new Rule(
+							tag.charAt(0),
+							el.getAttribute("en").equals("T"),
+							el.getAttribute("t").trim(),
+							el.getAttribute("n").trim(),
+							el.getTextContent().trim()));
+				}
+			}
+			child = child.getNextSibling();
+		}
+		return script;
+	}
+
+	/**
+	 * Get the rules.
+	 * @return the list of rules, in script order.
+	 */
+	public List<Rule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Get the number of rules.
+	 * @return the number of rules.
+	 */
+	public int size() {
+		return rules.size();
+	}
+
+	/**
+	 * Get a rule.
+	 * @param i the index of the rule.
+	 * @return the rule.
+	 */
+	public Rule get(int i) {
+		return rules.get(i);
+	}
+
+	/**
+	 * Write the script in the XML form used by the anonymizer.
+	 * @param out the Writer.
+	 * @throws IOException if the script cannot be written.
+	 */
+	public void write(Writer out) throws IOException {
+		out.write("<script>\n");
+		for (Rule rule : rules) rule.write(out);
+		out.write("</script>\n");
+	}
+
+	/**
+	 * Save the script in a file, keeping the previous versions. The script
+	 * is streamed to a temporary file in the same directory, which is
+	 * synced to the disk and then atomically moved over the original,
+	 * so the original is never left partially written. If the file
+	 * already contains exactly the text of the script, nothing is written.
+	 * @param file the script file.
+	 * @param backups the number of previous versions to keep, named
+	 * file.1 (the most recent) through file.backups.
+	 * @return true if the file was written; false if it was unchanged.
+	 * @throws IOException if the script cannot be saved. In that case
+	 * the original file is unchanged.
+	 */
+	public boolean save(File file, int backups) throws IOException {
+		file = file.getAbsoluteFile();
+		byte[] hash = digest();
+		if (file.exists() && MessageDigest.isEqual(hash, digest(file))) return false;
+
+		File dir = file.getParentFile();
+		File temp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(temp);
+			Writer out = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+			write(out);
+			out.flush();
+			fos.getFD().sync();
+			out.close();
+			fos = null;
+
+			if (file.exists() && (backups > 0)) backup(file, backups);
+			try {
+				Files.move(temp.toPath(), file.toPath(),
+						   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			syncDirectory(dir);
+			return true;
+		}
+		finally {
+			FileUtil.close(fos);
+			temp.delete();
+		}
+	}
+
+	//Rotate the backups and link the current file as the most recent one.
+	private static void backup(File file, int backups) throws IOException {
+		String name = file.getName();
+		File dir = file.getParentFile();
+		new File(dir, name + "." + backups).delete();
+		for (int i=backups-1; i>0; i--) {
+			File f = new File(dir, name + "." + i);
+			if (f.exists()) f.renameTo(new File(dir, name + "." + (i+1)));
+		}
+		Path latest = new File(dir, name + ".1").toPath();
+		try { Files.createLink(latest, file.toPath()); }
+		catch (Exception linksNotSupported) {
+			Files.copy(file.toPath(), latest, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	//Make the rename durable; not all platforms allow a directory to be opened.
+	private static void syncDirectory(File dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try { channel.force(true); }
+			finally { channel.close(); }
+		}
+		catch (Exception ignore) { }
+	}
+
+	//Get the SHA-256 digest of the script text without storing it.
+	private byte[] digest() throws IOException {
+		MessageDigest md = getDigest();
+		OutputStream nowhere = new OutputStream() {
+			public void write(int b) { }
+			public void write(byte[] b, int off, int len) { }
+		};
+		Writer out = new BufferedWriter(
+						new OutputStreamWriter(new DigestOutputStream(nowhere, md), "UTF-8"));
+		write(out);
+		out.close();
+		return md.digest();
+	}
+
+	//Get the SHA-256 digest of a file.
+	private static byte[] digest(File file) throws IOException {
+		MessageDigest md = getDigest();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) md.update(buffer, 0, n);
+			return md.digest();
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	private static MessageDigest getDigest() throws IOException {
+		try { return MessageDigest.getInstance("SHA-256"); }
+		catch (Exception ex) { throw new IOException("SHA-256 is not available", ex); }
+	}
+
+	/**
+	 * Get the XML text of the script.
+	 * @return the text of the script.
+	 */
+	public String toString() {
+		StringWriter sw = new StringWriter();
+		try { write(sw); }
+		catch (IOException cannotHappen) { }
+		return sw.toString();
+	}
+
+	/**
+	 * One rule of the script. The type is one of:
+	 * <ul>
+	 * <li>p: a parameter; t is the name of the parameter
+	 * <li>e: an element script; t is the tag, n is the name
+	 * <li>r: a remove rule; t is the type of element to remove
+	 * <li>k: a keep rule; t is the group to keep
+	 * </ul>
+	 * Parameters are always enabled.
+	 */
+	public static class Rule {
+		public final char type;
+		public boolean enabled;
+		public final String t;
+		public final String n;
+		public String value;
+
+		public Rule(char type, boolean enabled, String t, String n, String value) {
+			this.type = type;
+			this.enabled = (type == 'p') || enabled;
+			this.t = t;
+			this.n = n;
+			this.value = value;
+		}
+
+		/**
+		 * Determine whether the rule can be disabled.
+		 * @return true for e, r and k rules; false for parameters.
+		 */
+		public boolean isCheckable() {
+			return (type != 'p');
+		}
+
+		/**
+		 * Determine whether the value of the rule is editable.
+		 * @return true for e and p rules; false for r and k rules.
+		 */
+		public boolean isEditable() {
+			return (type == 'e') || (type == 'p');
+		}
+
+		/**
+		 * Get the label of the rule, as displayed in the script editor.
+		 * @return the label.
+		 */
+		public String getLabel() {
+			if (type == 'e') {
+				if (t.length() == 8) return "["+t.substring(0,4)+","+t.substring(4,8)+"] "+n;
+				return "["+t+"] "+n;
+			}
+			if (type == 'p') return t;
+			return value;
+		}
+
+		void write(Writer out) throws IOException {
+			out.write(" <");
+			out.write(type);
+			if (type != 'p') out.write(" en=\"" + (enabled ? "T" : "F") + "\"");
+			out.write(" t=\"" + t + "\"");
+			if (!n.equals("")) out.write(" n=\"" + XmlUtil.escapeChars(n) + "\"");
+			out.write(">" + XmlUtil.escapeChars(value.trim()) + "</");
+			out.write(type);
+			out.write(">\n");
+		}
+	}
+
+}
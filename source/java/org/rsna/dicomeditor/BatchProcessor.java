@@ -0,0 +1,365 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Processes a batch of files with a pool of worker threads. Each file
+ * is processed by a Task; the results are passed to a Listener in the
+ * order of the files in the batch, no matter the order in which the
+ * workers finish them, and a Summary of the batch is returned when all
+ * the files have been processed.
+ * <p>
+ * If the BatchProcessor has reader threads and the Task is a PrefetchTask,
+ * the files are read into memory by the readers and handed to the workers,
+ * so the reads of the input and the writes of the output are done by
+ * separate pools. When the input and output are on different devices,
+ * both are kept busy. The amount of memory held by files that have been
+ * read but not yet processed is limited; larger files are not read ahead.
+ */
+public class BatchProcessor {
+
+	static final Logger logger = Logger.getLogger(BatchProcessor.class);
+
+	int threads;
+	int readers;
+	long prefetchLimit;
+
+	/**
+	 * Create a BatchProcessor with no reader threads.
+	 * @param threads the number of worker threads.
+	 */
+	public BatchProcessor(int threads) {
+		this(threads, 0, 0);
+	}
+
+	/**
+	 * Create a BatchProcessor.
+	 * @param threads the number of worker threads.
+	 * @param readers the number of reader threads, or zero if the
+	 * workers are to read the files themselves.
+	 * @param prefetchLimit the maximum number of bytes of files read
+	 * ahead by the readers and not yet processed by the workers.
+	 */
+	public BatchProcessor(int threads, int readers, long prefetchLimit) {
+		this.threads = Math.max(1, threads);
+		this.readers = Math.max(0, readers);
+		this.prefetchLimit = Math.max(0, Math.min(prefetchLimit, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Process a batch of files. This method blocks until all the files
+	 * have been processed.
+	 * @param files the files to process.
+	 * @param task the operation to perform on each file.
+	 * @param listener the listener for the results, or null.
+	 * @return the summary of the batch.
+	 */
+	public Summary run(List<File> files, final Task task, Listener listener) {
+		long startTime = System.currentTimeMillis();
+		final Summary summary = new Summary(threads);
+		final Emitter emitter = new Emitter(files.size(), summary, listener);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+		if ((readers > 0) && (prefetchLimit > 0) && (task instanceof PrefetchTask)) {
+			int prefetched = prefetch(files, (PrefetchTask)task, pool, emitter);
+			summary.addStatistic("Readers", readers + " thread" + ((readers != 1) ? "s" : "")
+											+ "; " + prefetched + " files read ahead");
+			summary.elapsed = System.currentTimeMillis() - startTime;
+			if (task instanceof Reporter) ((Reporter)task).addStatistics(summary);
+			return summary;
+		}
+		int index = 0;
+		for (final File file : files) {
+			final int i = index++;
+			pool.execute(new Runnable() {
+				public void run() {
+					Result result;
+					try { result = task.process(file); }
+					catch (Throwable t) {
+						logger.warn("Unable to process "+file, t);
+						result = Result.failed(file, t.toString());
+					}
+					emitter.emit(i, result);
+				}
+			});
+		}
+		pool.shutdown();
+		try { pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); }
+		catch (InterruptedException ex) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		summary.elapsed = System.currentTimeMillis() - startTime;
+		if (task instanceof Reporter) ((Reporter)task).addStatistics(summary);
+		return summary;
+	}
+
+	//Read the files with the reader pool and pass their contents to the
+	//worker pool, blocking the readers while the limit on the memory held
+	//by files waiting to be processed is reached. Files too large to be
+	//read ahead, or that cannot be read, are passed with no contents, so
+	//the task reads them itself. Returns the number of files read ahead.
+	private int prefetch(List<File> files, final PrefetchTask task,
+						 final ExecutorService pool, final Emitter emitter) {
+		final long maxLength = prefetchLimit / 4;
+		final int limit = (int)Math.max(1, prefetchLimit / 1024);
+		final Semaphore budget = new Semaphore(limit);
+		final AtomicInteger prefetched = new AtomicInteger();
+		ExecutorService readerPool =
+				Executors.newFixedThreadPool(Math.min(readers, Math.max(1, files.size())));
+		int index = 0;
+		for (final File file : files) {
+			final int i = index++;
+			readerPool.execute(new Runnable() {
+				public void run() {
+					byte[] data = null;
+					int permits = 0;
+					long length = file.length();
+					if ((length > 0) && (length <= maxLength)) {
+						permits = Math.min(limit, (int)(length / 1024) + 1);
+						try {
+							budget.acquire(permits);
+							data = Files.readAllBytes(file.toPath());
+							prefetched.incrementAndGet();
+						}
+						catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+							permits = 0;
+						}
+						catch (IOException ex) {
+							budget.release(permits);
+							permits = 0;
+						}
+					}
+					final byte[] contents = data;
+					final int held = permits;
+					pool.execute(new Runnable() {
+						public void run() {
+							Result result;
+							try { result = task.process(file, contents); }
+							catch (Throwable t) {
+								logger.warn("Unable to process "+file, t);
+								result = Result.failed(file, t.toString());
+							}
+							finally { if (held > 0) budget.release(held); }
+							emitter.emit(i, result);
+						}
+					});
+				}
+			});
+		}
+		readerPool.shutdown();
+		try {
+			readerPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ex) {
+			readerPool.shutdownNow();
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		return prefetched.get();
+	}
+
+	//Passes results to the listener in the order of the files, holding
+	//those that finish early until all the earlier ones are done.
+	static class Emitter {
+		Result[] pending;
+		int next = 0;
+		Summary summary;
+		Listener listener;
+
+		public Emitter(int size, Summary summary, Listener listener) {
+			this.pending = new Result[size];
+			this.summary = summary;
+			this.listener = listener;
+		}
+
+		public synchronized void emit(int index, Result result) {
+			pending[index] = result;
+			while ((next < pending.length) && (pending[next] != null)) {
+				Result r = pending[next];
+				pending[next++] = null;
+				summary.add(r);
+				if (listener != null) {
+					try { listener.resultAvailable(r); }
+					catch (Exception ex) { logger.warn("Listener failed", ex); }
+				}
+			}
+		}
+	}
+
+	/**
+	 * The operation performed on each file of a batch.
+	 * Implementations must be safe for use by several threads at once.
+	 */
+	public interface Task {
+		/**
+		 * Process one file.
+		 * @param file the file.
+		 * @return the result.
+		 * @throws Exception if the file cannot be processed; the file
+		 * is then counted as failed.
+		 */
+		public Result process(File file) throws Exception;
+	}
+
+	/**
+	 * A Task that can process a file whose contents have been read
+	 * into memory by a reader thread.
+	 */
+	public interface PrefetchTask extends Task {
+		/**
+		 * Process one file.
+		 * @param file the file.
+		 * @param data the contents of the file, or null if the file has
+		 * not been read and must be read by the task.
+		 * @return the result.
+		 * @throws Exception if the file cannot be processed; the file
+		 * is then counted as failed.
+		 */
+		public Result process(File file, byte[] data) throws Exception;
+	}
+
+	/**
+	 * A Task that collects statistics about the batch, which are added
+	 * to the summary when all the files have been processed.
+	 */
+	public interface Reporter {
+		/**
+		 * Add the statistics of the batch to its summary.
+		 * @param summary the summary.
+		 */
+		public void addStatistics(Summary summary);
+	}
+
+	/**
+	 * The receiver of the results of a batch.
+	 */
+	public interface Listener {
+		/**
+		 * Receive the result for one file. Results are delivered in the
+		 * order of the files in the batch, on one of the worker threads.
+		 * @param result the result.
+		 */
+		public void resultAvailable(Result result);
+	}
+
+	/**
+	 * The result of processing one file.
+	 */
+	public static class Result {
+		public static final int OK = 0;
+		public static final int SKIPPED = 1;
+		public static final int FAILED = 2;
+
+		public final File file;
+		public final int status;
+		public final String message;
+		public final boolean warning;
+
+		public Result(File file, int status, String message) {
+			this(file, status, message, true);
+		}
+		public Result(File file, int status, String message, boolean warning) {
+			this.file = file;
+			this.status = status;
+			this.message = (message != null) ? message : "";
+			this.warning = warning;
+		}
+		public static Result ok(File file, String message) {
+			return new Result(file, OK, message);
+		}
+		public static Result info(File file, String message) {
+			return new Result(file, OK, message, false);
+		}
+		public static Result skipped(File file, String message) {
+			return new Result(file, SKIPPED, message);
+		}
+		public static Result failed(File file, String message) {
+			return new Result(file, FAILED, message);
+		}
+		public boolean isOK() {
+			return (status == OK);
+		}
+	}
+
+	/**
+	 * The summary of a batch: the number of files in each state, the
+	 * elapsed time, and any statistics added by the operation.
+	 */
+	public static class Summary {
+		public final int threads;
+		public int ok = 0;
+		public int skipped = 0;
+		public int failed = 0;
+		public long elapsed = 0;
+		LinkedHashMap<String,String> statistics = new LinkedHashMap<String,String>();
+
+		public Summary(int threads) {
+			this.threads = threads;
+		}
+
+		synchronized void add(Result result) {
+			if (result.status == Result.OK) ok++;
+			else if (result.status == Result.SKIPPED) skipped++;
+			else failed++;
+		}
+
+		/**
+		 * Get the number of files processed.
+		 * @return the number of files.
+		 */
+		public int getCount() {
+			return ok + skipped + failed;
+		}
+
+		/**
+		 * Add a statistic to the summary.
+		 * @param name the name of the statistic.
+		 * @param value the value.
+		 */
+		public synchronized void addStatistic(String name, String value) {
+			statistics.put(name, value);
+		}
+
+		/**
+		 * Get the statistics added to the summary.
+		 * @return the statistics, in the order in which they were added.
+		 */
+		public synchronized Map<String,String> getStatistics() {
+			return new LinkedHashMap<String,String>(statistics);
+		}
+
+		/**
+		 * Get the summary as HTML for the results pane.
+		 * @return the HTML text.
+		 */
+		public String toHTML() {
+			StringBuffer sb = new StringBuffer();
+			int count = getCount();
+			sb.append(count + " files in " + elapsed + " ms");
+			if (elapsed > 0) sb.append(String.format(" (%.1f files/s)", count * 1000.0 / elapsed));
+			sb.append(" with " + threads + " thread" + ((threads != 1) ? "s" : "") + "<br>");
+			sb.append("OK: " + ok + "; skipped: " + skipped + "; failed: " + failed + "<br>");
+			for (Map.Entry<String,String> stat : getStatistics().entrySet()) {
+				sb.append(stat.getKey() + ": " + stat.getValue() + "<br>");
+			}
+			return sb.toString();
+		}
+	}
+
+}
@@ -0,0 +1,317 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.dcm4che.data.Dataset;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerContext;
+
+/**
+ * An AnonymizerScript compiled for repeated application to many objects.
+ * <p>
+ * When the anonymizer is given a script as a Properties object, it parses
+ * every key into a tag and every script into function calls for every
+ * object it processes. A CompiledScript resolves the tags of all the
+ * standard elements once, into a table keyed by the int tag, and parses
+ * each script once into a ScriptAction. The keep-group and remove rules
+ * become bits. Only the elements in private groups, whose tags can depend
+ * on the private creators in each object, are left for the
+ * DICOMAnonymizerContext to resolve; their scripts are parsed once and
+ * shared by all the objects that use them.
+ * <p>
+ * The results of the hashing functions are memoized in a FunctionCache
+ * that lives as long as the CompiledScript, so they are shared by all
+ * the objects of a batch.
+ * <p>
+ * A CompiledScript is immutable once it is constructed, apart from its
+ * caches, which are thread-safe, so one instance can be used by any
+ * number of threads.
+ */
+public class CompiledScript {
+
+	static final int DeIdentificationMethodCodeSeq = 0x00120064;
+
+	/** The bits of the remove and keep rules. */
+	public static final int REMOVE_PRIVATE_GROUPS = 1;
+	public static final int REMOVE_UNSPECIFIED_ELEMENTS = 2;
+	public static final int REMOVE_OVERLAYS = 4;
+	public static final int REMOVE_CURVES = 8;
+	public static final int KEEP_SAFE_PRIVATE_ELEMENTS = 16;
+
+	static final int functionCacheSize = 100000;
+
+	Properties cmds;
+	ActionTable actions;
+	BitSet keepGroups;
+	int flags = 0;
+	int[] insertTags;
+	ConcurrentHashMap<String,ScriptAction> privateActions;
+	FunctionCache functionCache;
+
+	/**
+	 * Compile a script.
+	 * @param script the script.
+	 * @throws IllegalArgumentException if the script of an element
+	 * cannot be compiled.
+	 * @throws IllegalStateException if the CTP library does not have
+	 * the DICOMAnonymizer methods on which the script functions depend.
+	 */
+	public CompiledScript(AnonymizerScript script) {
+		ScriptAction.checkFunctions();
+		DatasetAnonymizer.checkMethods();
+		cmds = new Properties();
+		actions = new ActionTable(script.size());
+		keepGroups = new BitSet(0x10000);
+		privateActions = new ConcurrentHashMap<String,ScriptAction>();
+		functionCache = new FunctionCache(functionCacheSize);
+		LinkedList<Integer> inserts = new LinkedList<Integer>();
+		for (AnonymizerScript.Rule rule : script.getRules()) {
+			if (!rule.enabled) continue;
+			if (rule.type == 'p') {
+				cmds.setProperty("param." + rule.t, rule.value);
+			}
+			else if (rule.type == 'r') {
+				cmds.setProperty("remove." + rule.t, "");
+				if (rule.t.equals("privategroups")) flags |= REMOVE_PRIVATE_GROUPS;
+				else if (rule.t.equals("unspecifiedelements")) flags |= REMOVE_UNSPECIFIED_ELEMENTS;
+				else if (rule.t.equals("overlays")) flags |= REMOVE_OVERLAYS;
+				else if (rule.t.equals("curves")) flags |= REMOVE_CURVES;
+			}
+			else if (rule.type == 'k') {
+				if (rule.t.startsWith("safe")) {
+					cmds.setProperty("keep.safeprivateelements", "");
+					flags |= KEEP_SAFE_PRIVATE_ELEMENTS;
+				}
+				else {
+					cmds.setProperty("keep.group" + rule.t, "");
+					int group = getGroup(rule.t);
+					if (group != -1) keepGroups.set(group);
+				}
+			}
+			else if (rule.type == 'e') {
+				int tag = getTag(rule.t);
+				if ((tag != -1) && ((tag & 0x10000) == 0)) {
+					ScriptAction action = new ScriptAction(rule.value, functionCache);
+					actions.put(tag, action);
+					if (action.always || (tag == DeIdentificationMethodCodeSeq)) inserts.add(tag);
+				}
+				else if (rule.t.length() >= 4) {
+					//Private groups are resolved by the context for each object.
+					String key = "set.[" + rule.t.substring(0,4) + "," + rule.t.substring(4) + "]" + rule.n;
+					cmds.setProperty(key, rule.value);
+					privateActions.put(rule.value, new ScriptAction(rule.value, functionCache));
+				}
+			}
+		}
+		insertTags = new int[inserts.size()];
+		int i = 0;
+		for (Integer tag : inserts) insertTags[i++] = tag;
+	}
+
+	/**
+	 * Create a context for anonymizing one object.
+	 * @param lkup the lookup table, or null.
+	 * @param integers the store for the @integer function, or null.
+	 * @param inDS the original dataset.
+	 * @param outDS the dataset to be modified.
+	 * @return the context.
+	 */
+	public DICOMAnonymizerContext getContext(Properties lkup, IntegerStore integers,
+											 Dataset inDS, Dataset outDS) {
+		Context context = new Context(cmds, lkup, integers, inDS, outDS);
+		context.scriptTable = new ScriptTable(context.scriptTable);
+		return context;
+	}
+
+	/**
+	 * Get the action for an element.
+	 * @param tag the tag.
+	 * @param context the context of the object, which resolves the
+	 * elements in private groups.
+	 * @return the action, or null if the element is not scripted.
+	 */
+	public ScriptAction getAction(int tag, DICOMAnonymizerContext context) {
+		ScriptAction action = actions.get(tag);
+		if ((action != null) || ((tag & 0x10000) == 0)) return action;
+		String script = context.getScriptFor(tag);
+		return (script != null) ? getPrivateAction(script) : null;
+	}
+
+	//Get the parsed form of a private element script.
+	ScriptAction getPrivateAction(String script) {
+		ScriptAction action = privateActions.get(script);
+		if (action == null) {
+			action = new ScriptAction(script, functionCache);
+			privateActions.putIfAbsent(script, action);
+		}
+		return action;
+	}
+
+	/**
+	 * Get the cache of the results of the hashing functions.
+	 * @return the cache.
+	 */
+	public FunctionCache getFunctionCache() {
+		return functionCache;
+	}
+
+	/**
+	 * Get the script for a standard element.
+	 * @param tag the tag.
+	 * @return the script, or null if the element is not scripted.
+	 */
+	public String getScript(int tag) {
+		ScriptAction action = actions.get(tag);
+		return (action != null) ? action.script : null;
+	}
+
+	/**
+	 * Get the tags of the standard elements whose scripts may insert
+	 * them into an object that does not contain them.
+	 * @return the tags.
+	 */
+	public int[] getInsertTags() {
+		return insertTags;
+	}
+
+	/**
+	 * Determine whether a group is kept by a keep rule.
+	 * @param group the group number.
+	 * @return true if the group is kept.
+	 */
+	public boolean isKeepGroup(int group) {
+		return keepGroups.get(group & 0xFFFF);
+	}
+
+	/**
+	 * Determine whether a remove or keep rule is enabled.
+	 * @param flag one of the rule bits (REMOVE_PRIVATE_GROUPS, etc.).
+	 * @return true if the rule is enabled.
+	 */
+	public boolean is(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	//Get the tag of a standard element in the form ggggeeee, or -1.
+	private static int getTag(String t) {
+		if (t.length() != 8) return -1;
+		try { return (int)Long.parseLong(t, 16); }
+		catch (Exception ex) { return -1; }
+	}
+
+	//Get the group of a keep rule in the form gggg or groupgggg, or -1.
+	private static int getGroup(String t) {
+		if (t.startsWith("group")) t = t.substring(5);
+		try { return Integer.parseInt(t.trim(), 16) & 0xFFFF; }
+		catch (Exception ex) { return -1; }
+	}
+
+	/**
+	 * The context of one object. The DICOMAnonymizerContext can only hold
+	 * the IntegerTable of the CTP, so the IntegerStore that replaces it
+	 * is carried here for the @integer function.
+	 */
+	public static class Context extends DICOMAnonymizerContext {
+		public final IntegerStore integers;
+
+		public Context(Properties cmds, Properties lkup, IntegerStore integers,
+					   Dataset inDS, Dataset outDS) {
+			super(cmds, lkup, (IntegerTable)null, inDS, outDS);
+			this.integers = integers;
+		}
+	}
+
+	/**
+	 * The script table of a context. The table holds the scripts of the
+	 * private elements in one object; lookups that miss fall through to
+	 * the compiled scripts of the standard elements, which are shared by
+	 * all the contexts created from the CompiledScript. Iterating the
+	 * table only returns the private elements.
+	 */
+	class ScriptTable extends Hashtable<Integer,String> {
+		public ScriptTable(Hashtable<Integer,String> privateScripts) {
+			super(privateScripts);
+		}
+		public String get(Object key) {
+			String script = (key instanceof Integer) ? getScript(((Integer)key).intValue()) : null;
+			return (script != null) ? script : super.get(key);
+		}
+		public boolean containsKey(Object key) {
+			return ((key instanceof Integer) && (actions.get(((Integer)key).intValue()) != null))
+						|| super.containsKey(key);
+		}
+	}
+
+	/**
+	 * A table of actions keyed by int tags, using open addressing with
+	 * linear probing, so a lookup neither boxes the tag nor follows
+	 * a chain of entries. The table is filled when the script is
+	 * compiled and is only read afterwards.
+	 */
+	static class ActionTable {
+		static final int EMPTY = 0;
+		int[] keys;
+		ScriptAction[] values;
+		int mask;
+		int size = 0;
+		ScriptAction zeroAction = null;
+
+		public ActionTable(int expected) {
+			int capacity = 16;
+			while (capacity < expected * 2) capacity <<= 1;
+			keys = new int[capacity];
+			values = new ScriptAction[capacity];
+			mask = capacity - 1;
+		}
+
+		public ScriptAction get(int tag) {
+			if (tag == EMPTY) return zeroAction;
+			int i = hash(tag) & mask;
+			while (true) {
+				int key = keys[i];
+				if (key == tag) return values[i];
+				if (key == EMPTY) return null;
+				i = (i + 1) & mask;
+			}
+		}
+
+		public void put(int tag, ScriptAction action) {
+			if (tag == EMPTY) {
+				zeroAction = action;
+				return;
+			}
+			if ((size + 1) * 2 > keys.length) grow();
+			int i = hash(tag) & mask;
+			while ((keys[i] != EMPTY) && (keys[i] != tag)) i = (i + 1) & mask;
+			if (keys[i] == EMPTY) size++;
+			keys[i] = tag;
+			values[i] = action;
+		}
+
+		private void grow() {
+			int[] oldKeys = keys;
+			ScriptAction[] oldValues = values;
+			keys = new int[oldKeys.length * 2];
+			values = new ScriptAction[oldKeys.length * 2];
+			mask = keys.length - 1;
+			size = 0;
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+			}
+		}
+
+		//Tags are clustered in groups, so the bits are mixed before masking.
+		private static int hash(int tag) {
+			int h = tag * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+}
@@ -27,6 +27,13 @@ public class Configuration {
     public static final String lookupTableFile	= "lookup-table.properties";
     public static final String xmlScriptFile	= "xml-anonymizer.script";
     public static final String helpfile 		= "help.html";
+    public static final int scriptBackups		= 5;
+    public static final String indexDirectory	= "indexes";
+    public static final String integerDirectory	= "integers";
+    public static final String indexTags		=
+    	"Modality, SOPClassUID, PatientID, StudyInstanceUID, SeriesInstanceUID, " +
+    	"StudyDate, SeriesDescription, BodyPartExamined, Manufacturer, SliceThickness, " +
+    	"Rows, Columns, NumberOfFrames, TransferSyntaxUID";
 
 	public static final Color background = Color.getHSBColor(0.58f, 0.17f, 0.95f);
 
@@ -59,6 +66,105 @@ public class Configuration {
 		return props.getProperty(key);
 	}
 
+	/**
+	 * Get the tags of the elements stored in header indexes. The list of
+	 * element names can be overridden with the index-tags property.
+	 * @return the array of tags.
+	 */
+	public int[] getIndexTags() {
+		String names = props.getProperty("index-tags");
+		if ((names == null) || names.trim().equals("")) names = indexTags;
+		return HeaderIndexer.getTags(names);
+	}
+
+	/**
+	 * Get the number of threads used to process a batch of files.
+	 * The default is the number of processors; it can be overridden
+	 * with the batch-threads property.
+	 * @return the number of threads.
+	 */
+	public int getBatchThreads() {
+		int n = StringUtil.getInt(props.getProperty("batch-threads"), 0);
+		return (n > 0) ? n : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Get the number of threads that read files ahead of the workers
+	 * of a batch. This is set with the reader-threads property; zero
+	 * means that the workers read the files themselves.
+	 * @return the number of reader threads (default 2).
+	 */
+	public int getReaderThreads() {
+		return Math.max(0, StringUtil.getInt(props.getProperty("reader-threads"), 2));
+	}
+
+	/**
+	 * Get the maximum number of bytes of files that may be read ahead
+	 * and not yet processed. This is set in megabytes with the
+	 * prefetch-mb property.
+	 * @return the limit in bytes (default 256 MB).
+	 */
+	public long getPrefetchLimit() {
+		int mb = StringUtil.getInt(props.getProperty("prefetch-mb"), 256);
+		return Math.max(0, mb) * 1024L * 1024L;
+	}
+
+	/**
+	 * Determine whether the bytes of anonymized files are to be scanned
+	 * for residual identifiers, in addition to their text elements. This
+	 * is enabled with the verify-raw-bytes property.
+	 * @return true if the raw bytes are to be scanned.
+	 */
+	public boolean getVerifyRawBytes() {
+		String raw = props.getProperty("verify-raw-bytes");
+		return (raw != null) && raw.trim().equals("yes");
+	}
+
+	/**
+	 * Determine whether pixel data that needs no changes is to be copied
+	 * with a channel transfer when files are anonymized. This can be
+	 * disabled with the pixel-passthrough property.
+	 * @return true if the pixel passthrough mode is enabled.
+	 */
+	public boolean getPixelPassthrough() {
+		String passthrough = props.getProperty("pixel-passthrough");
+		return (passthrough == null) || !passthrough.trim().equals("no");
+	}
+
+	/**
+	 * Determine whether XML files are to be anonymized by streaming them
+	 * rather than by loading them into a DOM. This can be disabled with
+	 * the xml-streaming property.
+	 * @return true if XML files are to be streamed.
+	 */
+	public boolean getXMLStreaming() {
+		String streaming = props.getProperty("xml-streaming");
+		return (streaming == null) || !streaming.trim().equals("no");
+	}
+
+	/**
+	 * Determine whether the duplicates found in a batch are to be given
+	 * links to the outputs of the files they duplicate, rather than just
+	 * skipped. This is enabled with the link-duplicates property.
+	 * @return true if duplicates are to be linked.
+	 */
+	public boolean getLinkDuplicates() {
+		String link = props.getProperty("link-duplicates");
+		return (link != null) && link.trim().equals("yes");
+	}
+
+	/**
+	 * Get the store of the integers assigned by the @integer function.
+	 * @return the store, or null if it cannot be opened.
+	 */
+	public IntegerStore getIntegerStore() {
+		try { return IntegerStore.getInstance(new File(integerDirectory)); }
+		catch (Exception ex) {
+			logger.warn("Unable to open the integer store", ex);
+			return null;
+		}
+	}
+
 	public void store() {
 		props.store();
 	}
@@ -0,0 +1,241 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmElement;
+import org.dcm4che.dict.DictionaryFactory;
+import org.dcm4che.dict.TagDictionary;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.VRs;
+import org.rsna.ctp.objects.PrivateTagIndex;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerContext;
+
+/**
+ * Applies a CompiledScript to the header of a DICOM object in memory.
+ * The element-level rules are those of the DICOMAnonymizer: elements
+ * whose scripts begin with @always() are inserted if they are missing,
+ * and then every element of the original dataset is kept, removed or
+ * replaced in the output dataset according to its script and the
+ * group-level remove and keep rules. Each element is dispatched through
+ * the compiled action table, so scripts that are single actions are
+ * applied without evaluation; the functions in other scripts are those
+ * of the DICOMAnonymizer, so all the script functions behave identically.
+ */
+public class DatasetAnonymizer {
+
+	static final Logger logger = Logger.getLogger(DatasetAnonymizer.class);
+
+	static final TagDictionary tagDictionary =
+					DictionaryFactory.getInstance().getDefaultTagDictionary();
+	static final String blanks = "                                                       ";
+	static final int DeIdentificationMethodCodeSeq = CompiledScript.DeIdentificationMethodCodeSeq;
+
+	static Method updateCodeSeq = null;
+	static {
+		try {
+			updateCodeSeq = DICOMAnonymizer.class.getDeclaredMethod(
+						"updateDeIdentificationMethodCodeSeq",
+						String.class, DICOMAnonymizerContext.class);
+			updateCodeSeq.setAccessible(true);
+		}
+		catch (Exception ex) {
+			logger.error("The CTP library does not implement updateDeIdentificationMethodCodeSeq", ex);
+		}
+	}
+
+	/**
+	 * Check that the private DICOMAnonymizer method that updates the
+	 * DeIdentificationMethodCodeSeq was found in the CTP library.
+	 * @throws IllegalStateException if the method is missing.
+	 */
+	public static void checkMethods() {
+		if (updateCodeSeq == null) {
+			throw new IllegalStateException(
+				"The CTP library is not the version DicomEditor was built with: "
+				+ "the DICOMAnonymizer does not implement updateDeIdentificationMethodCodeSeq");
+		}
+	}
+
+	/**
+	 * Anonymize the output dataset of a context. Exceptions thrown by
+	 * the script functions (for example, by @skip() and @quarantine())
+	 * are passed to the caller.
+	 * @param script the compiled script.
+	 * @param context the context, obtained from the CompiledScript.
+	 * @return a description of any elements that could not be updated,
+	 * or an empty string.
+	 * @throws Exception if a script function requires the object to be
+	 * skipped or quarantined.
+	 */
+	public static String anonymize(CompiledScript script, DICOMAnonymizerContext context)
+										throws Exception {
+		insertElements(script, context);
+		return processElements(script, context);
+	}
+
+	//Insert the elements whose scripts begin with @always().
+	private static void insertElements(CompiledScript script, DICOMAnonymizerContext context)
+											throws Exception {
+		for (int tag : script.getInsertTags()) {
+			insertElement(tag, script.actions.get(tag), context);
+		}
+		//The private elements were resolved by the context for this object.
+		Integer[] privateTags = context.scriptTable.keySet().toArray(new Integer[0]);
+		for (Integer tag : privateTags) {
+			ScriptAction action = script.getAction(tag.intValue(), context);
+			if (action != null) insertElement(tag.intValue(), action, context);
+		}
+	}
+
+	private static void insertElement(int tag, ScriptAction action, DICOMAnonymizerContext context)
+											throws Exception {
+		Dataset ds = context.outDS;
+		if (ds.contains(tag)) return;
+		if (!action.always && (tag != DeIdentificationMethodCodeSeq)) return;
+		String script = action.script.trim();
+		int vr;
+		try { vr = VRs.valueOf(tagDictionary.lookup(tag).vr); }
+		catch (Exception notInDictionary) { vr = VRs.valueOf("SH"); }
+
+		if (action.always && (vr != VRs.SQ)) {
+			String value = action.evaluate(context, tag);
+			if (value.equals("@keep()") || value.equals("@remove()")) return;
+			try {
+				if (value.startsWith("@blank(") || value.equals("@empty()")) context.putXX(tag, vr, "");
+				else context.putXX(tag, vr, value);
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to create "+Tags.toString(tag)+": "+script);
+			}
+		}
+		else if (script.startsWith("@always()@require()") && (vr == VRs.SQ)) {
+			context.putXX(tag, vr, "");
+		}
+		else if (script.startsWith("@always()@call") && (vr == VRs.SQ)) {
+			action.evaluate(context, tag);
+		}
+		else if (tag == DeIdentificationMethodCodeSeq) {
+			updateDeIdentificationMethodCodeSeq(script, context);
+		}
+	}
+
+	//Process the elements of the original dataset.
+	private static String processElements(CompiledScript script, DICOMAnonymizerContext context)
+											throws Exception {
+		PrivateTagIndex ptIndex = PrivateTagIndex.getInstance();
+		StringBuffer exceptions = new StringBuffer();
+		Dataset ds = context.outDS;
+		if (ds == null) return "";
+		boolean rpg = script.is(CompiledScript.REMOVE_PRIVATE_GROUPS);
+		boolean rue = script.is(CompiledScript.REMOVE_UNSPECIFIED_ELEMENTS);
+		boolean rol = script.is(CompiledScript.REMOVE_OVERLAYS);
+		boolean rc = script.is(CompiledScript.REMOVE_CURVES);
+		boolean kspe = script.is(CompiledScript.KEEP_SAFE_PRIVATE_ELEMENTS);
+		Iterator it = context.inDS.iterator();
+		while (it.hasNext()) {
+			DcmElement el = (DcmElement)it.next();
+			int tag = el.tag();
+			int vr = el.vr();
+			int group = (tag >> 16) & 0xFFFF;
+			boolean isOverlay = ((group & 0xFF00) == 0x6000);
+			boolean isCurve = ((group & 0xFF00) == 0x5000);
+			boolean isPrivate = ((group & 1) != 0);
+			boolean isPrivateCreator = isPrivate && ((tag & 0xFF00) == 0);
+			boolean isSafePrivate = false;
+			if (kspe && isPrivate && !isPrivateCreator) {
+				String creator = context.getCreator(tag);
+				isSafePrivate = ptIndex.getCode(creator, tag).equals("K");
+			}
+			ScriptAction action = script.getAction(tag, context);
+			boolean hasScript = (action != null);
+			boolean keep = script.isKeepGroup(group)
+							|| (isPrivateCreator && kspe)
+							|| (isSafePrivate && kspe)
+							|| (tag == Tags.SOPClassUID)
+							|| (tag == Tags.SOPInstanceUID)
+							|| (tag == Tags.StudyInstanceUID)
+							|| (group == 0x0002)
+							|| (group == 0x0028)
+							|| (group == 0x7FE0)
+							|| (isOverlay && !rol && (!isPrivate || !rpg))
+							|| (isCurve && !rc && (!isPrivate || !rpg));
+
+			if (rpg && isPrivate && !hasScript && !keep) remove(ds, tag);
+			else if (rue && !hasScript && !keep) remove(ds, tag);
+			else if (rol && isOverlay) remove(ds, tag);
+			else if (hasScript) {
+				if (tag == DeIdentificationMethodCodeSeq) {
+					updateDeIdentificationMethodCodeSeq(action.script, context);
+					continue;
+				}
+				if (action.kind == ScriptAction.REMOVE) {
+					remove(ds, tag);
+					continue;
+				}
+				if (action.kind == ScriptAction.KEEP) continue;
+				String value = action.evaluate(context, tag);
+				value = (value != null) ? value.trim() : "";
+				if (value.contains("@remove()")) remove(ds, tag);
+				else if (value.equals("@keep()")) ; //do nothing
+				else if (value.startsWith("@blank(")) {
+					try {
+						String arg = value.substring("@blank(".length());
+						int k = arg.indexOf(")");
+						int len = 0;
+						if (k != -1) len = Integer.parseInt(("0" + arg.substring(0,k)).replaceAll("\\D", ""));
+						len = Math.min(len, blanks.length());
+						context.putXX(tag, vr, blanks.substring(0, len));
+					}
+					catch (Exception ex) {
+						append(exceptions, Tags.toString(tag));
+						logger.warn(Tags.toString(tag)+" exception: "+ex+"\nscript="+action.script);
+					}
+				}
+				else {
+					try {
+						if (value.equals("@empty()")) value = "";
+						context.putXX(tag, vr, value);
+					}
+					catch (Exception ex) {
+						append(exceptions, Tags.toString(tag));
+						logger.warn(Tags.toString(tag)+" exception:\n"+ex
+										+"\nscript="+action.script+"\nvalue= \""+value+"\"");
+					}
+				}
+			}
+		}
+		return exceptions.toString();
+	}
+
+	private static void remove(Dataset ds, int tag) {
+		try { ds.remove(tag); }
+		catch (Exception ex) { logger.debug("Unable to remove "+Tags.toString(tag)+" from dataset."); }
+	}
+
+	private static void append(StringBuffer sb, String s) {
+		if (sb.length() > 0) sb.append(",");
+		sb.append(s);
+	}
+
+	private static void updateDeIdentificationMethodCodeSeq(String script, DICOMAnonymizerContext context)
+			throws Exception {
+		if (updateCodeSeq == null) return;
+		try { updateCodeSeq.invoke(null, script, context); }
+		catch (java.lang.reflect.InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof Exception) throw (Exception)cause;
+			throw ex;
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.Tags;
+import org.rsna.util.FileUtil;
+
+/**
+ * Finds the files of a batch that are copies of the same DICOM instance,
+ * so each instance is processed only once.
+ * <p>
+ * The files are compared in three stages, each applied only to the files
+ * that the previous stage could not tell apart: first by length, then by
+ * the SOPInstanceUID read from the start of the header, and last by a
+ * SHA-256 hash of the whole file. Files with the same SOPInstanceUID but
+ * different contents are not duplicates; they are counted as conflicts.
+ * The header reads and the hashes are done by a pool of threads.
+ */
+public class Deduplicator {
+
+	static final Logger logger = Logger.getLogger(Deduplicator.class);
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	static final int bufferSize = 65536;
+
+	int threads;
+
+	/**
+	 * Create a Deduplicator.
+	 * @param threads the number of threads that read the headers and
+	 * hash the files.
+	 */
+	public Deduplicator(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Find the duplicates in a list of files.
+	 * @param files the files.
+	 * @return the files to be processed and the duplicates of them.
+	 * @throws InterruptedException if the thread is interrupted.
+	 */
+	public Result scan(List<File> files) throws InterruptedException {
+		long startTime = System.currentTimeMillis();
+		Result result = new Result();
+		File[] list = files.toArray(new File[files.size()]);
+
+		//Stage 1: group the files by length.
+		HashMap<Long,List<Integer>> sizes = new HashMap<Long,List<Integer>>();
+		for (int i=0; i<list.length; i++) {
+			Long length = Long.valueOf(list[i].length());
+			List<Integer> group = sizes.get(length);
+			if (group == null) {
+				group = new ArrayList<Integer>(1);
+				sizes.put(length, group);
+			}
+			group.add(Integer.valueOf(i));
+		}
+		List<List<Integer>> groups = new LinkedList<List<Integer>>();
+		for (List<Integer> group : sizes.values()) {
+			if (group.size() > 1) groups.add(group);
+		}
+		result.sameSize = count(groups);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			//Stage 2: split the groups by SOPInstanceUID.
+			final String[] uids = new String[list.length];
+			run(pool, groups, list, new Reader() {
+				public void read(File file, int i) { uids[i] = getSOPInstanceUID(file); }
+			});
+			groups = split(groups, uids);
+			result.sameUID = count(groups);
+
+			//Stage 3: split the groups by content hash.
+			final String[] hashes = new String[list.length];
+			run(pool, groups, list, new Reader() {
+				public void read(File file, int i) { hashes[i] = getHash(file); }
+			});
+			for (List<Integer> group : groups) {
+				HashMap<String,Integer> originals = new HashMap<String,Integer>();
+				for (Integer i : group) {
+					String hash = hashes[i.intValue()];
+					if (hash == null) continue;
+					Integer original = originals.get(hash);
+					if (original == null) originals.put(hash, i);
+					else result.duplicates.put(list[i.intValue()], list[original.intValue()]);
+				}
+				if (originals.size() > 1) result.conflicts++;
+			}
+		}
+		finally { pool.shutdownNow(); }
+
+		for (File file : list) {
+			if (!result.duplicates.containsKey(file)) result.unique.add(file);
+		}
+		result.elapsed = System.currentTimeMillis() - startTime;
+		return result;
+	}
+
+	//Read the files of the groups with the pool.
+	private void run(ExecutorService pool, List<List<Integer>> groups, final File[] list, final Reader reader)
+																		throws InterruptedException {
+		List<Callable<Object>> calls = new LinkedList<Callable<Object>>();
+		for (List<Integer> group : groups) {
+			for (final Integer i : group) {
+				calls.add(new Callable<Object>() {
+					public Object call() {
+						reader.read(list[i.intValue()], i.intValue());
+						return null;
+					}
+				});
+			}
+		}
+		pool.invokeAll(calls);
+	}
+
+	interface Reader {
+		public void read(File file, int index);
+	}
+
+	//Split the groups by a key, keeping the parts with more than one
+	//file. Files with no key cannot be duplicates and are dropped.
+	private static List<List<Integer>> split(List<List<Integer>> groups, String[] keys) {
+		List<List<Integer>> parts = new LinkedList<List<Integer>>();
+		for (List<Integer> group : groups) {
+			LinkedHashMap<String,List<Integer>> map = new LinkedHashMap<String,List<Integer>>();
+			for (Integer i : group) {
+				String key = keys[i.intValue()];
+				if (key == null) continue;
+				List<Integer> part = map.get(key);
+				if (part == null) {
+					part = new ArrayList<Integer>(2);
+					map.put(key, part);
+				}
+				part.add(i);
+			}
+			for (List<Integer> part : map.values()) {
+				if (part.size() > 1) parts.add(part);
+			}
+		}
+		return parts;
+	}
+
+	private static int count(List<List<Integer>> groups) {
+		int n = 0;
+		for (List<Integer> group : groups) n += group.size();
+		return n;
+	}
+
+	//Get the SOPInstanceUID of a file, parsing only the elements that
+	//precede it, or null if the file is not DICOM or has none.
+	static String getSOPInstanceUID(File file) {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file), 4096);
+			DcmParser parser = pFact.newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) return null;
+			Dataset ds = oFact.newDataset();
+			parser.setDcmHandler(ds.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.SOPInstanceUID + 1);
+			return ds.getString(Tags.SOPInstanceUID);
+		}
+		catch (Exception ex) { return null; }
+		finally { FileUtil.close(in); }
+	}
+
+	//Get the SHA-256 hash of the contents of a file, reading it in
+	//blocks, or null if the file cannot be read.
+	static String getHash(File file) {
+		InputStream in = null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			in = new FileInputStream(file);
+			byte[] buffer = new byte[bufferSize];
+			int n;
+			while ((n = in.read(buffer)) != -1) md.update(buffer, 0, n);
+			StringBuffer sb = new StringBuffer();
+			for (byte b : md.digest()) sb.append(String.format("%02x", b & 0xFF));
+			return sb.toString();
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to hash "+file, ex);
+			return null;
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	/**
+	 * Link or copy the processed output of an original file to the place
+	 * of the output of its duplicate.
+	 * @param output the output of the original file.
+	 * @param target the output of the duplicate.
+	 * @return true if a hard link was made; false if the file was copied
+	 * because the file system does not support hard links.
+	 * @throws IOException if the output cannot be linked or copied.
+	 */
+	public static boolean link(File output, File target) throws IOException {
+		if (target.exists() && !target.delete()) throw new IOException("Unable to delete " + target);
+		try {
+			Files.createLink(target.toPath(), output.toPath());
+			return true;
+		}
+		catch (UnsupportedOperationException | IOException ex) {
+			Files.copy(output.toPath(), target.toPath());
+			return false;
+		}
+	}
+
+	/**
+	 * The result of a scan: the files to be processed, in the order of the
+	 * batch, and the duplicates, each mapped to the file it duplicates.
+	 */
+	public static class Result {
+		public final List<File> unique = new LinkedList<File>();
+		public final LinkedHashMap<File,File> duplicates = new LinkedHashMap<File,File>();
+		public int sameSize = 0;
+		public int sameUID = 0;
+		public int conflicts = 0;
+		public long elapsed = 0;
+
+		/**
+		 * Get a description of the scan, for the summary of a batch.
+		 * @return the number of duplicates and the numbers of files
+		 * examined at each stage.
+		 */
+		public String toString() {
+			String s = duplicates.size() + " found in " + elapsed + " ms ("
+						+ sameSize + " files of equal length; "
+						+ sameUID + " with equal SOPInstanceUIDs hashed)";
+			if (conflicts > 0) {
+				s += "; " + conflicts + " SOPInstanceUID" + ((conflicts != 1) ? "s" : "")
+						+ " shared by different contents";
+			}
+			return s;
+		}
+	}
+
+}
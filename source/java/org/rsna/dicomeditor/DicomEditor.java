@@ -36,6 +36,7 @@ public class DicomEditor extends JFrame {
     private RightPanel				rightPanel;
     private Viewer 					viewerPanel;
     private Editor 					editorPanel;
+    private DiffPanel				diffPanel;
     private AnonymizerPanel			anonymizerPanel;
     private HtmlJPanel 				helpPanel;
 
@@ -74,17 +75,21 @@ public class DicomEditor extends JFrame {
 		anonymizerPanel = new AnonymizerPanel();
 		viewerPanel = new Viewer();
 		editorPanel = new Editor();
+		diffPanel = new DiffPanel();
 		helpPanel = new HtmlJPanel( FileUtil.getText( new File(config.helpfile) ) );
 		
 		mainPanel.addTabs(
 			splitPanel,
 			viewerPanel,
 			editorPanel,
+			diffPanel,
 			anonymizerPanel,
 			helpPanel);
 			
 		sourcePanel.addFileListener(viewerPanel);
 		sourcePanel.addFileListener(editorPanel);
+		sourcePanel.addFileListener(diffPanel);
+		sourcePanel.addFileListener(anonymizerPanel);
 		pack();
 		positionFrame();
 		setVisible(true);
@@ -102,11 +107,13 @@ public class DicomEditor extends JFrame {
 		public void addTabs(JPanel source,
 						 Viewer viewer,
 						 Editor editor,
+						 DiffPanel diff,
 						 AnonymizerPanel script,
 						 JPanel help) {
 			tabbedPane.addTab("Directory", source);
 			tabbedPane.addTab("Viewer", viewer);
 			tabbedPane.addTab("Editor", editor);
+			tabbedPane.addTab("Compare", diff);
 			tabbedPane.addTab("Anonymizer",script);
 			tabbedPane.addTab("Help",help);
 			tabbedPane.setSelectedIndex(0);
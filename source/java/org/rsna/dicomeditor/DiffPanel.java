@@ -0,0 +1,224 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import javax.swing.*;
+import org.apache.log4j.*;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmObjectFactory;
+import org.dcm4che.data.DcmParser;
+import org.dcm4che.data.DcmParserFactory;
+import org.dcm4che.data.FileFormat;
+import org.dcm4che.dict.Tags;
+import org.rsna.ui.FileEvent;
+import org.rsna.ui.FileListener;
+import org.rsna.util.FileUtil;
+
+/**
+ * A JPanel that displays the differences between the headers of two
+ * DICOM files. When a file is selected in the Directory tab, it is
+ * compared with its anonymized copy (or, if the selected file is the
+ * copy, with its original), if the copy exists. Either side can also
+ * be set explicitly from the current selection.
+ */
+public class DiffPanel extends JPanel implements FileListener, ActionListener {
+
+	static final Logger logger = Logger.getLogger(DiffPanel.class);
+
+	static final String suffix = "-no-phi";
+
+	File currentSelection = null;
+	File originalFile = null;
+	File modifiedFile = null;
+	volatile int generation = 0;
+	DiffTable table;
+	JLabel status;
+	JButton setOriginal;
+	JButton setModified;
+	JButton swap;
+
+	/**
+	 * Class constructor; creates a DiffPanel.
+	 */
+	public DiffPanel() {
+		super();
+		Color background = Configuration.getInstance().background;
+		this.setLayout(new BorderLayout());
+		this.setBackground(background);
+
+		table = new DiffTable();
+		JScrollPane jsp = new JScrollPane(table);
+		jsp.getVerticalScrollBar().setUnitIncrement(25);
+		this.add(jsp, BorderLayout.CENTER);
+
+		status = new JLabel(" ");
+		setOriginal = new JButton("Set Original");
+		setModified = new JButton("Set Modified");
+		swap = new JButton("Swap");
+		setOriginal.addActionListener(this);
+		setModified.addActionListener(this);
+		swap.addActionListener(this);
+		Box footer = new Box(BoxLayout.X_AXIS);
+		footer.add(Box.createHorizontalStrut(4));
+		footer.add(status);
+		footer.add(Box.createHorizontalGlue());
+		footer.add(setOriginal);
+		footer.add(Box.createHorizontalStrut(4));
+		footer.add(setModified);
+		footer.add(Box.createHorizontalStrut(4));
+		footer.add(swap);
+		footer.add(Box.createHorizontalStrut(17));
+		JPanel footerPanel = new JPanel(new BorderLayout());
+		footerPanel.setBackground(background);
+		footerPanel.add(footer, BorderLayout.CENTER);
+		this.add(footerPanel, BorderLayout.SOUTH);
+	}
+
+	/**
+	 * The FileListener implementation; tracks the current selection
+	 * and, if the selected file has a partner, compares the two files.
+	 * @param event the event containing the current file selection.
+	 */
+	public void fileEventOccurred(FileEvent event) {
+		if (event.isSELECT()) {
+			currentSelection = event.getFile();
+			if ((currentSelection != null) && currentSelection.isFile()) {
+				File partner = getPartner(currentSelection);
+				if (partner != null) {
+					if (isCopy(currentSelection)) {
+						originalFile = partner;
+						modifiedFile = currentSelection;
+					}
+					else {
+						originalFile = currentSelection;
+						modifiedFile = partner;
+					}
+					compare();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The ActionListener implementation for the footer buttons.
+	 * @param event the event indicating which button was clicked.
+	 */
+	public void actionPerformed(ActionEvent event) {
+		Object source = event.getSource();
+		if (source.equals(swap)) {
+			File temp = originalFile;
+			originalFile = modifiedFile;
+			modifiedFile = temp;
+		}
+		else if ((currentSelection == null) || !currentSelection.isFile()) {
+			Toolkit.getDefaultToolkit().beep();
+			return;
+		}
+		else if (source.equals(setOriginal)) originalFile = currentSelection;
+		else if (source.equals(setModified)) modifiedFile = currentSelection;
+		compare();
+	}
+
+	//Compare the original and modified files if both are set. Only the
+	//headers are parsed, in a background thread; if the selection changes
+	//before a comparison finishes, its result is discarded.
+	private void compare() {
+		final int gen = ++generation;
+		if ((originalFile == null) || (modifiedFile == null)) {
+			table.setDifferences(null);
+			status.setText("Original: " + getName(originalFile) + "   Modified: " + getName(modifiedFile));
+			return;
+		}
+		final File original = originalFile;
+		final File modified = modifiedFile;
+		status.setText("Comparing " + original.getName() + " and " + modified.getName() + "...");
+		Thread thread = new Thread() {
+			public void run() {
+				java.util.List<HeaderDiff.Difference> differences = null;
+				String text;
+				try {
+					long startTime = System.currentTimeMillis();
+					Dataset a = parseHeader(original);
+					if (gen != generation) return;
+					Dataset b = parseHeader(modified);
+					if (gen != generation) return;
+					HeaderDiff diff = new HeaderDiff(a, b);
+					long time = System.currentTimeMillis() - startTime;
+					differences = diff.getDifferences();
+					text = original.getName() + " vs " + modified.getName() + ": "
+							+ differences.size() + " differences in "
+							+ diff.getComparedCount() + " elements (" + time + " ms)";
+				}
+				catch (Exception ex) {
+					logger.warn("Unable to compare "+original+" and "+modified, ex);
+					text = "Unable to compare " + original.getName() + " and " + modified.getName();
+				}
+				final java.util.List<HeaderDiff.Difference> result = differences;
+				final String resultText = text;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (gen != generation) return;
+						table.setDifferences(result);
+						status.setText(resultText);
+					}
+				});
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//Parse the header of a file up to the pixel data, with its
+	//file meta information if it has any.
+	private static Dataset parseHeader(File file) throws Exception {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			DcmParser parser = DcmParserFactory.getInstance().newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new IOException("Unrecognized file format");
+			Dataset ds = DcmObjectFactory.getInstance().newDataset();
+			parser.setDcmHandler(ds.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.PixelData);
+			return ds;
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	private static String getName(File file) {
+		return (file != null) ? file.getName() : "none";
+	}
+
+	//Determine whether a file is an anonymized copy.
+	private static boolean isCopy(File file) {
+		String name = file.getName();
+		int k = name.lastIndexOf(".");
+		if (k == -1) k = name.length();
+		return name.substring(0, k).endsWith(suffix);
+	}
+
+	//Find the anonymized copy of a file or the original of a copy,
+	//using the names created by the anonymize function in the RightPanel.
+	private static File getPartner(File file) {
+		String name = file.getName();
+		int k = name.lastIndexOf(".");
+		if ((k == -1) || name.matches("[\\d\\.]+")) k = name.length();
+		String base = name.substring(0, k);
+		String ext = name.substring(k);
+		if (base.endsWith(suffix)) {
+			base = base.substring(0, base.length() - suffix.length());
+		}
+		else base += suffix;
+		File partner = new File(file.getParentFile(), base + ext);
+		return partner.isFile() ? partner : null;
+	}
+
+}
@@ -0,0 +1,101 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.awt.*;
+import java.util.List;
+import javax.swing.*;
+import javax.swing.table.*;
+
+/**
+ * A JTable that displays a list of HeaderDiff.Differences, with the
+ * rows colored by the type of difference.
+ */
+public class DiffTable extends JTable {
+
+	DiffTableModel model;
+
+	/**
+	 * Class constructor; creates an empty DiffTable.
+	 */
+	public DiffTable() {
+		super();
+		model = new DiffTableModel();
+		setModel(model);
+		setFillsViewportHeight(true);
+		setAutoCreateRowSorter(false);
+		setDefaultRenderer(Object.class, new DiffRenderer());
+		TableColumnModel tcm = getColumnModel();
+		tcm.getColumn(0).setPreferredWidth(60);
+		tcm.getColumn(1).setPreferredWidth(200);
+		tcm.getColumn(2).setPreferredWidth(200);
+		tcm.getColumn(3).setPreferredWidth(250);
+		tcm.getColumn(4).setPreferredWidth(250);
+	}
+
+	/**
+	 * Set the differences to be displayed.
+	 * @param list the differences, or null to clear the table.
+	 */
+	public void setDifferences(List<HeaderDiff.Difference> list) {
+		model.setDifferences(list);
+	}
+
+	//The table of differences
+	class DiffTableModel extends AbstractTableModel {
+		final String[] columnNames = { "", "Element", "Name", "Original", "Modified" };
+		final String[] types = { "Added", "Removed", "Changed" };
+		HeaderDiff.Difference[] rows = new HeaderDiff.Difference[0];
+
+		public void setDifferences(List<HeaderDiff.Difference> list) {
+			if (list == null) rows = new HeaderDiff.Difference[0];
+			else rows = list.toArray(new HeaderDiff.Difference[list.size()]);
+			fireTableDataChanged();
+		}
+		public HeaderDiff.Difference getDifference(int row) {
+			return rows[row];
+		}
+		public int getRowCount() {
+			return rows.length;
+		}
+		public int getColumnCount() {
+			return columnNames.length;
+		}
+		public String getColumnName(int col) {
+			return columnNames[col];
+		}
+		public Object getValueAt(int row, int col) {
+			HeaderDiff.Difference d = rows[row];
+			switch (col) {
+				case 0: return types[d.type];
+				case 1: return d.path;
+				case 2: return d.getName();
+				case 3: return d.oldValue;
+				default: return d.newValue;
+			}
+		}
+	}
+
+	//A renderer that colors rows by the type of difference
+	class DiffRenderer extends DefaultTableCellRenderer {
+		final Color[] colors = {
+			new Color(0xdd, 0xff, 0xdd),
+			new Color(0xff, 0xdd, 0xdd),
+			new Color(0xff, 0xff, 0xcc)
+		};
+		public Component getTableCellRendererComponent(
+				JTable table, Object value, boolean isSelected,
+				boolean hasFocus, int row, int col) {
+			Component c = super.getTableCellRendererComponent(
+							table, value, isSelected, hasFocus, row, col);
+			if (!isSelected) c.setBackground(colors[model.getDifference(row).type]);
+			return c;
+		}
+	}
+
+}
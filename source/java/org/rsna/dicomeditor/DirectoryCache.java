@@ -0,0 +1,51 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache of the directories that exist in an output tree. The objects
+ * of a batch are written to a few directories, so each directory is
+ * created, or found to exist, once; after that, writing a file into it
+ * requires no file system calls to check it. The cache is safe for use
+ * by any number of threads.
+ */
+public class DirectoryCache {
+
+	final ConcurrentHashMap<String,Boolean> dirs = new ConcurrentHashMap<String,Boolean>();
+	final AtomicInteger created = new AtomicInteger();
+
+	/**
+	 * Make sure that a directory exists, creating it and any missing
+	 * parents if it has not been seen before.
+	 * @param dir the directory.
+	 * @return the directory.
+	 * @throws IOException if the directory cannot be created.
+	 */
+	public File mkdirs(File dir) throws IOException {
+		String key = dir.getAbsolutePath();
+		if (dirs.containsKey(key)) return dir;
+		if (dir.mkdirs()) created.incrementAndGet();
+		else if (!dir.isDirectory()) throw new IOException("Unable to create "+dir);
+		dirs.put(key, Boolean.TRUE);
+		return dir;
+	}
+
+	/**
+	 * Get the number of directories created through the cache.
+	 * @return the number of directories created.
+	 */
+	public int getCreated() {
+		return created.get();
+	}
+
+}
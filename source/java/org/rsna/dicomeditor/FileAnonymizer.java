@@ -0,0 +1,598 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.UIDs;
+import org.dcm4che.dict.VRs;
+import org.rsna.ctp.objects.PrivateTagIndex;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerContext;
+import org.rsna.util.FileUtil;
+
+/**
+ * Anonymizes DICOM files with a CompiledScript. The file handling is that
+ * of the DICOMAnonymizer: the header is parsed up to the pixel data, the
+ * modified header is written to a temporary file in the output directory,
+ * the pixel data and any elements that follow it are copied from the
+ * input, and the temporary file is then renamed. The difference is that
+ * the script is compiled once for all the files in a batch, so the same
+ * FileAnonymizer can be used by any number of threads at once.
+ * <p>
+ * In the pixel passthrough mode, which is the default, when the pixel
+ * data is the last element of the file and its bytes do not have to be
+ * swapped, the pixel data is copied from the input file to the output
+ * file with FileChannel.transferTo, so only the header is rewritten and
+ * the pixels never pass through the heap.
+ * <p>
+ * When the file has not been read into memory, only the header is held
+ * in memory: the pixel data and the elements that follow it are streamed
+ * through a fixed buffer, including values of 2GB or more, so the memory
+ * used does not depend on the size of the file, and multi-frame files
+ * much larger than the heap can be anonymized.
+ */
+public class FileAnonymizer {
+
+	static final Logger logger = Logger.getLogger(FileAnonymizer.class);
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	static final int bufferSize = 4096;
+	static final String pixelsAltered = "The pixel data of the anonymized object differs from the original";
+
+	CompiledScript script;
+	Properties lkup;
+	IntegerStore integers;
+	boolean forceIVRLE;
+	boolean renameToSOPIUID;
+	PHIVerifier verifier = null;
+	boolean pixelPassthrough = true;
+	DirectoryCache hierarchy = null;
+	Manifest manifest = null;
+	PixelChecker pixelChecker = null;
+	final AtomicInteger transfers = new AtomicInteger();
+
+	/**
+	 * Create a FileAnonymizer.
+	 * @param script the compiled script.
+	 * @param lkup the lookup table, or null.
+	 * @param integers the store for the @integer function, or null.
+	 * @param forceIVRLE true if the output is to be written in implicit
+	 * VR little endian when the pixel data is not encapsulated.
+	 * @param renameToSOPIUID true if the output file is to be renamed
+	 * to the SOPInstanceUID of the anonymized object.
+	 */
+	public FileAnonymizer(CompiledScript script, Properties lkup, IntegerStore integers,
+						  boolean forceIVRLE, boolean renameToSOPIUID) {
+		this.script = script;
+		this.lkup = lkup;
+		this.integers = integers;
+		this.forceIVRLE = forceIVRLE;
+		this.renameToSOPIUID = renameToSOPIUID;
+	}
+
+	/**
+	 * Set the verifier that scans each anonymized object for values
+	 * of the original object.
+	 * @param verifier the verifier, or null to disable verification.
+	 */
+	public void setVerifier(PHIVerifier verifier) {
+		this.verifier = verifier;
+	}
+
+	/**
+	 * Enable or disable the pixel passthrough mode.
+	 * @param pixelPassthrough true if pixel data that needs no changes
+	 * is to be copied with a channel transfer.
+	 */
+	public void setPixelPassthrough(boolean pixelPassthrough) {
+		this.pixelPassthrough = pixelPassthrough;
+	}
+
+	/**
+	 * Enable or disable the sorting of the output files into a hierarchy
+	 * of PatientID, StudyInstanceUID and SeriesInstanceUID directories
+	 * under the directory of the output file, using the values of the
+	 * anonymized object.
+	 * @param hierarchy the cache through which the directories are
+	 * created, or null to write the output files where they are given.
+	 */
+	public void setHierarchy(DirectoryCache hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Set the manifest to which an entry is added for each output file,
+	 * with a digest computed while the file is written. The pixel data is
+	 * then copied through the digest rather than transferred between the
+	 * file channels, unless the file was read into memory.
+	 * @param manifest the manifest, or null if none is to be written.
+	 */
+	public void setManifest(Manifest manifest) {
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Set the checker that compares the pixel data of each anonymized
+	 * object with that of the original. The pixel data of a file that
+	 * has not been read into memory is then copied through a digest
+	 * rather than transferred between the file channels.
+	 * @param pixelChecker the checker, or null to disable the check.
+	 */
+	public void setPixelChecker(PixelChecker pixelChecker) {
+		this.pixelChecker = pixelChecker;
+	}
+
+	/**
+	 * Get the number of files whose pixel data has been transferred
+	 * between the file channels in the pixel passthrough mode.
+	 * @return the number of files.
+	 */
+	public int getTransferCount() {
+		return transfers.get();
+	}
+
+	/**
+	 * Anonymize a file.
+	 * @param inFile the file to anonymize.
+	 * @param outFile the output file. It may be the same as the input file.
+	 * @return the status of the anonymization, as returned by the
+	 * DICOMAnonymizer: OK, SKIP or QUARANTINE.
+	 */
+	public AnonymizerStatus anonymize(File inFile, File outFile) {
+		return anonymize(inFile, outFile, null);
+	}
+
+	/**
+	 * Anonymize a file and, if a verifier has been set, verify the result.
+	 * @param inFile the file to anonymize.
+	 * @param outFile the output file. It may be the same as the input file.
+	 * @param residuals the list to receive the descriptions of any values
+	 * of the original object found by the verifier, or null.
+	 * @return the status of the anonymization, as returned by the
+	 * DICOMAnonymizer: OK, SKIP or QUARANTINE.
+	 */
+	public AnonymizerStatus anonymize(File inFile, File outFile, List<String> residuals) {
+		return anonymize(inFile, null, outFile, residuals);
+	}
+
+	/**
+	 * Anonymize a file whose contents may already have been read into
+	 * memory, and, if a verifier has been set, verify the result. When the
+	 * contents are supplied, the input file is not read at all, so the
+	 * reads and writes of a batch can be done by different threads.
+	 * @param inFile the file to anonymize.
+	 * @param data the contents of the file, or null if the file is to be read.
+	 * @param outFile the output file. It may be the same as the input file.
+	 * @param residuals the list to receive the descriptions of any values
+	 * of the original object found by the verifier, or null.
+	 * @return the status of the anonymization, as returned by the
+	 * DICOMAnonymizer: OK, SKIP or QUARANTINE.
+	 */
+	public AnonymizerStatus anonymize(File inFile, byte[] data, File outFile, List<String> residuals) {
+		FileOutputStream fos = null;
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile("DCMtemp-", ".anon", outFile.getAbsoluteFile().getParentFile());
+			fos = new FileOutputStream(tempFile);
+			MessageDigest md = (manifest != null) ? Manifest.getDigest() : null;
+			Anonymized result = write(inFile, data, (md != null) ? new DigestOutputStream(fos, md) : fos);
+			fos.close();
+			fos = null;
+
+			//Check the pixels before the output replaces anything.
+			if ((result.pixelHash != null) && !pixelChecker.check(result.pixelHash, tempFile)) {
+				tempFile.delete();
+				return AnonymizerStatus.QUARANTINE(inFile, pixelsAltered);
+			}
+
+			File dir = outFile.getAbsoluteFile().getParentFile();
+			if (hierarchy != null) dir = hierarchy.mkdirs(new File(dir, result.path));
+			outFile = new File(dir, renameToSOPIUID ? result.sopiuid+".dcm" : outFile.getName());
+			if (outFile.exists() && !outFile.delete()) throw new IOException("Unable to delete " + outFile);
+			if (!tempFile.renameTo(outFile)) throw new IOException("Unable to rename "+tempFile+" to "+outFile);
+			if (md != null) manifest.add(outFile, outFile.length(), md.digest());
+
+			if (verifier != null) {
+				List<String> hits = verifier.verify(result.context, outFile);
+				if (residuals != null) residuals.addAll(hits);
+			}
+			return AnonymizerStatus.OK(outFile, result.exceptions);
+		}
+		catch (Exception e) {
+			FileUtil.close(fos);
+			if (tempFile != null) FileUtil.deleteAll(tempFile);
+			return getStatus(inFile, e);
+		}
+	}
+
+	/**
+	 * Anonymize an object, writing the result to a buffer in memory, as
+	 * is done for the entries of an archive, and, if a verifier has been
+	 * set, verify the result.
+	 * @param inFile the file containing the object, or, if the contents
+	 * are supplied, the name of the object.
+	 * @param data the contents of the object, or null if the file is to be read.
+	 * @param out the buffer to receive the anonymized object.
+	 * @param residuals the list to receive the descriptions of any values
+	 * of the original object found by the verifier, or null.
+	 * @return the status of the anonymization: OK, SKIP or QUARANTINE.
+	 * For OK, the file of the status is the name of the anonymized object,
+	 * which is the name of the input unless the output is to be renamed to
+	 * the SOPInstanceUID, placed in the hierarchy of the object if one
+	 * has been enabled.
+	 */
+	public AnonymizerStatus anonymize(File inFile, byte[] data, ByteArrayOutputStream out,
+									  List<String> residuals) {
+		try {
+			Anonymized result = write(inFile, data, out);
+			File dir = inFile.getParentFile();
+			if (hierarchy != null) dir = new File(dir, result.path);
+			File outFile = new File(dir, renameToSOPIUID ? result.sopiuid+".dcm" : inFile.getName());
+			if ((result.pixelHash != null) && !pixelChecker.check(result.pixelHash, out.toByteArray())) {
+				out.reset();
+				return AnonymizerStatus.QUARANTINE(inFile, pixelsAltered);
+			}
+			if (verifier != null) {
+				List<String> hits = verifier.verify(result.context, out.toByteArray());
+				if (residuals != null) residuals.addAll(hits);
+			}
+			return AnonymizerStatus.OK(outFile, result.exceptions);
+		}
+		catch (Exception e) {
+			out.reset();
+			return getStatus(inFile, e);
+		}
+	}
+
+	//Get the status of an anonymization that failed.
+	private static AnonymizerStatus getStatus(File inFile, Exception e) {
+		String msg = e.getMessage();
+		if (msg == null) {
+			msg = "!error! - no message";
+			logger.info("Error call from "+inFile, e);
+			return AnonymizerStatus.QUARANTINE(inFile, msg);
+		}
+		if (msg.contains("!skip!")) return AnonymizerStatus.SKIP(inFile, msg);
+		if (msg.contains("!quarantine!")) {
+			logger.info("Quarantine call from "+inFile);
+			logger.info("...Message: "+msg);
+			return AnonymizerStatus.QUARANTINE(inFile, msg);
+		}
+		logger.info("Unknown exception from "+inFile, e);
+		return AnonymizerStatus.QUARANTINE(inFile, msg);
+	}
+
+	//Anonymize an object and write it to a stream. When the stream is a
+	//file, pixel data in the passthrough mode is transferred to its channel.
+	private Anonymized write(File inFile, byte[] data, OutputStream os) throws Exception {
+		InputStream in = null;
+		byte[] buffer = new byte[bufferSize];
+		try {
+			//Parse the original header up to the pixel data.
+			in = open(inFile, data);
+			DcmParser parser = pFact.newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			Dataset inDS = oFact.newDataset();
+			parser.setDcmHandler(inDS.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.PixelData);
+			in.close();
+
+			//Parse it again for the output, leaving the parser
+			//positioned at the pixel data.
+			in = open(inFile, data);
+			parser = pFact.newDcmParser(in);
+			fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new IOException("Unrecognized file format: "+inFile);
+			Dataset outDS = oFact.newDataset();
+			parser.setDcmHandler(outDS.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.PixelData);
+
+			if (outDS.getSpecificCharacterSet() == null) {
+				inDS.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
+				outDS.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
+			}
+
+			Anonymized result = new Anonymized();
+			DICOMAnonymizerContext context = script.getContext(lkup, integers, inDS, outDS);
+			result.context = context;
+			result.exceptions = DatasetAnonymizer.anonymize(script, context);
+
+			BufferedOutputStream out = new BufferedOutputStream(os);
+
+			try { result.sopiuid = outDS.getString(Tags.SOPInstanceUID).trim(); }
+			catch (Exception ex) { logger.warn("Unable to get the SOPInstanceUID."); }
+			if (hierarchy != null) result.path = getHierarchyPath(outDS);
+
+			//Select the transfer syntax.
+			DcmDecodeParam fileParam = parser.getDcmDecodeParam();
+			String prefEncodingUID = UIDs.ExplicitVRLittleEndian;
+			FileMetaInfo fmi = outDS.getFileMetaInfo();
+			if ((fmi != null) && (fileParam.encapsulated || !forceIVRLE)) {
+				prefEncodingUID = fmi.getTransferSyntaxUID();
+			}
+			else if (forceIVRLE) prefEncodingUID = UIDs.ImplicitVRLittleEndian;
+			DcmEncodeParam encoding = (DcmEncodeParam)DcmDecodeParam.valueOf(prefEncodingUID);
+			boolean swap = fileParam.byteOrder != encoding.byteOrder;
+
+			//Write the header.
+			fmi = oFact.newFileMetaInfo(outDS, prefEncodingUID);
+			outDS.setFileMetaInfo(fmi);
+			fmi.write(out);
+			outDS.writeDataset(out, encoding);
+
+			//Copy the pixels, if the parser stopped at them, hashing
+			//their value as it is written if they are to be checked.
+			long fileLength = (data != null) ? data.length : inFile.length();
+			boolean transferred = false;
+			if (parser.getReadTag() == Tags.PixelData) {
+				int len = parser.getReadLength();
+				outDS.writeHeader(out, encoding, parser.getReadTag(), parser.getReadVR(), len);
+				long valueStart = parser.getStreamPosition();
+				MessageDigest pixelDigest = (pixelChecker != null) ? pixelChecker.getDigest() : null;
+				OutputStream pixelOut = (pixelDigest != null) ? new DigestOutputStream(out, pixelDigest) : out;
+				if (pixelPassthrough && !swap
+						&& ((data != null) || (os instanceof FileOutputStream))
+						&& ((pixelDigest == null) || ((data != null) && (len != -1)))
+						&& (getPixelDataEnd(inFile, data, valueStart, len) == fileLength)) {
+					out.flush();
+					if (pixelDigest != null) pixelDigest.update(data, (int)valueStart, len);
+					if (data != null) os.write(data, (int)valueStart, (int)(fileLength - valueStart));
+					else {
+						transfer(inFile, valueStart, fileLength - valueStart, ((FileOutputStream)os).getChannel());
+						transfers.incrementAndGet();
+					}
+					transferred = true;
+				}
+				else if (encoding.encapsulated) {
+					parser.parseHeader();
+					while (parser.getReadTag() == Tags.Item) {
+						outDS.writeHeader(out, encoding,
+							parser.getReadTag(), parser.getReadVR(), parser.getReadLength());
+						writeValueTo(parser, buffer, pixelOut, false);
+						parser.parseHeader();
+					}
+					if (parser.getReadTag() != Tags.SeqDelimitationItem) {
+						throw new Exception("Unexpected Tag: " + Tags.toString(parser.getReadTag()));
+					}
+					if (parser.getReadLength() != 0) {
+						throw new Exception("(fffe,e0dd), Length:" + parser.getReadLength());
+					}
+					outDS.writeHeader(out, encoding, Tags.SeqDelimitationItem, VRs.NONE, 0);
+				}
+				else {
+					writeValueTo(parser, buffer, pixelOut, swap && (parser.getReadVR() == VRs.OW));
+				}
+				if (pixelDigest != null) result.pixelHash = pixelDigest.digest();
+				parser.parseHeader();
+			}
+
+			if (!transferred) {
+				copyPostPixelElements(fileLength, parser, context, outDS, encoding, swap, buffer, out);
+			}
+			out.flush();
+			return result;
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	//The result of writing an anonymized object.
+	static class Anonymized {
+		DICOMAnonymizerContext context;
+		String exceptions = "";
+		String sopiuid = "1";
+		String path = "";
+		byte[] pixelHash = null;
+	}
+
+	//Get the relative path of the directory of an anonymized object in
+	//the PatientID/StudyInstanceUID/SeriesInstanceUID hierarchy.
+	static String getHierarchyPath(Dataset ds) {
+		return getPathElement(ds, Tags.PatientID)
+				+ File.separator + getPathElement(ds, Tags.StudyInstanceUID)
+				+ File.separator + getPathElement(ds, Tags.SeriesInstanceUID);
+	}
+
+	//Get the value of an element as a directory name, replacing
+	//characters that are not safe in a file name.
+	private static String getPathElement(Dataset ds, int tag) {
+		String value = null;
+		try { value = ds.getString(tag); }
+		catch (Exception ex) { }
+		value = (value != null) ? value.trim() : "";
+		if (value.equals("")) return "unknown";
+		value = value.replaceAll("[^A-Za-z0-9._-]", "_");
+		if (value.matches("\\.+")) value = "_" + value;
+		return value;
+	}
+
+	//Copy the elements that follow the pixel data, applying the
+	//remove rules and the @remove() scripts, as the DICOMAnonymizer does.
+	private void copyPostPixelElements(long fileLength, DcmParser parser,
+				DICOMAnonymizerContext context, Dataset outDS,
+				DcmEncodeParam encoding, boolean swap, byte[] buffer,
+				OutputStream out) throws Exception {
+		boolean rpg = script.is(CompiledScript.REMOVE_PRIVATE_GROUPS);
+		boolean rue = script.is(CompiledScript.REMOVE_UNSPECIFIED_ELEMENTS);
+		boolean kspe = script.is(CompiledScript.KEEP_SAFE_PRIVATE_ELEMENTS);
+		PrivateTagIndex ptIndex = PrivateTagIndex.getInstance();
+		Hashtable<Integer,String> creators = new Hashtable<Integer,String>();
+		int currentGroup = 0;
+		boolean isFirst = true;
+		while (!parser.hasSeenEOF()
+					&& (parser.getStreamPosition() < fileLength)
+					&& (isFirst || (parser.parseHeader() != -1))) {
+			int tag = parser.getReadTag();
+			if ((tag == -1) || (tag == 0xFFFAFFFA) || (tag == 0xFFFCFFFC)) break;
+			isFirst = false;
+			int len = parser.getReadLength();
+			int group = (tag >> 16) & 0xFFFF;
+			boolean isPrivate = ((tag & 0x10000) != 0);
+			boolean isPrivateCreator = ((tag & 0xFF00) == 0);
+			if (isPrivate && isPrivateCreator) {
+				if (currentGroup != group) {
+					creators = new Hashtable<Integer,String>();
+					currentGroup = group;
+				}
+				byte[] value = readValue(parser, len);
+				creators.put(group, new String(value).trim());
+				if (!rpg || kspe) {
+					outDS.writeHeader(out, encoding, tag, parser.getReadVR(), len);
+					out.write(value);
+				}
+			}
+			else {
+				String elementScript = context.getScriptFor(tag);
+				boolean isSafe = false;
+				if (isPrivate) {
+					String creator = creators.get(group);
+					String code = ptIndex.getCode(group, creator, tag & 0xFF).trim();
+					isSafe = (creator != null) && code.equals("K");
+				}
+				if ((isPrivate && rpg && (!kspe || !isSafe))
+						|| ((elementScript == null) && rue)
+						|| ((elementScript != null) && elementScript.startsWith("@remove()"))) {
+					skipValue(parser, buffer);
+				}
+				else {
+					outDS.writeHeader(out, encoding, tag, parser.getReadVR(), len);
+					writeValueTo(parser, buffer, out, swap);
+				}
+			}
+		}
+	}
+
+	//Open the input, from memory if its contents have been read.
+	static InputStream open(File file, byte[] data) throws IOException {
+		if (data != null) return new ByteArrayInputStream(data);
+		return new BufferedInputStream(new FileInputStream(file));
+	}
+
+	//Get the position of the end of the pixel data, or -1 if it cannot
+	//be determined. The value of encapsulated pixel data, which has an
+	//undefined length, is a sequence of items, which are skipped.
+	static long getPixelDataEnd(File file, byte[] data, long valueStart, int len) throws IOException {
+		if (len != -1) return valueStart + (len & 0xFFFFFFFFL);
+		if (data != null) {
+			ByteBuffer bb = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+			long p = valueStart;
+			while (p + 8 <= data.length) {
+				int i = (int)p;
+				int tag = ((bb.getShort(i) & 0xFFFF) << 16) | (bb.getShort(i+2) & 0xFFFF);
+				long itemLength = bb.getInt(i+4) & 0xFFFFFFFFL;
+				if (tag == Tags.Item) p += 8 + itemLength;
+				else if (tag == Tags.SeqDelimitationItem) return p + 8;
+				else return -1;
+			}
+			return -1;
+		}
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			long p = valueStart;
+			while (true) {
+				header.clear();
+				while (header.hasRemaining()) {
+					if (channel.read(header, p + header.position()) == -1) return -1;
+				}
+				int tag = ((header.getShort(0) & 0xFFFF) << 16) | (header.getShort(2) & 0xFFFF);
+				long itemLength = header.getInt(4) & 0xFFFFFFFFL;
+				if (tag == Tags.Item) p += 8 + itemLength;
+				else if (tag == Tags.SeqDelimitationItem) return p + 8;
+				else return -1;
+			}
+		}
+		finally { fis.close(); }
+	}
+
+	//Copy a range of a file to a channel.
+	static void transfer(File file, long position, long count, FileChannel out)
+																throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel in = fis.getChannel();
+			while (count > 0) {
+				long n = in.transferTo(position, count, out);
+				if (n <= 0) throw new EOFException("EOF while transferring the pixel data");
+				position += n;
+				count -= n;
+			}
+		}
+		finally { fis.close(); }
+	}
+
+	private static byte[] readValue(DcmParser parser, int len) throws IOException {
+		byte[] value = new byte[len];
+		InputStream in = parser.getInputStream();
+		int n = 0;
+		while (n < len) {
+			int k = in.read(value, n, len - n);
+			if (k == -1) throw new EOFException("EOF while reading element value");
+			n += k;
+		}
+		return value;
+	}
+
+	//Skip the value of the current element, reading it through the
+	//buffer so that the memory used does not depend on its length.
+	private static void skipValue(DcmParser parser, byte[] buffer) throws IOException {
+		if (parser.getReadLength() == -1) return;
+		InputStream in = parser.getInputStream();
+		long remain = parser.getReadLength() & 0xFFFFFFFFL;
+		while (remain > 0) {
+			int c = in.read(buffer, 0, (int)Math.min(buffer.length, remain));
+			if (c == -1) throw new EOFException("EOF while skipping element value");
+			remain -= c;
+		}
+	}
+
+	//Copy the value of the current element, swapping bytes if necessary.
+	//The length is unsigned, so values of 2GB or more, like the pixel
+	//data of large multi-frame objects, are copied in full.
+	static void writeValueTo(DcmParser parser, byte[] buffer,
+									 OutputStream out, boolean swap) throws Exception {
+		if (parser.getReadLength() == -1) return;
+		InputStream in = parser.getInputStream();
+		long len = parser.getReadLength() & 0xFFFFFFFFL;
+		if (swap && ((len & 1) != 0)) {
+			throw new Exception("Illegal length for swapping value bytes: " + len);
+		}
+		long remain = len;
+		while (remain > 0) {
+			int c = in.read(buffer, 0, (int)Math.min(buffer.length, remain));
+			if (c == -1) {
+				logger.warn("Unable to read element " + Integer.toHexString(parser.getReadTag()));
+				logger.warn("...remain = " + remain);
+				throw new EOFException("EOF while reading element value");
+			}
+			if (swap) {
+				if ((c & 1) != 0) buffer[c++] = (byte)in.read();
+				for (int i=0; i<c; i+=2) {
+					byte b = buffer[i];
+					buffer[i] = buffer[i+1];
+					buffer[i+1] = b;
+				}
+			}
+			out.write(buffer, 0, c);
+			remain -= c;
+		}
+	}
+
+}
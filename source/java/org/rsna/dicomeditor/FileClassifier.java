@@ -0,0 +1,227 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Classifies files from their first bytes, so the files of a batch can be
+ * routed to the right operation, or skipped, without attempting a full
+ * parse. Only the first few hundred bytes of a file are read, into a
+ * buffer that is reused for every file classified by the same thread.
+ * <p>
+ * A FileClassifier counts the files of each type it classifies, and can
+ * be shared by any number of threads.
+ */
+public class FileClassifier {
+
+	/** The types of file. */
+	public static final int PART10 = 0;
+	public static final int DICOMDIR = 1;
+	public static final int DATASET = 2;
+	public static final int XML = 3;
+	public static final int OTHER = 4;
+
+	static final String[] names = { "Part 10", "DICOMDIR", "raw dataset", "XML", "other" };
+
+	static final int sniffLength = 512;
+	static final String dicomdirClass = "1.2.840.10008.1.3.10";
+
+	//The buffers, one per thread.
+	static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[sniffLength];
+		}
+	};
+
+	final AtomicIntegerArray counts = new AtomicIntegerArray(names.length);
+
+	/**
+	 * Classify a file.
+	 * @param file the file.
+	 * @return the type of the file, or OTHER if it cannot be read.
+	 */
+	public int classify(File file) {
+		byte[] b = buffers.get();
+		int n = 0;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int k;
+			while ((n < b.length) && ((k = in.read(b, n, b.length - n)) != -1)) n += k;
+		}
+		catch (IOException ex) { return count(OTHER); }
+		finally {
+			if (in != null) {
+				try { in.close(); }
+				catch (IOException ignore) { }
+			}
+		}
+		return count(classify(b, n, file.length()));
+	}
+
+	/**
+	 * Classify the contents of a file that has already been read.
+	 * @param data the contents of the file.
+	 * @return the type of the file.
+	 */
+	public int classify(byte[] data) {
+		return count(classify(data, Math.min(data.length, sniffLength), data.length));
+	}
+
+	/**
+	 * Get the number of files of a type that have been classified.
+	 * @param type the type.
+	 * @return the number of files.
+	 */
+	public int getCount(int type) {
+		return counts.get(type);
+	}
+
+	/**
+	 * Get the name of a type.
+	 * @param type the type.
+	 * @return the name.
+	 */
+	public static String getName(int type) {
+		return names[type];
+	}
+
+	/**
+	 * Get the counts of the types, for the summary of a batch.
+	 * @return the counts of the types of the files classified.
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<names.length; i++) {
+			if (i > 0) sb.append("; ");
+			sb.append(names[i] + ": " + counts.get(i));
+		}
+		return sb.toString();
+	}
+
+	private int count(int type) {
+		counts.incrementAndGet(type);
+		return type;
+	}
+
+	//Classify the first n bytes of a file.
+	static int classify(byte[] b, int n, long length) {
+		if ((n >= 132) && (b[128] == 'D') && (b[129] == 'I') && (b[130] == 'C') && (b[131] == 'M')) {
+			return getPart10Type(b, n, length);
+		}
+		if (isXML(b, n)) return XML;
+		if (isDataset(b, n, length)) return DATASET;
+		return OTHER;
+	}
+
+	//Find the MediaStorageSOPClassUID in the explicit VR little endian
+	//file meta information and check whether it is that of a DICOMDIR.
+	//An element whose length is undefined or runs past the end of the
+	//file means that the file meta information is corrupt.
+	private static int getPart10Type(byte[] b, int n, long length) {
+		long p = 132;
+		while (p + 8 <= n) {
+			int q = (int)p;
+			int group = getShort(b, q);
+			int element = getShort(b, q + 2);
+			if (group != 2) return PART10;
+			long len;
+			if (hasLongLength(b[q+4], b[q+5])) {
+				if (p + 12 > n) return PART10;
+				len = getInt(b, q + 8);
+				p += 12;
+			}
+			else {
+				len = getShort(b, q + 6);
+				p += 8;
+			}
+			if ((len == 0xFFFFFFFFL) || (len > length - p)) return OTHER;
+			if (len > n - p) return PART10;
+			if (element == 2) {
+				boolean dicomdir = new String(b, (int)p, (int)len).trim().equals(dicomdirClass);
+				return dicomdir ? DICOMDIR : PART10;
+			}
+			p += len;
+		}
+		return PART10;
+	}
+
+	//Check whether the bytes start with an XML declaration or element,
+	//after an optional byte order mark and white space.
+	private static boolean isXML(byte[] b, int n) {
+		int p = 0;
+		if ((n >= 3) && ((b[0] & 0xFF) == 0xEF) && ((b[1] & 0xFF) == 0xBB) && ((b[2] & 0xFF) == 0xBF)) p = 3;
+		while ((p < n) && Character.isWhitespace((char)b[p])) p++;
+		if ((p + 1 >= n) || (b[p] != '<')) return false;
+		char c = (char)b[p+1];
+		return (c == '?') || (c == '!') || Character.isLetter(c);
+	}
+
+	//Check whether the bytes are the start of a little endian dataset
+	//with no preamble, in implicit or explicit VR: the elements must be in
+	//increasing order of their tags, starting in one of the groups that
+	//begin such datasets, and their lengths must fit in the file.
+	private static boolean isDataset(byte[] b, int n, long length) {
+		long p = 0;
+		long lastTag = -1;
+		int elements = 0;
+		while (p + 8 <= n) {
+			int q = (int)p;
+			int group = getShort(b, q);
+			int element = getShort(b, q + 2);
+			long tag = ((long)group << 16) | element;
+			if ((elements == 0) && ((group < 2) || (group > 8))) return false;
+			if (tag <= lastTag) return false;
+			long len;
+			if (isVR(b[q+4], b[q+5])) {
+				if (hasLongLength(b[q+4], b[q+5])) {
+					if (p + 12 > n) break;
+					len = getInt(b, q + 8);
+					p += 12;
+				}
+				else {
+					len = getShort(b, q + 6);
+					p += 8;
+				}
+			}
+			else {
+				len = getInt(b, q + 4);
+				p += 8;
+			}
+			elements++;
+			if (len == 0xFFFFFFFFL) break;
+			if (len > length - p) return false;
+			p += len;
+			lastTag = tag;
+		}
+		return (elements > 1) || ((elements == 1) && (p >= length));
+	}
+
+	private static boolean isVR(byte a, byte b) {
+		return (a >= 'A') && (a <= 'Z') && (b >= 'A') && (b <= 'Z');
+	}
+
+	//The VRs whose explicit VR headers have a reserved field and a four-byte length.
+	private static boolean hasLongLength(byte a, byte b) {
+		return ((a == 'O') && ((b == 'B') || (b == 'W') || (b == 'F') || (b == 'D') || (b == 'L') || (b == 'V')))
+				|| ((a == 'S') && (b == 'Q'))
+				|| ((a == 'U') && ((b == 'T') || (b == 'N') || (b == 'C') || (b == 'R')));
+	}
+
+	private static int getShort(byte[] b, int p) {
+		return (b[p] & 0xFF) | ((b[p+1] & 0xFF) << 8);
+	}
+
+	private static long getInt(byte[] b, int p) {
+		return ((b[p] & 0xFF) | ((b[p+1] & 0xFF) << 8) | ((b[p+2] & 0xFF) << 16))
+					| ((long)(b[p+3] & 0xFF) << 24);
+	}
+
+}
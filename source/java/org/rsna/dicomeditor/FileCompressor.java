@@ -0,0 +1,193 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.UIDs;
+import org.dcm4che.dict.VRs;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.util.FileUtil;
+
+/**
+ * Compresses the native pixel data of DICOM files to RLE Lossless.
+ * <p>
+ * The pixel data is read, encoded and written one frame at a time, so
+ * only one frame of a multiframe object is in memory. Each encoded frame
+ * is decoded and compared with the original frame before it is written,
+ * and the file is only replaced if every frame decodes to exactly the
+ * original bytes and the compressed file is smaller than the original.
+ * The same FileCompressor can be used by any number of threads at once.
+ */
+public class FileCompressor {
+
+	static final Logger logger = Logger.getLogger(FileCompressor.class);
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	static final String tsuid = UIDs.RLELossless;
+
+	final AtomicInteger compressed = new AtomicInteger();
+	final AtomicInteger skipped = new AtomicInteger();
+	final AtomicLong bytesIn = new AtomicLong();
+	final AtomicLong bytesOut = new AtomicLong();
+	final AtomicLong nanos = new AtomicLong();
+
+	/**
+	 * Compress a file.
+	 * @param inFile the file to compress.
+	 * @param data the contents of the file, or null if the file is to be read.
+	 * @param outFile the output file. It may be the same as the input file.
+	 * @return the status of the compression: OK, with the compression
+	 * ratio and throughput as the message; SKIP if the file has no native
+	 * pixel data that RLE can encode, or would not be made smaller; or
+	 * QUARANTINE if the file cannot be compressed or does not verify.
+	 */
+	public AnonymizerStatus compress(File inFile, byte[] data, File outFile) {
+		long startTime = System.nanoTime();
+		InputStream in = null;
+		BufferedOutputStream out = null;
+		File tempFile = null;
+		try {
+			in = FileAnonymizer.open(inFile, data);
+			DcmParser parser = pFact.newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new IOException("Unrecognized file format: "+inFile);
+			Dataset ds = oFact.newDataset();
+			parser.setDcmHandler(ds.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.PixelData);
+			DcmDecodeParam fileParam = parser.getDcmDecodeParam();
+			if (fileParam.encapsulated) return skip(inFile, "already compressed");
+			if (parser.getReadTag() != Tags.PixelData) return skip(inFile, "no pixel data");
+
+			RLECodec codec;
+			try {
+				codec = new RLECodec(
+							ds.getInt(Tags.Rows, 0) * ds.getInt(Tags.Columns, 0),
+							ds.getInt(Tags.SamplesPerPixel, 1),
+							ds.getInt(Tags.BitsAllocated, 0),
+							(ds.getInt(Tags.PlanarConfiguration, 0) == 1),
+							(fileParam.byteOrder == ByteOrder.BIG_ENDIAN));
+			}
+			catch (IOException unsupported) { return skip(inFile, unsupported.getMessage()); }
+			int frames = Math.max(1, ds.getInt(Tags.NumberOfFrames, 1));
+			int frameLength = codec.getFrameLength();
+			long pixelLength = parser.getReadLength() & 0xFFFFFFFFL;
+			if ((long)frames * frameLength > pixelLength) {
+				throw new IOException("The pixel data is shorter than "+frames+" frames");
+			}
+
+			tempFile = File.createTempFile("DCMtemp-", ".rle", outFile.getAbsoluteFile().getParentFile());
+			out = new BufferedOutputStream(new FileOutputStream(tempFile), 65536);
+			DcmEncodeParam encoding = (DcmEncodeParam)DcmDecodeParam.valueOf(tsuid);
+			boolean swap = fileParam.byteOrder != encoding.byteOrder;
+
+			//Write the header.
+			FileMetaInfo fmi = oFact.newFileMetaInfo(ds, tsuid);
+			ds.setFileMetaInfo(fmi);
+			fmi.write(out);
+			ds.writeDataset(out, encoding);
+
+			//Write the frames as the items of the pixel data, after an
+			//empty offset table, verifying each one before it is written.
+			ds.writeHeader(out, encoding, Tags.PixelData, VRs.OB, -1);
+			ds.writeHeader(out, encoding, Tags.Item, VRs.NONE, 0);
+			DataInputStream pixels = new DataInputStream(parser.getInputStream());
+			byte[] frame = new byte[frameLength];
+			for (int i=0; i<frames; i++) {
+				pixels.readFully(frame);
+				int n = codec.encode(frame);
+				if (!codec.verify(codec.getEncoded(), n, frame)) {
+					throw new IOException("Frame "+(i+1)+" did not verify after RLE encoding");
+				}
+				ds.writeHeader(out, encoding, Tags.Item, VRs.NONE, n);
+				out.write(codec.getEncoded(), 0, n);
+			}
+			ds.writeHeader(out, encoding, Tags.SeqDelimitationItem, VRs.NONE, 0);
+			long rest = pixelLength - (long)frames * frameLength;
+			while (rest > 0) {
+				long k = pixels.skip(rest);
+				if (k <= 0) throw new EOFException("EOF while skipping the pixel data");
+				rest -= k;
+			}
+
+			//Copy any elements that follow the pixel data.
+			long fileLength = (data != null) ? data.length : inFile.length();
+			byte[] buffer = new byte[4096];
+			while (!parser.hasSeenEOF()
+					&& (parser.getStreamPosition() < fileLength)
+					&& (parser.parseHeader() != -1)) {
+				int tag = parser.getReadTag();
+				if ((tag == -1) || (tag == 0xFFFAFFFA) || (tag == 0xFFFCFFFC)) break;
+				ds.writeHeader(out, encoding, tag, parser.getReadVR(), parser.getReadLength());
+				FileAnonymizer.writeValueTo(parser, buffer, out, swap && (parser.getReadVR() == VRs.OW));
+			}
+			out.close();
+			out = null;
+			in.close();
+			in = null;
+
+			long outLength = tempFile.length();
+			if (outLength >= fileLength) {
+				tempFile.delete();
+				return skip(inFile, "not made smaller by RLE");
+			}
+			if (outFile.exists() && !outFile.delete()) throw new IOException("Unable to delete " + outFile);
+			if (!tempFile.renameTo(outFile)) throw new IOException("Unable to rename "+tempFile+" to "+outFile);
+
+			long elapsed = System.nanoTime() - startTime;
+			compressed.incrementAndGet();
+			bytesIn.addAndGet(fileLength);
+			bytesOut.addAndGet(outLength);
+			nanos.addAndGet(elapsed);
+			return AnonymizerStatus.OK(outFile, describe(fileLength, outLength, elapsed));
+		}
+		catch (Exception ex) {
+			FileUtil.close(in);
+			FileUtil.close(out);
+			if (tempFile != null) tempFile.delete();
+			logger.debug("Unable to compress "+inFile, ex);
+			String msg = ex.getMessage();
+			return AnonymizerStatus.QUARANTINE(inFile, (msg != null) ? msg : ex.toString());
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	private AnonymizerStatus skip(File file, String reason) {
+		skipped.incrementAndGet();
+		return AnonymizerStatus.SKIP(file, reason);
+	}
+
+	//Describe a compression by its ratio and throughput.
+	private static String describe(long in, long out, long nanos) {
+		double mbps = (nanos > 0) ? (in * 1000.0 / nanos) : 0.0;
+		return String.format("%.2f:1, %.1f MB/s", (double)in / out, mbps);
+	}
+
+	/**
+	 * Get a description of the files compressed, for the summary of a batch.
+	 * @return the numbers of files compressed and skipped, with the
+	 * overall compression ratio and the throughput per thread.
+	 */
+	public String toString() {
+		int n = compressed.get();
+		String s = n + " compressed";
+		if (n > 0) {
+			s += String.format(" (%.1f MB to %.1f MB, ", bytesIn.get() / 1048576.0, bytesOut.get() / 1048576.0)
+					+ describe(bytesIn.get(), bytesOut.get(), nanos.get()) + " per thread)";
+		}
+		return s + "; " + skipped.get() + " skipped";
+	}
+
+}
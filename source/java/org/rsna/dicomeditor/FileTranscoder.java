@@ -0,0 +1,186 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.UIDs;
+import org.dcm4che.dict.VRs;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.dicom.Transcoder;
+import org.rsna.util.FileUtil;
+
+/**
+ * Converts DICOM files to implicit or explicit VR little endian.
+ * <p>
+ * Files with native pixel data are converted in one streaming pass: the
+ * header is rewritten in the target syntax and the pixel data is copied,
+ * with its bytes swapped if the input is big endian, or transferred from
+ * the input file unchanged if it is not. Files with encapsulated pixel
+ * data are decompressed one frame at a time by the CTP Transcoder. The
+ * same FileTranscoder can be used by any number of threads at once.
+ */
+public class FileTranscoder {
+
+	static final Logger logger = Logger.getLogger(FileTranscoder.class);
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	/** The target syntaxes, and their names for the user interface. */
+	public static final String[] syntaxes = { UIDs.ExplicitVRLittleEndian, UIDs.ImplicitVRLittleEndian };
+	public static final String[] syntaxNames = { "Explicit VR LE", "Implicit VR LE" };
+
+	static final int bufferSize = 4096;
+
+	String tsuid;
+	final AtomicInteger converted = new AtomicInteger();
+	final AtomicInteger decompressed = new AtomicInteger();
+	final AtomicInteger unchanged = new AtomicInteger();
+
+	/**
+	 * Create a FileTranscoder.
+	 * @param tsuid the UID of the target transfer syntax, which must be
+	 * implicit or explicit VR little endian.
+	 */
+	public FileTranscoder(String tsuid) {
+		this.tsuid = tsuid;
+	}
+
+	/**
+	 * Convert a file to the target syntax.
+	 * @param inFile the file to convert.
+	 * @param data the contents of the file, or null if the file is to be read.
+	 * @param outFile the output file. It may be the same as the input file,
+	 * in which case a file that is already in the target syntax is left alone.
+	 * @return the status of the conversion: OK or QUARANTINE.
+	 */
+	public AnonymizerStatus transcode(File inFile, byte[] data, File outFile) {
+		InputStream in = null;
+		BufferedOutputStream out = null;
+		File tempFile = null;
+		try {
+			in = FileAnonymizer.open(inFile, data);
+			DcmParser parser = pFact.newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new IOException("Unrecognized file format: "+inFile);
+			Dataset ds = oFact.newDataset();
+			parser.setDcmHandler(ds.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.PixelData);
+			DcmDecodeParam fileParam = parser.getDcmDecodeParam();
+			FileMetaInfo fmi = ds.getFileMetaInfo();
+			File dir = outFile.getAbsoluteFile().getParentFile();
+
+			if (fileParam.encapsulated) {
+				in.close();
+				in = null;
+				tempFile = File.createTempFile("DCMtemp-", ".tc", dir);
+				Transcoder transcoder = new Transcoder();
+				transcoder.setTransferSyntax(tsuid);
+				AnonymizerStatus status = transcoder.transcode(inFile, tempFile);
+				if (!status.isOK()) {
+					tempFile.delete();
+					return AnonymizerStatus.QUARANTINE(inFile, status.getMessage());
+				}
+				rename(tempFile, outFile);
+				decompressed.incrementAndGet();
+				return AnonymizerStatus.OK(outFile, "");
+			}
+
+			if ((fmi != null) && tsuid.equals(fmi.getTransferSyntaxUID())
+					&& inFile.getAbsoluteFile().equals(outFile.getAbsoluteFile())) {
+				unchanged.incrementAndGet();
+				return AnonymizerStatus.OK(outFile, "");
+			}
+
+			tempFile = File.createTempFile("DCMtemp-", ".tc", dir);
+			FileOutputStream fos = new FileOutputStream(tempFile);
+			out = new BufferedOutputStream(fos);
+			DcmEncodeParam encoding = (DcmEncodeParam)DcmDecodeParam.valueOf(tsuid);
+			boolean swap = fileParam.byteOrder != encoding.byteOrder;
+
+			//Write the header.
+			fmi = oFact.newFileMetaInfo(ds, tsuid);
+			ds.setFileMetaInfo(fmi);
+			fmi.write(out);
+			ds.writeDataset(out, encoding);
+
+			//Copy the pixels and anything that follows them.
+			byte[] buffer = new byte[bufferSize];
+			long fileLength = (data != null) ? data.length : inFile.length();
+			if (parser.getReadTag() == Tags.PixelData) {
+				int vr = parser.getReadVR();
+				int len = parser.getReadLength();
+				ds.writeHeader(out, encoding, Tags.PixelData, vr, len);
+				long valueStart = parser.getStreamPosition();
+				if (!swap && (FileAnonymizer.getPixelDataEnd(inFile, data, valueStart, len) == fileLength)) {
+					out.flush();
+					if (data != null) fos.write(data, (int)valueStart, (int)(fileLength - valueStart));
+					else FileAnonymizer.transfer(inFile, valueStart, fileLength - valueStart, fos.getChannel());
+				}
+				else {
+					FileAnonymizer.writeValueTo(parser, buffer, out, swap && (vr == VRs.OW));
+					while (!parser.hasSeenEOF()
+							&& (parser.getStreamPosition() < fileLength)
+							&& (parser.parseHeader() != -1)) {
+						int tag = parser.getReadTag();
+						if ((tag == -1) || (tag == 0xFFFAFFFA) || (tag == 0xFFFCFFFC)) break;
+						ds.writeHeader(out, encoding, tag, parser.getReadVR(), parser.getReadLength());
+						FileAnonymizer.writeValueTo(parser, buffer, out, swap && (parser.getReadVR() == VRs.OW));
+					}
+				}
+			}
+			out.flush();
+			out.close();
+			out = null;
+			in.close();
+			in = null;
+			rename(tempFile, outFile);
+			converted.incrementAndGet();
+			return AnonymizerStatus.OK(outFile, "");
+		}
+		catch (Exception ex) {
+			FileUtil.close(in);
+			FileUtil.close(out);
+			if (tempFile != null) tempFile.delete();
+			logger.debug("Unable to transcode "+inFile, ex);
+			String msg = ex.getMessage();
+			return AnonymizerStatus.QUARANTINE(inFile, (msg != null) ? msg : ex.toString());
+		}
+	}
+
+	private static void rename(File tempFile, File outFile) throws IOException {
+		if (outFile.exists() && !outFile.delete()) throw new IOException("Unable to delete " + outFile);
+		if (!tempFile.renameTo(outFile)) throw new IOException("Unable to rename "+tempFile+" to "+outFile);
+	}
+
+	/**
+	 * Get the name of a target syntax.
+	 * @param tsuid the UID of the syntax.
+	 * @return the name, or the UID if it is not one of the target syntaxes.
+	 */
+	public static String getName(String tsuid) {
+		for (int i=0; i<syntaxes.length; i++) {
+			if (syntaxes[i].equals(tsuid)) return syntaxNames[i];
+		}
+		return tsuid;
+	}
+
+	/**
+	 * Get a description of the files converted, for the summary of a batch.
+	 * @return the numbers of files converted, decompressed and unchanged.
+	 */
+	public String toString() {
+		return converted.get() + " rewritten; " + decompressed.get() + " decompressed; "
+					+ unchanged.get() + " already " + getName(tsuid);
+	}
+
+}
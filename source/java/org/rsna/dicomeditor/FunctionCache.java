@@ -0,0 +1,130 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache of the results of deterministic script functions,
+ * safe for use by any number of threads. The entries are held in stripes
+ * selected by the hash of the key, each an access-ordered LinkedHashMap
+ * with its own lock, so threads rarely wait for one another. When a stripe
+ * is full, its least recently used entry is discarded; the results are
+ * only cached to save computation, so a discarded result is simply
+ * computed again the next time it is needed.
+ */
+public class FunctionCache {
+
+	static final int stripeCount = 16;
+
+	final int maxSize;
+	final Stripe[] stripes;
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Create a FunctionCache.
+	 * @param maxSize the maximum number of results to hold.
+	 */
+	public FunctionCache(int maxSize) {
+		this.maxSize = Math.max(stripeCount, maxSize);
+		stripes = new Stripe[stripeCount];
+		for (int i=0; i<stripeCount; i++) {
+			stripes[i] = new Stripe(this.maxSize / stripeCount);
+		}
+	}
+
+	/**
+	 * Get a cached result, counting the lookup as a hit or a miss.
+	 * @param key the key of the function call.
+	 * @return the cached result, or null if the call is not cached.
+	 */
+	public String get(String key) {
+		Stripe stripe = getStripe(key);
+		String value;
+		synchronized (stripe) { value = stripe.get(key); }
+		if (value != null) hits.incrementAndGet();
+		else misses.incrementAndGet();
+		return value;
+	}
+
+	/**
+	 * Cache a result.
+	 * @param key the key of the function call.
+	 * @param value the result.
+	 */
+	public void put(String key, String value) {
+		if (value == null) return;
+		Stripe stripe = getStripe(key);
+		synchronized (stripe) { stripe.put(key, value); }
+	}
+
+	/**
+	 * Get the number of results in the cache.
+	 * @return the number of results.
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) { size += stripe.size(); }
+		}
+		return size;
+	}
+
+	//Select the stripe of a key, spreading the bits of its hash code.
+	private Stripe getStripe(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & (stripeCount - 1)];
+	}
+
+	//An access-ordered map that discards its least recently used
+	//entry when it grows beyond its capacity.
+	static class Stripe extends LinkedHashMap<String,String> {
+		final int capacity;
+
+		public Stripe(int capacity) {
+			super(Math.min(capacity, 1024), 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/**
+	 * Get the number of lookups that found a cached result.
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups.
+	 * @return the number of lookups.
+	 */
+	public long getLookups() {
+		return hits.get() + misses.get();
+	}
+
+	/**
+	 * Get a description of the hit rate, for the summary of a batch.
+	 * @return the hits, lookups and hit rate.
+	 */
+	public String toString() {
+		long h = getHits();
+		long n = getLookups();
+		double rate = (n > 0) ? (h * 100.0 / n) : 0.0;
+		return String.format("%d hits of %d lookups (%.1f%%)", h, n, rate);
+	}
+
+}
@@ -0,0 +1,314 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmElement;
+import org.dcm4che.data.DcmObject;
+import org.dcm4che.data.FileMetaInfo;
+import org.dcm4che.data.SpecificCharacterSet;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.VRs;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * A comparison of the headers of two DICOM objects. Both objects are
+ * walked in tag order in a single merge pass, descending into the items
+ * of sequences that appear in both objects, and only the elements that
+ * were added, removed or changed are recorded. The items of a sequence
+ * are aligned before they are compared, so an inserted or removed item
+ * is reported as such. Neither object is rendered.
+ */
+public class HeaderDiff {
+
+	/** The kinds of difference. */
+	public static final int ADDED = 0;
+	public static final int REMOVED = 1;
+	public static final int CHANGED = 2;
+
+	static final int maxValueLength = 256;
+	static final long maxAlignment = 1 << 20;
+
+	LinkedList<Difference> differences = new LinkedList<Difference>();
+	int compared = 0;
+
+	/**
+	 * Compare two DICOM objects.
+	 * @param a the original object.
+	 * @param b the modified object.
+	 */
+	public HeaderDiff(DicomObject a, DicomObject b) {
+		this(a.getDataset(), b.getDataset());
+	}
+
+	/**
+	 * Compare two datasets, including their file meta information
+	 * if both have it.
+	 * @param dsa the original dataset.
+	 * @param dsb the modified dataset.
+	 */
+	public HeaderDiff(Dataset dsa, Dataset dsb) {
+		FileMetaInfo fmia = dsa.getFileMetaInfo();
+		FileMetaInfo fmib = dsb.getFileMetaInfo();
+		if ((fmia != null) && (fmib != null)) walk(fmia, fmib, "", null, null);
+		walk(dsa, dsb, "",
+				dsa.getSpecificCharacterSet(), dsb.getSpecificCharacterSet());
+	}
+
+	/**
+	 * Get the differences, in tag order.
+	 * @return the list of differences.
+	 */
+	public List<Difference> getDifferences() {
+		return differences;
+	}
+
+	/**
+	 * Get the number of elements that were examined.
+	 * @return the number of elements visited in either object.
+	 */
+	public int getComparedCount() {
+		return compared;
+	}
+
+	//Merge the elements of two objects, both of which iterate in tag order.
+	private void walk(DcmObject a, DcmObject b, String prefix,
+					  SpecificCharacterSet csa, SpecificCharacterSet csb) {
+		Iterator ita = a.iterator();
+		Iterator itb = b.iterator();
+		DcmElement ea = next(ita);
+		DcmElement eb = next(itb);
+		while ((ea != null) || (eb != null)) {
+			compared++;
+			long ta = (ea != null) ? (ea.tag() & 0xFFFFFFFFL) : Long.MAX_VALUE;
+			long tb = (eb != null) ? (eb.tag() & 0xFFFFFFFFL) : Long.MAX_VALUE;
+			if (ta < tb) {
+				differences.add(new Difference(REMOVED, prefix, ea.tag(), ea, csa, null, null));
+				ea = next(ita);
+			}
+			else if (tb < ta) {
+				differences.add(new Difference(ADDED, prefix, eb.tag(), null, null, eb, csb));
+				eb = next(itb);
+			}
+			else {
+				compare(ea, eb, prefix, csa, csb);
+				ea = next(ita);
+				eb = next(itb);
+			}
+		}
+	}
+
+	private void compare(DcmElement ea, DcmElement eb, String prefix,
+						 SpecificCharacterSet csa, SpecificCharacterSet csb) {
+		int tag = ea.tag();
+		if ((ea.vr() == VRs.SQ) && (eb.vr() == VRs.SQ)) {
+			int na = ea.countItems();
+			int nb = eb.countItems();
+			String sqPrefix = prefix + DicomObject.getElementNumber(tag);
+			int[] matchA = new int[na];
+			int[] matchB = new int[nb];
+			align(ea, eb, matchA, matchB);
+			int i = 0;
+			int j = 0;
+			while ((i < na) || (j < nb)) {
+				boolean unmatchedA = (i < na) && (matchA[i] == -1);
+				boolean unmatchedB = (j < nb) && (matchB[j] == -1);
+				if (((i < na) && (matchA[i] == j)) || (unmatchedA && unmatchedB)) {
+					//Aligned items, or the next unaligned items on both sides
+					//between the same two aligned ones, which are compared
+					//as if they were the same item.
+					String itemPrefix = sqPrefix + "[" + (i+1) + ((i != j) ? ">" + (j+1) : "") + "]";
+					Dataset ia = ea.getItem(i++);
+					Dataset ib = eb.getItem(j++);
+					walk(ia, ib, itemPrefix + "/",
+							getCharset(ia, csa), getCharset(ib, csb));
+				}
+				else if (unmatchedA) {
+					differences.add(new Difference(REMOVED, sqPrefix + "[" + (++i) + "]", -1, ea, csa, null, null));
+				}
+				else {
+					differences.add(new Difference(ADDED, sqPrefix + "[" + (++j) + "]", -1, null, null, eb, csb));
+				}
+			}
+		}
+		else if ((ea.vr() != eb.vr()) || !equalValues(ea, eb)) {
+			differences.add(new Difference(CHANGED, prefix, tag, ea, csa, eb, csb));
+		}
+	}
+
+	//Align the items of two sequences, so that inserting or removing an
+	//item does not show every following item as changed. Items are keyed
+	//by their ReferencedSOPInstanceUID, or otherwise by a hash of their
+	//values, and aligned by the longest common subsequence of the keys.
+	//The index of the aligned item on the other side, or -1, is stored
+	//for each item. Very long sequences that differ in the middle are
+	//only aligned at their common start and end.
+	private static void align(DcmElement ea, DcmElement eb, int[] matchA, int[] matchB) {
+		int na = matchA.length;
+		int nb = matchB.length;
+		Arrays.fill(matchA, -1);
+		Arrays.fill(matchB, -1);
+		String[] ka = new String[na];
+		String[] kb = new String[nb];
+		for (int i=0; i<na; i++) ka[i] = getKey(ea.getItem(i));
+		for (int j=0; j<nb; j++) kb[j] = getKey(eb.getItem(j));
+
+		int start = 0;
+		while ((start < na) && (start < nb) && ka[start].equals(kb[start])) {
+			matchA[start] = start;
+			matchB[start] = start;
+			start++;
+		}
+		int endA = na;
+		int endB = nb;
+		while ((endA > start) && (endB > start) && ka[endA-1].equals(kb[endB-1])) {
+			endA--;
+			endB--;
+			matchA[endA] = endB;
+			matchB[endB] = endA;
+		}
+		int m = endA - start;
+		int n = endB - start;
+		if ((m == 0) || (n == 0) || ((long)m * n > maxAlignment)) return;
+
+		int[][] lcs = new int[m+1][n+1];
+		for (int i=m-1; i>=0; i--) {
+			for (int j=n-1; j>=0; j--) {
+				if (ka[start+i].equals(kb[start+j])) lcs[i][j] = lcs[i+1][j+1] + 1;
+				else lcs[i][j] = Math.max(lcs[i+1][j], lcs[i][j+1]);
+			}
+		}
+		int i = 0;
+		int j = 0;
+		while ((i < m) && (j < n)) {
+			if (ka[start+i].equals(kb[start+j])) {
+				matchA[start+i] = start+j;
+				matchB[start+j] = start+i;
+				i++;
+				j++;
+			}
+			else if (lcs[i+1][j] >= lcs[i][j+1]) i++;
+			else j++;
+		}
+	}
+
+	private static String getKey(Dataset item) {
+		try {
+			String uid = item.getString(Tags.RefSOPInstanceUID);
+			if (uid != null) return "uid:" + uid.trim();
+		}
+		catch (Exception useHash) { }
+		return "hash:" + hash(item);
+	}
+
+	private static int hash(DcmObject item) {
+		int h = 1;
+		Iterator it = item.iterator();
+		while (it.hasNext()) {
+			DcmElement e = (DcmElement)it.next();
+			h = 31 * h + e.tag();
+			h = 31 * h + e.vr();
+			if (e.vr() == VRs.SQ) {
+				for (int i=0; i<e.countItems(); i++) h = 31 * h + hash(e.getItem(i));
+			}
+			else if (e.hasDataFragments()) {
+				for (int i=0; i<e.countItems(); i++) h = 31 * h + e.getDataFragment(i).hashCode();
+			}
+			else {
+				ByteBuffer bb = e.getByteBuffer();
+				h = 31 * h + ((bb != null) ? bb.hashCode() : 0);
+			}
+		}
+		return h;
+	}
+
+	private boolean equalValues(DcmElement ea, DcmElement eb) {
+		if (ea.hasDataFragments() || eb.hasDataFragments()) {
+			int n = ea.countItems();
+			if (!ea.hasDataFragments() || !eb.hasDataFragments() || (n != eb.countItems())) return false;
+			for (int i=0; i<n; i++) {
+				if (!ea.getDataFragment(i).equals(eb.getDataFragment(i))) return false;
+			}
+			return true;
+		}
+		if (ea.length() != eb.length()) return false;
+		ByteBuffer ba = ea.getByteBuffer();
+		ByteBuffer bb = eb.getByteBuffer();
+		if ((ba == null) || (bb == null)) return (ba == bb);
+		return ba.equals(bb);
+	}
+
+	private static SpecificCharacterSet getCharset(Dataset item, SpecificCharacterSet parent) {
+		SpecificCharacterSet cs = item.getSpecificCharacterSet();
+		return (cs != null) ? cs : parent;
+	}
+
+	private static DcmElement next(Iterator it) {
+		return it.hasNext() ? (DcmElement)it.next() : null;
+	}
+
+	/**
+	 * One added, removed or changed element. A tag of -1 indicates a
+	 * whole sequence item which is present in only one of the objects.
+	 */
+	public static class Difference {
+		public final int type;
+		public final String path;
+		public final int tag;
+		public final String oldValue;
+		public final String newValue;
+
+		Difference(int type, String prefix, int tag,
+				   DcmElement ea, SpecificCharacterSet csa,
+				   DcmElement eb, SpecificCharacterSet csb) {
+			this.type = type;
+			this.tag = tag;
+			this.path = (tag == -1) ? prefix : prefix + DicomObject.getElementNumber(tag);
+			this.oldValue = (tag == -1) ? ((ea != null) ? "item" : "") : getValue(ea, csa);
+			this.newValue = (tag == -1) ? ((eb != null) ? "item" : "") : getValue(eb, csb);
+		}
+
+		/**
+		 * Get the dictionary name of the element.
+		 * @return the name, or an empty string for a sequence item.
+		 */
+		public String getName() {
+			if (tag == -1) return "";
+			String name = DicomObject.getElementName(tag);
+			return (name != null) ? name : "";
+		}
+
+		private static String getValue(DcmElement e, SpecificCharacterSet cs) {
+			if (e == null) return "";
+			if (e.vr() == VRs.SQ) return e.countItems() + " item(s)";
+			if (e.hasDataFragments()) return e.countItems() + " fragment(s)";
+			int vr = e.vr();
+			if ((vr != VRs.OB) && (vr != VRs.OW) && (vr != VRs.OF) && (vr != VRs.UN)) {
+				try {
+					String[] s = e.getStrings(cs);
+					StringBuffer sb = new StringBuffer();
+					for (int i=0; i<s.length; i++) {
+						if (i > 0) sb.append("\\");
+						sb.append(s[i]);
+						if (sb.length() > maxValueLength) {
+							sb.setLength(maxValueLength);
+							sb.append("...");
+							break;
+						}
+					}
+					return sb.toString();
+				}
+				catch (Exception notString) { }
+			}
+			return VRs.toString(vr) + " " + e.length() + " bytes";
+		}
+	}
+
+}
@@ -0,0 +1,317 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * A compact index of selected header values for all the files in a
+ * directory tree. Each row is keyed by the path of the file relative to
+ * the root of the tree, together with the file's size and last-modified
+ * time, so that a later scan can tell which files have changed.
+ * <p>
+ * The index is stored on disk in columnar form: the paths, sizes and
+ * times are stored as separate arrays, and each tag column is stored as
+ * a dictionary of its distinct values followed by one code per row.
+ * Since most columns (Modality, SOPClassUID, StudyInstanceUID, etc.)
+ * have very few distinct values, the index for several hundred thousand
+ * files is only a few megabytes.
+ */
+public class HeaderIndex {
+
+	static final Logger logger = Logger.getLogger(HeaderIndex.class);
+
+	static final int MAGIC = 0x44454958;
+	static final int VERSION = 1;
+
+	File root;
+	int[] tags;
+	int count = 0;
+	String[] paths;
+	long[] sizes;
+	long[] times;
+	Column[] columns;
+	Hashtable<String,Integer> rowTable = null;
+
+	/**
+	 * Class constructor; creates an empty index.
+	 * @param root the root directory of the indexed tree.
+	 * @param tags the tags of the elements whose values are indexed.
+	 */
+	public HeaderIndex(File root, int[] tags) {
+		this.root = root;
+		this.tags = tags;
+		paths = new String[1024];
+		sizes = new long[1024];
+		times = new long[1024];
+		columns = new Column[tags.length];
+		for (int i=0; i<tags.length; i++) columns[i] = new Column();
+	}
+
+	/**
+	 * Get the file in which the index for a directory is stored.
+	 * @param indexDir the directory in which indexes are stored.
+	 * @param root the root directory of the indexed tree.
+	 * @return the index file.
+	 */
+	public static File getIndexFile(File indexDir, File root) {
+		String name;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] hash = md.digest(root.getAbsolutePath().getBytes("UTF-8"));
+			StringBuffer sb = new StringBuffer();
+			for (int i=0; i<8; i++) sb.append(String.format("%02x", hash[i] & 0xff));
+			name = sb.toString();
+		}
+		catch (Exception ex) { name = Integer.toHexString(root.getAbsolutePath().hashCode()); }
+		return new File(indexDir, name + ".index");
+	}
+
+	/**
+	 * Load an index from a file.
+	 * @param file the index file.
+	 * @return the index, or null if the file does not exist or cannot be read.
+	 */
+	public static HeaderIndex load(File file) {
+		if (!file.exists()) return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			if (in.readInt() != MAGIC) throw new IOException("Not an index file");
+			if (in.readInt() != VERSION) throw new IOException("Unsupported index version");
+			File root = new File(in.readUTF());
+			int[] tags = new int[in.readInt()];
+			for (int i=0; i<tags.length; i++) tags[i] = in.readInt();
+			HeaderIndex index = new HeaderIndex(root, tags);
+			int n = in.readInt();
+			index.ensureCapacity(n);
+			for (int i=0; i<n; i++) index.paths[i] = in.readUTF();
+			for (int i=0; i<n; i++) index.sizes[i] = in.readLong();
+			for (int i=0; i<n; i++) index.times[i] = in.readLong();
+			for (Column column : index.columns) column.read(in, n);
+			index.count = n;
+			return index;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to load the index from "+file, ex);
+			return null;
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	/**
+	 * Store the index in a file. The index is written to a temporary
+	 * file which then replaces the original.
+	 * @param file the index file.
+	 * @return true if the index was stored; false otherwise.
+	 */
+	public boolean store(File file) {
+		File parent = file.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File temp = new File(parent, file.getName() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(root.getAbsolutePath());
+			out.writeInt(tags.length);
+			for (int tag : tags) out.writeInt(tag);
+			out.writeInt(count);
+			for (int i=0; i<count; i++) out.writeUTF(paths[i]);
+			for (int i=0; i<count; i++) out.writeLong(sizes[i]);
+			for (int i=0; i<count; i++) out.writeLong(times[i]);
+			for (Column column : columns) column.write(out, count);
+			out.close();
+			out = null;
+			file.delete();
+			return temp.renameTo(file);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to store the index in "+file, ex);
+			FileUtil.close(out);
+			temp.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Get the root directory of the indexed tree.
+	 * @return the root directory.
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Get the tags of the indexed elements.
+	 * @return the array of tags.
+	 */
+	public int[] getTags() {
+		return tags;
+	}
+
+	/**
+	 * Get the number of files in the index.
+	 * @return the number of rows.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Append a row to the index.
+	 * @param path the path of the file relative to the root.
+	 * @param size the length of the file.
+	 * @param time the last-modified time of the file.
+	 * @param values the values of the indexed elements, in the order
+	 * of the tags array. A null array or a null value is stored as
+	 * an empty string.
+	 */
+	public void add(String path, long size, long time, String[] values) {
+		ensureCapacity(count + 1);
+		paths[count] = path;
+		sizes[count] = size;
+		times[count] = time;
+		for (int i=0; i<columns.length; i++) {
+			String value = ((values != null) && (i < values.length)) ? values[i] : null;
+			columns[i].add(count, (value != null) ? value : "");
+		}
+		count++;
+		rowTable = null;
+	}
+
+	/**
+	 * Find the row for a file if the file has not changed since it was indexed.
+	 * @param path the path of the file relative to the root.
+	 * @param size the current length of the file.
+	 * @param time the current last-modified time of the file.
+	 * @return the row, or -1 if the file is not in the index or has changed.
+	 */
+	public int getCurrentRow(String path, long size, long time) {
+		if (rowTable == null) {
+			rowTable = new Hashtable<String,Integer>(count * 2 + 1);
+			for (int i=0; i<count; i++) rowTable.put(paths[i], i);
+		}
+		Integer row = rowTable.get(path);
+		if ((row == null) || (sizes[row] != size) || (times[row] != time)) return -1;
+		return row;
+	}
+
+	/**
+	 * Get the values of the indexed elements for a row, in the order of
+	 * a specified array of tags.
+	 * @param row the row.
+	 * @param tags the requested tags.
+	 * @return the values, or null if any of the tags is not in the index.
+	 */
+	public String[] getValues(int row, int[] tags) {
+		String[] values = new String[tags.length];
+		for (int i=0; i<tags.length; i++) {
+			int col = getColumn(tags[i]);
+			if (col < 0) return null;
+			values[i] = columns[col].get(row);
+		}
+		return values;
+	}
+
+	/**
+	 * Get the column number of an indexed tag.
+	 * @param tag the tag.
+	 * @return the column, or -1 if the tag is not indexed.
+	 */
+	public int getColumn(int tag) {
+		for (int i=0; i<tags.length; i++) {
+			if (tags[i] == tag) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Select the files matching a query.
+	 * @param query the query.
+	 * @return the set of absolute paths of the matching files.
+	 * @throws Exception if the query references a tag that is not indexed.
+	 */
+	public HashSet<String> select(IndexQuery query) throws Exception {
+		IndexQuery.Matcher matcher = query.getMatcher(this);
+		HashSet<String> set = new HashSet<String>();
+		String base = root.getAbsolutePath();
+		for (int i=0; i<count; i++) {
+			if (matcher.matches(i)) set.add(new File(base, paths[i]).getAbsolutePath());
+		}
+		return set;
+	}
+
+	//Get the dictionary of distinct values of a column.
+	String[] getDictionary(int col) {
+		return columns[col].values.toArray(new String[columns[col].values.size()]);
+	}
+
+	//Get the dictionary code of the value of a column in a row.
+	int getCode(int col, int row) {
+		return columns[col].codes[row];
+	}
+
+	private void ensureCapacity(int n) {
+		if (n <= paths.length) return;
+		int len = Math.max(n, paths.length * 2);
+		paths = Arrays.copyOf(paths, len);
+		sizes = Arrays.copyOf(sizes, len);
+		times = Arrays.copyOf(times, len);
+		for (Column column : columns) column.codes = Arrays.copyOf(column.codes, len);
+	}
+
+	//A dictionary-encoded column of values
+	class Column {
+		ArrayList<String> values = new ArrayList<String>();
+		HashMap<String,Integer> ids = new HashMap<String,Integer>();
+		int[] codes = new int[paths.length];
+
+		void add(int row, String value) {
+			Integer id = ids.get(value);
+			if (id == null) {
+				id = values.size();
+				values.add(value);
+				ids.put(value, id);
+			}
+			codes[row] = id;
+		}
+		String get(int row) {
+			return values.get(codes[row]);
+		}
+		void write(DataOutputStream out, int n) throws IOException {
+			int size = values.size();
+			out.writeInt(size);
+			for (String value : values) out.writeUTF(value);
+			for (int i=0; i<n; i++) {
+				if (size <= 0x100) out.writeByte(codes[i]);
+				else if (size <= 0x10000) out.writeShort(codes[i]);
+				else out.writeInt(codes[i]);
+			}
+		}
+		void read(DataInputStream in, int n) throws IOException {
+			int size = in.readInt();
+			for (int i=0; i<size; i++) {
+				String value = in.readUTF();
+				ids.put(value, values.size());
+				values.add(value);
+			}
+			for (int i=0; i<n; i++) {
+				if (size <= 0x100) codes[i] = in.readUnsignedByte();
+				else if (size <= 0x10000) codes[i] = in.readUnsignedShort();
+				else codes[i] = in.readInt();
+			}
+		}
+	}
+
+}
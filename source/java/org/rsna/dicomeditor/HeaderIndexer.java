@@ -0,0 +1,250 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmObjectFactory;
+import org.dcm4che.data.DcmParser;
+import org.dcm4che.data.DcmParserFactory;
+import org.dcm4che.data.FileFormat;
+import org.dcm4che.data.FileMetaInfo;
+import org.dcm4che.dict.Tags;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.util.FileUtil;
+
+/**
+ * A class to build and incrementally refresh the HeaderIndex of a
+ * directory tree. Files which are already in the index with the same
+ * size and last-modified time are not opened; all other files are
+ * parsed in parallel, stopping at the PixelData element.
+ */
+public class HeaderIndexer {
+
+	static final Logger logger = Logger.getLogger(HeaderIndexer.class);
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	static final int maxValueLength = 1024;
+
+	File root;
+	int[] tags;
+	File indexFile;
+	int threads;
+	volatile int parsed = 0;
+	volatile int reused = 0;
+
+	/**
+	 * Class constructor.
+	 * @param indexDir the directory in which indexes are stored.
+	 * @param root the root directory of the tree to index.
+	 * @param tags the tags of the elements to index.
+	 */
+	public HeaderIndexer(File indexDir, File root, int[] tags) {
+		this.root = root.getAbsoluteFile();
+		this.tags = tags;
+		this.indexFile = HeaderIndex.getIndexFile(indexDir, this.root);
+		this.threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Get the tags to be indexed from a comma-separated list of element names.
+	 * @param names the list of element names or [gggg,eeee] tags.
+	 * @return the array of tags, omitting names that are not recognized.
+	 */
+	public static int[] getTags(String names) {
+		LinkedList<Integer> list = new LinkedList<Integer>();
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.length() > 0) {
+				int tag = DicomObject.getElementTag(name);
+				if ((tag != 0) && !list.contains(tag)) list.add(tag);
+				else if (tag == 0) logger.warn("Unknown index element: "+name);
+			}
+		}
+		int[] tags = new int[list.size()];
+		int i = 0;
+		for (Integer tag : list) tags[i++] = tag;
+		return tags;
+	}
+
+	/**
+	 * Get the number of files parsed in the last call to update.
+	 * @return the number of files parsed.
+	 */
+	public int getParsedCount() {
+		return parsed;
+	}
+
+	/**
+	 * Get the number of files whose index rows were reused in the
+	 * last call to update.
+	 * @return the number of files that were not opened.
+	 */
+	public int getReusedCount() {
+		return reused;
+	}
+
+	/**
+	 * Bring the index up to date with the directory tree and store it.
+	 * Only files that are new or have changed since the last update
+	 * are parsed.
+	 * @return the updated index.
+	 * @throws Exception if the indexing is interrupted.
+	 */
+	public HeaderIndex update() throws Exception {
+		HeaderIndex oldIndex = HeaderIndex.load(indexFile);
+		if ((oldIndex != null) && !Arrays.equals(oldIndex.getTags(), tags)) {
+			//If the indexed tags have changed, the old rows
+			//are still useful if they contain all the new tags.
+			for (int tag : tags) {
+				if (oldIndex.getColumn(tag) < 0) { oldIndex = null; break; }
+			}
+		}
+
+		LinkedList<File> files = new LinkedList<File>();
+		listFiles(root, files);
+
+		HeaderIndex index = new HeaderIndex(root, tags);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			int baseLength = root.getPath().length();
+			if (!root.getPath().endsWith(File.separator)) baseLength++;
+			LinkedList<Row> rows = new LinkedList<Row>();
+			parsed = 0;
+			reused = 0;
+			for (File file : files) {
+				String path = file.getPath().substring(baseLength);
+				long size = file.length();
+				long time = file.lastModified();
+				int row = (oldIndex != null) ? oldIndex.getCurrentRow(path, size, time) : -1;
+				if (row >= 0) {
+					rows.add(new Row(path, size, time, oldIndex.getValues(row, tags)));
+					reused++;
+				}
+				else {
+					rows.add(new Row(path, size, time, pool.submit(new Parser(file))));
+					parsed++;
+				}
+			}
+			for (Row row : rows) {
+				index.add(row.path, row.size, row.time, row.getValues());
+			}
+		}
+		finally { pool.shutdownNow(); }
+		if ((parsed > 0) || (oldIndex == null) || (oldIndex.size() != index.size())) {
+			index.store(indexFile);
+		}
+		return index;
+	}
+
+	private void listFiles(File dir, LinkedList<File> list) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) listFiles(file, list);
+			else if (file.isFile()) list.add(file);
+		}
+	}
+
+	//A row waiting to be added to the index
+	class Row {
+		String path;
+		long size;
+		long time;
+		String[] values = null;
+		Future<String[]> future = null;
+
+		Row(String path, long size, long time, String[] values) {
+			this.path = path;
+			this.size = size;
+			this.time = time;
+			this.values = values;
+		}
+		Row(String path, long size, long time, Future<String[]> future) {
+			this(path, size, time, (String[])null);
+			this.future = future;
+		}
+		String[] getValues() throws Exception {
+			if (future != null) {
+				try { values = future.get(); }
+				catch (ExecutionException ex) { values = null; }
+			}
+			return values;
+		}
+	}
+
+	//A task to parse the header of one file
+	class Parser implements Callable<String[]> {
+		File file;
+
+		Parser(File file) {
+			this.file = file;
+		}
+
+		public String[] call() {
+			BufferedInputStream in = null;
+			try {
+				in = new BufferedInputStream(new FileInputStream(file));
+				DcmParser parser = pFact.newDcmParser(in);
+				FileFormat fileFormat = parser.detectFileFormat();
+				if (fileFormat == null) return null;
+				Dataset dataset = oFact.newDataset();
+				parser.setDcmHandler(dataset.getDcmHandler());
+				parser.parseDcmFile(fileFormat, Tags.PixelData);
+				return getValues(dataset, tags);
+			}
+			catch (Exception ex) {
+				logger.debug("Unable to parse "+file, ex);
+				return null;
+			}
+			finally { FileUtil.close(in); }
+		}
+	}
+
+	/**
+	 * Get the values of elements of a dataset as they are stored in an index.
+	 * @param dataset the dataset, which may include file meta information.
+	 * @param tags the tags of the elements.
+	 * @return the values, in the order of the tags.
+	 */
+	static String[] getValues(Dataset dataset, int[] tags) {
+		FileMetaInfo fmi = dataset.getFileMetaInfo();
+		String[] values = new String[tags.length];
+		for (int i=0; i<tags.length; i++) {
+			int tag = tags[i];
+			String[] strings = null;
+			try {
+				if ((tag & 0xFFFF0000) == 0x00020000) {
+					if (fmi != null) strings = fmi.getStrings(tag);
+				}
+				else strings = dataset.getStrings(tag);
+			}
+			catch (Exception notString) { }
+			values[i] = join(strings);
+		}
+		return values;
+	}
+
+	private static String join(String[] strings) {
+		if (strings == null) return "";
+		StringBuffer sb = new StringBuffer();
+		for (String s : strings) {
+			if (sb.length() > 0) sb.append("\\");
+			if (s != null) sb.append(s.trim());
+		}
+		if (sb.length() > maxValueLength) sb.setLength(maxValueLength);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,327 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.File;
+import java.util.*;
+import org.dcm4che.data.Dataset;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * A query against a HeaderIndex. The query language is a boolean
+ * expression of comparisons between element values and constants, e.g.:
+ * <pre>
+ *     Modality = CT &amp; SliceThickness &lt; 1
+ *     (Modality = MR | Modality = CT) &amp; !SeriesDescription ~ scout
+ * </pre>
+ * Elements are identified by their dictionary names or by their tags
+ * in the form [gggg,eeee]. The comparison operators are =, !=, &lt;,
+ * &lt;=, &gt;, &gt;= and ~ (contains, ignoring case). The = and !=
+ * operators accept * and ? wildcards. The ordering operators compare
+ * numerically if both operands are numbers; otherwise they compare the
+ * strings. Constants containing spaces or operator characters can be
+ * enclosed in double quotes.
+ * <p>
+ * Since each comparison involves a single column, it is evaluated once
+ * for each distinct value in the column's dictionary rather than once
+ * for each row, making a query over a large index very fast.
+ */
+public class IndexQuery {
+
+	Node root;
+	String text;
+
+	/**
+	 * Parse a query.
+	 * @param text the text of the query.
+	 * @throws Exception if the query cannot be parsed.
+	 */
+	public IndexQuery(String text) throws Exception {
+		this.text = text;
+		Tokenizer tokenizer = new Tokenizer(text);
+		root = parseOr(tokenizer);
+		if (tokenizer.peek() != null) {
+			throw new Exception("Unexpected \"" + tokenizer.peek() + "\" in query");
+		}
+	}
+
+	/**
+	 * Get the tags referenced by the query.
+	 * @return the set of tags.
+	 */
+	public HashSet<Integer> getTags() {
+		HashSet<Integer> set = new HashSet<Integer>();
+		root.addTags(set);
+		return set;
+	}
+
+	/**
+	 * Get the text of the query.
+	 * @return the text.
+	 */
+	public String toString() {
+		return text;
+	}
+
+	/**
+	 * Bind the query to an index.
+	 * @param index the index.
+	 * @return a Matcher for the rows of the index.
+	 * @throws Exception if the query references a tag that is not indexed.
+	 */
+	public Matcher getMatcher(HeaderIndex index) throws Exception {
+		return root.bind(index);
+	}
+
+	/**
+	 * Determine whether the header of one object matches the query,
+	 * as it would if the object were in an index.
+	 * @param dataset the header of the object.
+	 * @return true if the header matches; false otherwise.
+	 * @throws Exception if the query cannot be evaluated.
+	 */
+	public boolean matches(Dataset dataset) throws Exception {
+		HashSet<Integer> set = getTags();
+		int[] tags = new int[set.size()];
+		int i = 0;
+		for (Integer tag : set) tags[i++] = tag.intValue();
+		HeaderIndex index = new HeaderIndex(new File(""), tags);
+		index.add("", 0, 0, HeaderIndexer.getValues(dataset, tags));
+		return getMatcher(index).matches(0);
+	}
+
+	/**
+	 * A query bound to the rows of an index.
+	 */
+	public interface Matcher {
+		/**
+		 * Determine whether a row matches the query.
+		 * @param row the row.
+		 * @return true if the row matches; false otherwise.
+		 */
+		public boolean matches(int row);
+	}
+
+	//The parser
+	private Node parseOr(Tokenizer t) throws Exception {
+		Node left = parseAnd(t);
+		while ("|".equals(t.peek())) {
+			t.next();
+			left = new Or(left, parseAnd(t));
+		}
+		return left;
+	}
+
+	private Node parseAnd(Tokenizer t) throws Exception {
+		Node left = parseUnary(t);
+		while ("&".equals(t.peek())) {
+			t.next();
+			left = new And(left, parseUnary(t));
+		}
+		return left;
+	}
+
+	private Node parseUnary(Tokenizer t) throws Exception {
+		String token = t.next();
+		if (token == null) throw new Exception("Incomplete query");
+		if (token.equals("!")) return new Not(parseUnary(t));
+		if (token.equals("(")) {
+			Node node = parseOr(t);
+			if (!")".equals(t.next())) throw new Exception("Missing \")\" in query");
+			return node;
+		}
+		String op = t.next();
+		if ((op == null) || !Comparison.isOperator(op)) {
+			throw new Exception("Missing operator after \"" + token + "\"");
+		}
+		String value = t.next();
+		if (value == null) throw new Exception("Missing value after \"" + token + " " + op + "\"");
+		int tag = DicomObject.getElementTag(token);
+		if (tag == 0) throw new Exception("Unknown element: \"" + token + "\"");
+		return new Comparison(tag, token, op, value);
+	}
+
+	//The expression tree
+	static abstract class Node {
+		abstract Matcher bind(HeaderIndex index) throws Exception;
+		abstract void addTags(HashSet<Integer> set);
+	}
+
+	static class And extends Node {
+		Node a, b;
+		And(Node a, Node b) { this.a = a; this.b = b; }
+		Matcher bind(HeaderIndex index) throws Exception {
+			final Matcher ma = a.bind(index);
+			final Matcher mb = b.bind(index);
+			return new Matcher() {
+				public boolean matches(int row) { return ma.matches(row) && mb.matches(row); }
+			};
+		}
+		void addTags(HashSet<Integer> set) { a.addTags(set); b.addTags(set); }
+	}
+
+	static class Or extends Node {
+		Node a, b;
+		Or(Node a, Node b) { this.a = a; this.b = b; }
+		Matcher bind(HeaderIndex index) throws Exception {
+			final Matcher ma = a.bind(index);
+			final Matcher mb = b.bind(index);
+			return new Matcher() {
+				public boolean matches(int row) { return ma.matches(row) || mb.matches(row); }
+			};
+		}
+		void addTags(HashSet<Integer> set) { a.addTags(set); b.addTags(set); }
+	}
+
+	static class Not extends Node {
+		Node a;
+		Not(Node a) { this.a = a; }
+		Matcher bind(HeaderIndex index) throws Exception {
+			final Matcher ma = a.bind(index);
+			return new Matcher() {
+				public boolean matches(int row) { return !ma.matches(row); }
+			};
+		}
+		void addTags(HashSet<Integer> set) { a.addTags(set); }
+	}
+
+	static class Comparison extends Node {
+		static final String[] operators = { "=", "!=", "<", "<=", ">", ">=", "~" };
+		int tag;
+		String name;
+		String op;
+		String value;
+
+		Comparison(int tag, String name, String op, String value) {
+			this.tag = tag;
+			this.name = name;
+			this.op = op;
+			this.value = value;
+		}
+
+		static boolean isOperator(String s) {
+			for (String op : operators) {
+				if (op.equals(s)) return true;
+			}
+			return false;
+		}
+
+		Matcher bind(final HeaderIndex index) throws Exception {
+			final int col = index.getColumn(tag);
+			if (col < 0) throw new Exception(name + " is not in the index");
+			String[] dictionary = index.getDictionary(col);
+			final boolean[] results = new boolean[dictionary.length];
+			for (int i=0; i<dictionary.length; i++) results[i] = test(dictionary[i]);
+			return new Matcher() {
+				public boolean matches(int row) { return results[index.getCode(col, row)]; }
+			};
+		}
+
+		void addTags(HashSet<Integer> set) { set.add(tag); }
+
+		boolean test(String s) {
+			if (op.equals("=")) return matchesPattern(s);
+			if (op.equals("!=")) return !matchesPattern(s);
+			if (op.equals("~")) return s.toLowerCase().contains(value.toLowerCase());
+			int c = compare(s);
+			if (c == Integer.MIN_VALUE) return false;
+			if (op.equals("<")) return c < 0;
+			if (op.equals("<=")) return c <= 0;
+			if (op.equals(">")) return c > 0;
+			return c >= 0;
+		}
+
+		private boolean matchesPattern(String s) {
+			if ((value.indexOf('*') < 0) && (value.indexOf('?') < 0)) return s.equals(value);
+			return wildcardMatch(s, 0, value, 0);
+		}
+
+		private static boolean wildcardMatch(String s, int i, String p, int j) {
+			while (j < p.length()) {
+				char c = p.charAt(j);
+				if (c == '*') {
+					for (int k=i; k<=s.length(); k++) {
+						if (wildcardMatch(s, k, p, j+1)) return true;
+					}
+					return false;
+				}
+				if ((i >= s.length()) || ((c != '?') && (c != s.charAt(i)))) return false;
+				i++;
+				j++;
+			}
+			return i == s.length();
+		}
+
+		//Compare the first value of a multi-valued element to the constant.
+		//Return Integer.MIN_VALUE if the element is missing.
+		private int compare(String s) {
+			int k = s.indexOf('\\');
+			if (k >= 0) s = s.substring(0, k);
+			s = s.trim();
+			if (s.length() == 0) return Integer.MIN_VALUE;
+			try { return Double.compare(Double.parseDouble(s), Double.parseDouble(value)); }
+			catch (Exception notNumeric) { return s.compareTo(value); }
+		}
+	}
+
+	//A tokenizer for the query language
+	static class Tokenizer {
+		LinkedList<String> tokens = new LinkedList<String>();
+
+		Tokenizer(String s) throws Exception {
+			int i = 0;
+			int n = s.length();
+			while (i < n) {
+				char c = s.charAt(i);
+				if (Character.isWhitespace(c)) { i++; continue; }
+				if ((c == '(') || (c == ')') || (c == '&') || (c == '|') || (c == '~')) {
+					tokens.add(Character.toString(c));
+					i++;
+				}
+				else if ((c == '<') || (c == '>') || (c == '=') || (c == '!')) {
+					if ((i+1 < n) && (s.charAt(i+1) == '=')) {
+						tokens.add(s.substring(i, i+2));
+						i += 2;
+					}
+					else {
+						tokens.add(Character.toString(c));
+						i++;
+					}
+				}
+				else if (c == '"') {
+					int k = s.indexOf('"', i+1);
+					if (k < 0) throw new Exception("Unbalanced quotes in query");
+					tokens.add(s.substring(i+1, k));
+					i = k + 1;
+				}
+				else if (c == '[') {
+					int k = s.indexOf(']', i);
+					if (k < 0) throw new Exception("Unbalanced brackets in query");
+					tokens.add(s.substring(i, k+1));
+					i = k + 1;
+				}
+				else {
+					int k = i;
+					while ((k < n) && ("()&|~<>=!\"".indexOf(s.charAt(k)) < 0)
+							&& !Character.isWhitespace(s.charAt(k))) k++;
+					tokens.add(s.substring(i, k));
+					i = k;
+				}
+			}
+		}
+
+		String peek() {
+			return tokens.peek();
+		}
+
+		String next() {
+			return tokens.poll();
+		}
+	}
+
+}
@@ -0,0 +1,408 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * A persistent table of the sequential integers assigned by the @integer
+ * function, which gives each distinct value of a key type (for example,
+ * each PatientID) the next integer for that type, and the same integer
+ * every time the value is seen again, in this run or any later one.
+ * <p>
+ * The table is held in memory and stored in a directory as a snapshot
+ * and a write-ahead log. Each new assignment is appended to the log, and
+ * the log is forced to disk before the integer is returned, so an integer
+ * can never be used in an anonymized object and then lost in a crash.
+ * Commits are batched: while one thread forces the log, the assignments
+ * made by other threads accumulate and are committed together by the
+ * next force. Lookups of values whose integers have been committed do
+ * not lock the table. When the store is opened, the log is replayed and
+ * merged into a new snapshot.
+ * <p>
+ * Records in the snapshot and the log are UTF-8 lines of the form
+ * type TAB value TAB integer, with backslash escapes for tabs, newlines
+ * and backslashes.
+ */
+public class IntegerStore {
+
+	static final Logger logger = Logger.getLogger(IntegerStore.class);
+
+	static final String snapshotName = "integers.txt";
+	static final String logName = "integers.log";
+
+	static final Hashtable<String,IntegerStore> stores = new Hashtable<String,IntegerStore>();
+
+	File dir;
+	ConcurrentHashMap<String,Integer> integers = new ConcurrentHashMap<String,Integer>();
+	HashMap<String,Integer> counts = new HashMap<String,Integer>();
+	HashMap<String,Pending> pending = new HashMap<String,Pending>();
+	FileOutputStream logStream;
+	FileChannel logChannel;
+	Writer log;
+	long appended = 0;
+	long committed = 0;
+	boolean committing = false;
+	long commits = 0;
+
+	/**
+	 * Get the store in a directory, opening it if necessary.
+	 * @param dir the directory of the store. It is created if it does
+	 * not exist.
+	 * @return the store.
+	 * @throws IOException if the store cannot be opened.
+	 */
+	public static synchronized IntegerStore getInstance(File dir) throws IOException {
+		String key = dir.getAbsolutePath();
+		IntegerStore store = stores.get(key);
+		if (store == null) {
+			store = new IntegerStore(dir);
+			stores.put(key, store);
+		}
+		return store;
+	}
+
+	/**
+	 * Open a store, recovering any assignments in its log.
+	 * @param dir the directory of the store.
+	 * @throws IOException if the store cannot be opened.
+	 */
+	protected IntegerStore(File dir) throws IOException {
+		this.dir = dir;
+		dir.mkdirs();
+		File snapshot = new File(dir, snapshotName);
+		File logFile = new File(dir, logName);
+		read(snapshot);
+		if (logFile.exists() && (logFile.length() > 0)) {
+			int n = read(logFile);
+			writeSnapshot(snapshot);
+			logger.info("Recovered "+n+" integer assignments from "+logFile);
+		}
+		logStream = new FileOutputStream(logFile, false);
+		logChannel = logStream.getChannel();
+		log = new BufferedWriter(new OutputStreamWriter(logStream, StandardCharsets.UTF_8));
+	}
+
+	//A store that only looks up values, for the preview.
+	IntegerStore() { }
+
+	/**
+	 * Get the integer for a value of a key type, assigning the next integer
+	 * for the type if the value has not been seen before. This method does
+	 * not return until a new assignment has been committed to the log.
+	 * @param type the key type.
+	 * @param value the value.
+	 * @param width the minimum number of digits, with leading zeroes,
+	 * or zero for no padding.
+	 * @return the integer, formatted to the width.
+	 * @throws IOException if a new assignment cannot be committed.
+	 */
+	public String getInteger(String type, String value, int width) throws IOException {
+		type = type.trim();
+		value = value.trim();
+		String key = key(type, value);
+		Integer n = integers.get(key);
+		if (n == null) {
+			Pending p;
+			synchronized (this) {
+				n = integers.get(key);
+				if (n != null) return format(n, width);
+				p = pending.get(key);
+				if (p == null) {
+					int next = next(type);
+					log.write(escape(type) + "\t" + escape(value) + "\t" + next + "\n");
+					counts.put(type, next);
+					p = new Pending(next, ++appended);
+					pending.put(key, p);
+				}
+			}
+			commit(p.seq);
+			synchronized (this) {
+				integers.put(key, p.n);
+				pending.remove(key);
+			}
+			n = p.n;
+		}
+		return format(n, width);
+	}
+
+	/**
+	 * Get the integer for a value of a key type without assigning one.
+	 * @param type the key type.
+	 * @param value the value.
+	 * @param width the minimum number of digits.
+	 * @return the integer if the value has been seen before, or the
+	 * integer that would be assigned to it next.
+	 */
+	public String peekInteger(String type, String value, int width) {
+		type = type.trim();
+		value = value.trim();
+		String key = key(type, value);
+		Integer n = integers.get(key);
+		if (n == null) {
+			synchronized (this) {
+				Pending p = pending.get(key);
+				n = (p != null) ? p.n : next(type);
+			}
+		}
+		return format(n, width);
+	}
+
+	/**
+	 * Get a view of the store for the preview, which looks up integers
+	 * without assigning them.
+	 * @return the view.
+	 */
+	public IntegerStore getPreview() {
+		return new Preview(this);
+	}
+
+	/**
+	 * Get the number of commits, each of which may have written several
+	 * assignments to the log.
+	 * @return the number of commits since the store was opened.
+	 */
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	/**
+	 * Get the number of assignments made since the store was opened.
+	 * @return the number of assignments.
+	 */
+	public synchronized long getAssignments() {
+		return appended;
+	}
+
+	/**
+	 * Write a new snapshot and empty the log. This is done when the
+	 * store is opened; it can also be done when no batch is running,
+	 * to keep the log short.
+	 * @throws IOException if the snapshot cannot be written.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		while (committing) await();
+		log.flush();
+		logChannel.force(false);
+		for (Map.Entry<String,Pending> entry : pending.entrySet()) {
+			integers.put(entry.getKey(), entry.getValue().n);
+		}
+		writeSnapshot(new File(dir, snapshotName));
+		logChannel.truncate(0);
+		logChannel.position(0);
+		committed = appended;
+	}
+
+	/**
+	 * Close the store.
+	 */
+	public synchronized void close() {
+		try { checkpoint(); }
+		catch (Exception ex) { logger.warn("Unable to checkpoint the integer store", ex); }
+		FileUtil.close(log);
+		stores.remove(dir.getAbsolutePath());
+	}
+
+	//Wait until an assignment is in the log on disk, forcing the log if
+	//no other thread is doing so. The force is done without holding the
+	//lock, so other threads can append while it runs; one force commits
+	//all the assignments appended before it started.
+	private void commit(long seq) throws IOException {
+		long target;
+		synchronized (this) {
+			while (committing && (committed < seq)) await();
+			if (committed >= seq) return;
+			committing = true;
+			try { log.flush(); }
+			catch (IOException ex) {
+				committing = false;
+				notifyAll();
+				throw ex;
+			}
+			target = appended;
+		}
+		boolean forced = false;
+		try {
+			logChannel.force(false);
+			forced = true;
+		}
+		finally {
+			synchronized (this) {
+				committing = false;
+				if (forced) {
+					committed = Math.max(committed, target);
+					commits++;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private void await() throws IOException {
+		try { wait(); }
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while committing the integer store");
+		}
+	}
+
+	private int next(String type) {
+		Integer count = counts.get(type);
+		return (count != null) ? count + 1 : 1;
+	}
+
+	private static String format(int n, int width) {
+		return (width > 0) ? String.format("%0" + width + "d", n) : Integer.toString(n);
+	}
+
+	//Read the records of a snapshot or log, ignoring an incomplete last
+	//record, and return the number of records read.
+	private int read(File file) throws IOException {
+		if (!file.exists()) return 0;
+		int n = 0;
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = reader.read()) != -1) {
+				if (c != '\n') {
+					sb.append((char)c);
+					continue;
+				}
+				String[] fields = sb.toString().split("\t", -1);
+				sb.setLength(0);
+				if (fields.length != 3) continue;
+				try {
+					String type = unescape(fields[0]);
+					int value = Integer.parseInt(fields[2]);
+					integers.put(key(type, unescape(fields[1])), value);
+					Integer count = counts.get(type);
+					if ((count == null) || (count < value)) counts.put(type, value);
+					n++;
+				}
+				catch (NumberFormatException skip) { }
+			}
+		}
+		finally { FileUtil.close(reader); }
+		return n;
+	}
+
+	//Write the table to a temporary file and replace the snapshot with it.
+	private void writeSnapshot(File snapshot) throws IOException {
+		File temp = new File(dir, snapshotName + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+		try {
+			for (Map.Entry<String,Integer> entry : integers.entrySet()) {
+				String key = entry.getKey();
+				int k = key.indexOf('\t');
+				writer.write(key.substring(0, k) + "\t"
+								+ escape(key.substring(k+1)) + "\t" + entry.getValue() + "\n");
+			}
+			writer.flush();
+			fos.getChannel().force(false);
+		}
+		finally { FileUtil.close(writer); }
+		try {
+			Files.move(temp.toPath(), snapshot.toPath(),
+					   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		syncDirectory(dir);
+	}
+
+	//Make the rename durable before the log is truncated; not all
+	//platforms allow a directory to be opened.
+	private static void syncDirectory(File dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try { channel.force(true); }
+			finally { channel.close(); }
+		}
+		catch (Exception ignore) { }
+	}
+
+	//The key of a value in the table. The type is escaped, so the
+	//first tab always separates it from the value.
+	private static String key(String type, String value) {
+		return escape(type) + "\t" + value;
+	}
+
+	private static String escape(String s) {
+		if ((s.indexOf('\\') < 0) && (s.indexOf('\t') < 0) && (s.indexOf('\n') < 0)) return s;
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	private static String unescape(String s) {
+		if (s.indexOf('\\') < 0) return s;
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == '\\') && (i+1 < s.length())) {
+				c = s.charAt(++i);
+				if (c == 't') c = '\t';
+				else if (c == 'n') c = '\n';
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	//An assignment that is in the log but may not yet be on disk.
+	//Integers are only published to the lock-free table once they
+	//have been committed.
+	static class Pending {
+		final int n;
+		final long seq;
+
+		public Pending(int n, long seq) {
+			this.n = n;
+			this.seq = seq;
+		}
+	}
+
+	//The read-only view of a store used by the preview.
+	static class Preview extends IntegerStore {
+		IntegerStore store;
+
+		public Preview(IntegerStore store) {
+			this.store = store;
+		}
+		public String getInteger(String type, String value, int width) {
+			return store.peekInteger(type, value, width);
+		}
+		public String peekInteger(String type, String value, int width) {
+			return store.peekInteger(type, value, width);
+		}
+		public IntegerStore getPreview() {
+			return this;
+		}
+		public synchronized long getCommits() {
+			return 0;
+		}
+		public synchronized long getAssignments() {
+			return 0;
+		}
+		public void checkpoint() { }
+		public void close() { }
+	}
+
+}
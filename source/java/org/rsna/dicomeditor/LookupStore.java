@@ -0,0 +1,433 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.LookupTable;
+import org.rsna.util.FileUtil;
+
+/**
+ * A read-only lookup table for the @lookup function, stored in a binary
+ * file that is memory-mapped instead of being loaded into the heap.
+ * <p>
+ * The store is built once from a lookup table in properties format or
+ * in CSV format (one key,value pair per line), and is rebuilt whenever
+ * the source file changes. The file is a hash table of int slots, each
+ * holding the hash of a key and the offset of its entry, followed by the
+ * entries themselves as UTF-8 bytes, so opening the store only maps the
+ * file, and a lookup creates no objects other than the value returned.
+ * <p>
+ * The store is a Properties object so it can be passed to the anonymizer
+ * in place of the table loaded by the LookupTable class. Only the methods
+ * used for lookups (getProperty, get, containsKey, size and isEmpty) are
+ * supported; the store cannot be enumerated or modified.
+ */
+public class LookupStore extends Properties {
+
+	static final Logger logger = Logger.getLogger(LookupStore.class);
+
+	static final int MAGIC = 0x4C4B5550; //"LKUP"
+	static final int VERSION = 1;
+	static final int HEADER = 20;
+	static final String SUFFIX = ".lkp";
+
+	static final Hashtable<String,LookupStore> stores = new Hashtable<String,LookupStore>();
+
+	final File source;
+	final long sourceLastModified;
+	final MappedByteBuffer buffer;
+	final int count;
+	final int mask;
+	final int dataStart;
+
+	/**
+	 * Get the lookup table for a source file, using the compiled store
+	 * if it can be built and falling back to the properties loaded by
+	 * the LookupTable class if it cannot.
+	 * @param source the lookup table file (.properties or .csv).
+	 * @return the lookup table.
+	 */
+	public static Properties getProperties(File source) {
+		try { return getInstance(source); }
+		catch (Exception ex) {
+			logger.warn("Unable to open the lookup store for "+source, ex);
+			return LookupTable.getInstance(source).getProperties();
+		}
+	}
+
+	/**
+	 * Get the store for a source file, building it if it does not exist
+	 * or if it is older than the source file.
+	 * @param source the lookup table file (.properties or .csv).
+	 * @return the store.
+	 * @throws IOException if the store cannot be built or mapped.
+	 */
+	public static synchronized LookupStore getInstance(File source) throws IOException {
+		source = source.getAbsoluteFile();
+		String key = source.getPath();
+		LookupStore store = stores.get(key);
+		if ((store != null) && store.isCurrent()) return store;
+		File storeFile = new File(source.getParentFile(), source.getName() + SUFFIX);
+		if (!storeFile.exists() || (storeFile.lastModified() < source.lastModified())) {
+			build(source, storeFile);
+		}
+		store = new LookupStore(source, storeFile);
+		stores.put(key, store);
+		return store;
+	}
+
+	/**
+	 * Open a store.
+	 * @param source the file from which the store was built.
+	 * @param storeFile the store.
+	 * @throws IOException if the store cannot be mapped or is invalid.
+	 */
+	public LookupStore(File source, File storeFile) throws IOException {
+		this.source = source;
+		this.sourceLastModified = source.lastModified();
+		RandomAccessFile raf = new RandomAccessFile(storeFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException("Lookup store too large");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally { raf.close(); }
+		if ((buffer.capacity() < HEADER)
+				|| (buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+			throw new IOException("Invalid lookup store: "+storeFile);
+		}
+		count = buffer.getInt(8);
+		int slots = buffer.getInt(12);
+		mask = slots - 1;
+		dataStart = HEADER + 8 * slots;
+		if ((slots & mask) != 0 || (dataStart + buffer.getInt(16) != buffer.capacity())) {
+			throw new IOException("Corrupt lookup store: "+storeFile);
+		}
+	}
+
+	/**
+	 * Determine whether the store was built from the current version
+	 * of its source file.
+	 * @return true if the source has not changed.
+	 */
+	public boolean isCurrent() {
+		return source.lastModified() == sourceLastModified;
+	}
+
+	public String getProperty(String key) {
+		if (key == null) return null;
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		int h = hash(k);
+		int i = h & mask;
+		while (true) {
+			int slot = HEADER + 8 * i;
+			int offset = buffer.getInt(slot + 4);
+			if (offset == 0) return null;
+			if (buffer.getInt(slot) == h) {
+				int p = dataStart + offset - 1;
+				if (keyEquals(p, k)) {
+					p += 4 + k.length;
+					int len = buffer.getInt(p);
+					byte[] value = new byte[len];
+					for (int j=0; j<len; j++) value[j] = buffer.get(p + 4 + j);
+					return new String(value, StandardCharsets.UTF_8);
+				}
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	public String getProperty(String key, String defaultValue) {
+		String value = getProperty(key);
+		return (value != null) ? value : defaultValue;
+	}
+
+	public Object get(Object key) {
+		return (key instanceof String) ? getProperty((String)key) : null;
+	}
+
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public Object put(Object key, Object value) {
+		throw new UnsupportedOperationException("The lookup store is read-only");
+	}
+
+	//Compare the key of the entry at an absolute position with a key.
+	private boolean keyEquals(int p, byte[] k) {
+		if (buffer.getInt(p) != k.length) return false;
+		p += 4;
+		for (int j=0; j<k.length; j++) {
+			if (buffer.get(p + j) != k[j]) return false;
+		}
+		return true;
+	}
+
+	private static int hash(byte[] b) {
+		return hash(b, b.length);
+	}
+
+	//FNV-1a
+	private static int hash(byte[] b, int length) {
+		int h = 0x811C9DC5;
+		for (int i=0; i<length; i++) {
+			h ^= (b[i] & 0xFF);
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	/**
+	 * Build a store from a lookup table. Later entries for a key replace
+	 * earlier ones, as they do when a properties file is loaded. The table
+	 * is read one line at a time and each entry is appended to a temporary
+	 * file, so only the hash and offset of each entry are held in memory.
+	 * @param source the lookup table file (.properties or .csv).
+	 * @param storeFile the store to create.
+	 * @throws IOException if the source cannot be read or the store
+	 * cannot be written.
+	 */
+	public static void build(File source, File storeFile) throws IOException {
+		File dir = storeFile.getAbsoluteFile().getParentFile();
+		Builder builder = new Builder(File.createTempFile(storeFile.getName() + ".", ".data", dir));
+		try {
+			if (source.exists()) {
+				Charset charset = getCharset(source);
+				if (source.getName().toLowerCase().endsWith(".csv")) readCSV(source, charset, builder);
+				else readProperties(source, charset, builder);
+			}
+			File temp = new File(dir, storeFile.getName() + ".tmp");
+			builder.write(temp);
+			if (storeFile.exists() && !storeFile.delete()) {
+				temp.delete();
+				throw new IOException("Unable to replace "+storeFile);
+			}
+			if (!temp.renameTo(storeFile)) throw new IOException("Unable to rename "+temp);
+			logger.info("Built the lookup store for "+source+" ("+builder.entries+" entries)");
+		}
+		finally { builder.close(); }
+	}
+
+	//Get the encoding of a lookup table. The LookupTable class reads
+	//tables as UTF-8, so a table that is valid UTF-8 is read that way;
+	//otherwise it is read as ISO-8859-1, the encoding of properties
+	//files, so that Latin-1 values are not replaced.
+	private static Charset getCharset(File source) throws IOException {
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		Reader reader = new InputStreamReader(new FileInputStream(source), decoder);
+		try {
+			char[] buffer = new char[8192];
+			while (reader.read(buffer) != -1) ;
+			return StandardCharsets.UTF_8;
+		}
+		catch (CharacterCodingException notUTF8) {
+			logger.warn(source+" is not UTF-8; reading it as ISO-8859-1");
+			return StandardCharsets.ISO_8859_1;
+		}
+		finally { FileUtil.close(reader); }
+	}
+
+	//Read a properties file one logical line at a time, loading each one
+	//into an empty Properties object so that comments, separators,
+	//continuation lines and escapes are handled exactly as they are when
+	//the whole file is loaded.
+	private static void readProperties(File source, Charset charset, Builder builder) throws IOException {
+		Properties props = new Properties();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), charset));
+		try {
+			StringBuilder sb = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (sb.length() == 0) {
+					if (isComment(line)) continue;
+				}
+				else sb.append('\n');
+				sb.append(line);
+				if (isContinued(line)) continue;
+				add(props, sb, builder);
+			}
+			add(props, sb, builder);
+		}
+		finally { FileUtil.close(reader); }
+	}
+
+	private static void add(Properties props, StringBuilder sb, Builder builder) throws IOException {
+		if (sb.length() == 0) return;
+		props.load(new StringReader(sb.toString()));
+		sb.setLength(0);
+		for (Map.Entry<Object,Object> entry : props.entrySet()) {
+			builder.add((String)entry.getKey(), (String)entry.getValue());
+		}
+		props.clear();
+	}
+
+	private static boolean isComment(String line) {
+		for (int i=0; i<line.length(); i++) {
+			char c = line.charAt(i);
+			if ((c != ' ') && (c != '\t') && (c != '\f')) return (c == '#') || (c == '!');
+		}
+		return false;
+	}
+
+	//A line continues if it ends with an odd number of backslashes.
+	private static boolean isContinued(String line) {
+		int n = 0;
+		for (int i=line.length()-1; (i >= 0) && (line.charAt(i) == '\\'); i--) n++;
+		return (n % 2) == 1;
+	}
+
+	private static void readCSV(File source, Charset charset, Builder builder) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), charset));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int k = line.indexOf(",");
+				if ((k <= 0) || line.startsWith("#")) continue;
+				builder.add(line.substring(0, k).trim(), line.substring(k+1).trim());
+			}
+		}
+		finally { FileUtil.close(reader); }
+	}
+
+	//Appends the entries to a temporary file as they are read, and then
+	//writes the store: the slot table, built from the entries in the
+	//temporary file, followed by the contents of the temporary file.
+	static class Builder {
+		final File dataFile;
+		DataOutputStream out;
+		RandomAccessFile raf = null;
+		long length = 0;
+		int count = 0;
+		int entries = 0;
+
+		Builder(File dataFile) throws IOException {
+			this.dataFile = dataFile;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile), 65536));
+		}
+
+		public void add(String key, String value) throws IOException {
+			byte[] k = key.getBytes(StandardCharsets.UTF_8);
+			byte[] v = value.getBytes(StandardCharsets.UTF_8);
+			length += 8 + k.length + v.length;
+			if (length > Integer.MAX_VALUE - 8) throw new IOException("Lookup table too large");
+			out.writeInt(k.length);
+			out.write(k);
+			out.writeInt(v.length);
+			out.write(v);
+			count++;
+		}
+
+		public void write(File file) throws IOException {
+			out.close();
+			out = null;
+			int slots = 16;
+			while (slots < count * 2) slots <<= 1;
+			if (HEADER + 8L * slots + length > Integer.MAX_VALUE) {
+				throw new IOException("Lookup table too large");
+			}
+			int mask = slots - 1;
+			int[] table = new int[2 * slots];
+			raf = new RandomAccessFile(dataFile, "r");
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataFile), 65536));
+			try {
+				byte[] k = new byte[256];
+				int offset = 0;
+				for (int n=0; n<count; n++) {
+					int klen = in.readInt();
+					if (klen > k.length) k = new byte[Math.max(klen, 2 * k.length)];
+					in.readFully(k, 0, klen);
+					int vlen = in.readInt();
+					in.skipBytes(vlen);
+					int h = hash(k, klen);
+					int i = h & mask;
+					while (true) {
+						int slotOffset = table[2*i + 1];
+						if (slotOffset == 0) {
+							table[2*i] = h;
+							table[2*i + 1] = offset + 1;
+							entries++;
+							break;
+						}
+						if ((table[2*i] == h) && sameKey(slotOffset - 1, k, klen)) {
+							table[2*i + 1] = offset + 1;
+							break;
+						}
+						i = (i + 1) & mask;
+					}
+					offset += 8 + klen + vlen;
+				}
+			}
+			finally { FileUtil.close(in); }
+
+			OutputStream fos = new FileOutputStream(file);
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+			try {
+				dos.writeInt(MAGIC);
+				dos.writeInt(VERSION);
+				dos.writeInt(entries);
+				dos.writeInt(slots);
+				dos.writeInt((int)length);
+				for (int t : table) dos.writeInt(t);
+				table = null;
+				InputStream data = new FileInputStream(dataFile);
+				try {
+					byte[] buffer = new byte[65536];
+					int n;
+					while ((n = data.read(buffer)) != -1) dos.write(buffer, 0, n);
+				}
+				finally { FileUtil.close(data); }
+			}
+			finally { dos.close(); }
+		}
+
+		//Compare the key of an earlier entry in the temporary file with a key.
+		private boolean sameKey(int offset, byte[] k, int klen) throws IOException {
+			raf.seek(offset);
+			if (raf.readInt() != klen) return false;
+			byte[] other = new byte[klen];
+			raf.readFully(other);
+			for (int j=0; j<klen; j++) {
+				if (other[j] != k[j]) return false;
+			}
+			return true;
+		}
+
+		public void close() {
+			if (out != null) {
+				try { out.close(); }
+				catch (IOException ignore) { }
+			}
+			if (raf != null) {
+				try { raf.close(); }
+				catch (IOException ignore) { }
+			}
+			dataFile.delete();
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * A manifest of the SHA-256 hashes of the files in a tree. Each line of
+ * the manifest holds the path of a file relative to the directory of the
+ * manifest, its length, and its hash, separated by tabs.
+ * <p>
+ * Entries are added by the threads of a batch as they write the files,
+ * from digests computed while the bytes were written, and are appended
+ * to the manifest file in groups, so the file is not written for every
+ * entry. A later entry for a path replaces any earlier one. A manifest
+ * can also verify the tree it describes, with a pool of threads.
+ */
+public class Manifest {
+
+	static final Logger logger = Logger.getLogger(Manifest.class);
+
+	/** The name of the manifest file in the root of a tree. */
+	public static final String name = "sha256-manifest.txt";
+
+	static final String algorithm = "SHA-256";
+	static final int flushInterval = 64;
+	static final int bufferSize = 65536;
+
+	File file;
+	File root;
+	StringBuffer pending = new StringBuffer();
+	int pendingCount = 0;
+	int count = 0;
+
+	/**
+	 * Create a manifest in the root directory of a tree. Entries are
+	 * appended to any that the manifest file already has.
+	 * @param root the root directory of the tree.
+	 */
+	public Manifest(File root) {
+		this.root = root.getAbsoluteFile();
+		this.file = new File(this.root, name);
+	}
+
+	/**
+	 * Get the manifest file.
+	 * @return the file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Create a digest of the kind used in manifests.
+	 * @return the digest.
+	 */
+	public static MessageDigest getDigest() {
+		try { return MessageDigest.getInstance(algorithm); }
+		catch (Exception ex) { throw new RuntimeException(algorithm + " is not available"); }
+	}
+
+	/**
+	 * Add an entry for a file whose digest was computed while it was written.
+	 * @param output the file.
+	 * @param length the length of the file.
+	 * @param hash the digest of the contents of the file.
+	 * @throws IOException if the entries cannot be appended to the manifest file.
+	 */
+	public synchronized void add(File output, long length, byte[] hash) throws IOException {
+		pending.append(getPath(output) + "\t" + length + "\t" + toHex(hash) + "\n");
+		count++;
+		if (++pendingCount >= flushInterval) flush();
+	}
+
+	/**
+	 * Add an entry for a file that has already been written, reading it
+	 * to compute its digest.
+	 * @param output the file.
+	 * @throws IOException if the file cannot be read or the entries
+	 * cannot be appended to the manifest file.
+	 */
+	public void add(File output) throws IOException {
+		add(output, output.length(), hash(output));
+	}
+
+	/**
+	 * Append the pending entries to the manifest file.
+	 * @throws IOException if the entries cannot be appended.
+	 */
+	public synchronized void flush() throws IOException {
+		if (pendingCount == 0) return;
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+			writer.write(pending.toString());
+			writer.close();
+			writer = null;
+		}
+		finally { FileUtil.close(writer); }
+		pending.setLength(0);
+		pendingCount = 0;
+	}
+
+	/**
+	 * Get the number of entries added to the manifest.
+	 * @return the number of entries.
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get a description of the manifest, for the summary of a batch.
+	 * @return the number of entries added and the manifest file.
+	 */
+	public String toString() {
+		return getCount() + " entries added to " + file;
+	}
+
+	//Get the path of a file relative to the root, with / separators.
+	String getPath(File output) {
+		String path = output.getAbsolutePath();
+		String rootPath = root.getPath() + File.separator;
+		if (path.startsWith(rootPath)) path = path.substring(rootPath.length());
+		return path.replace(File.separatorChar, '/');
+	}
+
+	//Compute the digest of a file, reading it in blocks.
+	static byte[] hash(File file) throws IOException {
+		MessageDigest md = getDigest();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte[] buffer = new byte[bufferSize];
+			int n;
+			while ((n = in.read(buffer)) != -1) md.update(buffer, 0, n);
+			return md.digest();
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	static String toHex(byte[] hash) {
+		StringBuffer sb = new StringBuffer();
+		for (byte b : hash) sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+
+	/**
+	 * Verify the files of the tree described by a manifest file with a
+	 * pool of threads. Each file of the tree is hashed and compared with
+	 * its entry; files that are not listed are skipped, and files that
+	 * are listed but missing are reported as failed after the batch.
+	 * @param manifestFile the manifest file, in the root of the tree.
+	 * @param threads the number of threads.
+	 * @param listener the listener for the results, or null.
+	 * @return the summary of the verification.
+	 * @throws IOException if the manifest cannot be read.
+	 */
+	public static BatchProcessor.Summary verify(File manifestFile, int threads,
+								BatchProcessor.Listener listener) throws IOException {
+		long startTime = System.currentTimeMillis();
+		final Manifest manifest = new Manifest(manifestFile.getAbsoluteFile().getParentFile());
+		final Map<String,String[]> entries = read(manifestFile);
+		final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+		final AtomicInteger verified = new AtomicInteger();
+		final AtomicInteger mismatched = new AtomicInteger();
+		final AtomicInteger unlisted = new AtomicInteger();
+
+		LinkedList<File> files = new LinkedList<File>();
+		listFiles(manifest.root, manifestFile.getAbsoluteFile(), files);
+		BatchProcessor.Task task = new BatchProcessor.Task() {
+			public BatchProcessor.Result process(File file) throws Exception {
+				String path = manifest.getPath(file);
+				String[] entry = entries.get(path);
+				if (entry == null) {
+					unlisted.incrementAndGet();
+					return BatchProcessor.Result.skipped(file, "not in the manifest");
+				}
+				seen.add(path);
+				long length = file.length();
+				if (length != Long.parseLong(entry[0])) {
+					mismatched.incrementAndGet();
+					return BatchProcessor.Result.failed(file, "length is " + length + "; expected " + entry[0]);
+				}
+				if (!toHex(hash(file)).equals(entry[1])) {
+					mismatched.incrementAndGet();
+					return BatchProcessor.Result.failed(file, "SHA-256 does not match");
+				}
+				verified.incrementAndGet();
+				return BatchProcessor.Result.ok(file, "");
+			}
+		};
+		BatchProcessor.Summary summary = new BatchProcessor(threads).run(files, task, listener);
+
+		int missing = 0;
+		for (String path : entries.keySet()) {
+			if (seen.contains(path)) continue;
+			missing++;
+			BatchProcessor.Result result = BatchProcessor.Result.failed(new File(manifest.root, path), "missing");
+			summary.add(result);
+			if (listener != null) listener.resultAvailable(result);
+		}
+		summary.elapsed = System.currentTimeMillis() - startTime;
+		summary.addStatistic("Manifest", manifestFile + " (" + entries.size() + " entries)");
+		summary.addStatistic("Verification", verified.get() + " verified; " + mismatched.get() + " changed; "
+											+ missing + " missing; " + unlisted.get() + " not listed");
+		return summary;
+	}
+
+	//Read the entries of a manifest file, indexed by path, with the
+	//later entries for a path replacing the earlier ones.
+	static Map<String,String[]> read(File manifestFile) throws IOException {
+		HashMap<String,String[]> entries = new HashMap<String,String[]>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(
+						new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 3) continue;
+				entries.put(fields[0], new String[] { fields[1].trim(), fields[2].trim().toLowerCase() });
+			}
+		}
+		finally { FileUtil.close(reader); }
+		return entries;
+	}
+
+	//List all the files of a tree except the manifest.
+	private static void listFiles(File dir, File manifestFile, List<File> list) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		Arrays.sort(files);
+		for (File f : files) {
+			if (f.isDirectory()) listFiles(f, manifestFile, list);
+			else if (!f.getAbsoluteFile().equals(manifestFile)) list.add(f);
+		}
+	}
+
+}
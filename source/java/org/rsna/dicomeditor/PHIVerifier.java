@@ -0,0 +1,394 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmElement;
+import org.dcm4che.data.SpecificCharacterSet;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.VRs;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerContext;
+import org.rsna.util.FileUtil;
+
+/**
+ * Verifies that no identifying value of an object survives in its
+ * anonymized version.
+ * <p>
+ * The identifying values are the text values of the elements of the
+ * original object that the script changes (every scripted element that
+ * is not kept, at the top level or in the items of sequences), with
+ * person names also split into their components. Values that the
+ * anonymization left unchanged in their own top-level element are
+ * assumed to be kept deliberately and are not searched for. All the
+ * values of an object are compiled into one Aho-Corasick automaton, and
+ * every text element of the anonymized dataset, including those in
+ * sequences, is scanned once for all of them. A match only counts if
+ * it is not part of a longer word or number. Optionally, the bytes of
+ * the output file are scanned as well, which also covers the elements
+ * that follow the pixel data.
+ * <p>
+ * The verifier is called by the FileAnonymizer with the datasets it has
+ * already parsed, so the scan adds no I/O unless the raw scan is enabled.
+ * It can be used by any number of threads.
+ */
+public class PHIVerifier {
+
+	static final Logger logger = Logger.getLogger(PHIVerifier.class);
+
+	static final int minLength = 3;
+	static final int maxHitsPerFile = 20;
+
+	CompiledScript script;
+	boolean scanRawBytes;
+	final AtomicInteger filesScanned = new AtomicInteger();
+	final AtomicInteger filesWithHits = new AtomicInteger();
+	final AtomicInteger hitCount = new AtomicInteger();
+
+	/**
+	 * Create a PHIVerifier.
+	 * @param script the script used for the anonymization.
+	 * @param scanRawBytes true if the bytes of the output files are to
+	 * be scanned in addition to the text elements.
+	 */
+	public PHIVerifier(CompiledScript script, boolean scanRawBytes) {
+		this.script = script;
+		this.scanRawBytes = scanRawBytes;
+	}
+
+	/**
+	 * Verify one anonymized object.
+	 * @param context the context of the anonymization, holding the
+	 * original and the anonymized datasets.
+	 * @param outFile the anonymized file, for the raw scan.
+	 * @return the residual values found, as descriptions of the form
+	 * "(gggg,eeee) contains "value" from (gggg,eeee)", or an empty list.
+	 */
+	public List<String> verify(DICOMAnonymizerContext context, File outFile) {
+		return verify(context, outFile, null);
+	}
+
+	/**
+	 * Verify one anonymized object that was written to memory.
+	 * @param context the context of the anonymization, holding the
+	 * original and the anonymized datasets.
+	 * @param bytes the anonymized object, for the raw scan.
+	 * @return the residual values found, or an empty list.
+	 */
+	public List<String> verify(DICOMAnonymizerContext context, byte[] bytes) {
+		return verify(context, null, bytes);
+	}
+
+	private List<String> verify(DICOMAnonymizerContext context, File outFile, byte[] bytes) {
+		filesScanned.incrementAndGet();
+		LinkedList<String> hits = new LinkedList<String>();
+		Automaton automaton = new Automaton();
+		collect(context, automaton);
+		if (automaton.size() == 0) return hits;
+		automaton.compile();
+		scan(context.outDS, context.outDS.getSpecificCharacterSet(), automaton, hits);
+		if (scanRawBytes && (hits.size() < maxHitsPerFile)) {
+			if (outFile != null) scanFile(outFile, automaton, hits);
+			else if (bytes != null) scanBytes(bytes, automaton, hits);
+		}
+		if (hits.size() > 0) {
+			filesWithHits.incrementAndGet();
+			hitCount.addAndGet(hits.size());
+		}
+		return hits;
+	}
+
+	/**
+	 * Get a description of the results, for the summary of a batch.
+	 * @return the numbers of files scanned and files with residual values.
+	 */
+	public String toString() {
+		int n = filesWithHits.get();
+		String s = filesScanned.get() + " files scanned; ";
+		if (n == 0) return s + "no residual values found";
+		return s + hitCount.get() + " residual value" + ((hitCount.get() != 1) ? "s" : "")
+					+ " in " + n + " file" + ((n != 1) ? "s" : "");
+	}
+
+	//Add the identifying values of the original object to the automaton.
+	private void collect(DICOMAnonymizerContext context, Automaton automaton) {
+		Dataset inDS = context.inDS;
+		collect(inDS, context.outDS, inDS.getSpecificCharacterSet(), context, automaton);
+	}
+
+	//Add the identifying values of a dataset or sequence item, and those
+	//of its sequences. The elements in items are identified by the script
+	//of their tag. The anonymizer does not process the elements of items,
+	//so a value in an item is never assumed to be kept deliberately; the
+	//output dataset is only given for the top level.
+	private void collect(Dataset inDS, Dataset outDS, SpecificCharacterSet cs,
+						 DICOMAnonymizerContext context, Automaton automaton) {
+		Iterator it = inDS.iterator();
+		while (it.hasNext()) {
+			DcmElement el = (DcmElement)it.next();
+			int tag = el.tag();
+			int vr = el.vr();
+			if (vr == VRs.SQ) {
+				for (int i=0; i<el.countItems(); i++) {
+					Dataset item = el.getItem(i);
+					SpecificCharacterSet itemCS = item.getSpecificCharacterSet();
+					collect(item, null, (itemCS != null) ? itemCS : cs, context, automaton);
+				}
+				continue;
+			}
+			if (!isIdentifyingVR(vr)) continue;
+			ScriptAction action = script.getAction(tag, context);
+			if ((action == null) || (action.kind == ScriptAction.KEEP)) continue;
+			String value = getValue(el, cs);
+			if (value == null) continue;
+			if ((outDS != null) && value.equals(getValue(outDS.get(tag), cs))) continue;
+			for (String v : value.split("\\\\")) {
+				automaton.add(v, tag);
+				if (vr == VRs.PN) {
+					for (String component : v.split("[\\^=]")) automaton.add(component, tag);
+				}
+			}
+		}
+	}
+
+	//Scan the text elements of a dataset and its sequences.
+	private void scan(Dataset ds, SpecificCharacterSet cs, Automaton automaton, List<String> hits) {
+		Iterator it = ds.iterator();
+		while (it.hasNext() && (hits.size() < maxHitsPerFile)) {
+			DcmElement el = (DcmElement)it.next();
+			if (el.vr() == VRs.SQ) {
+				for (int i=0; i<el.countItems(); i++) {
+					Dataset item = el.getItem(i);
+					SpecificCharacterSet itemCS = item.getSpecificCharacterSet();
+					scan(item, (itemCS != null) ? itemCS : cs, automaton, hits);
+				}
+			}
+			else if (isTextVR(el.vr())) {
+				String value = getValue(el, cs);
+				if (value != null) automaton.search(value, Tags.toString(el.tag()), hits);
+			}
+		}
+	}
+
+	//Scan the bytes of a file, read as ISO 8859-1.
+	private void scanFile(File file, Automaton automaton, List<String> hits) {
+		Reader reader = null;
+		try {
+			reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), "ISO-8859-1");
+			automaton.search(reader, "raw bytes", hits);
+		}
+		catch (Exception ex) { logger.warn("Unable to scan "+file, ex); }
+		finally { FileUtil.close(reader); }
+	}
+
+	//Scan the bytes of an object in memory, read as ISO 8859-1.
+	private void scanBytes(byte[] bytes, Automaton automaton, List<String> hits) {
+		try {
+			Reader reader = new InputStreamReader(new ByteArrayInputStream(bytes), "ISO-8859-1");
+			automaton.search(reader, "raw bytes", hits);
+		}
+		catch (Exception ex) { logger.warn("Unable to scan the object", ex); }
+	}
+
+	private static String getValue(DcmElement el, SpecificCharacterSet cs) {
+		if ((el == null) || el.hasDataFragments()) return null;
+		try {
+			String[] s = el.getStrings(cs);
+			if ((s == null) || (s.length == 0)) return null;
+			StringBuffer sb = new StringBuffer();
+			for (int i=0; i<s.length; i++) {
+				if (i > 0) sb.append("\\");
+				if (s[i] != null) sb.append(s[i].trim());
+			}
+			return sb.toString();
+		}
+		catch (Exception notString) { return null; }
+	}
+
+	//The VRs of the values that can identify a patient. Code strings,
+	//ages, numbers and times are excluded; they are too short or too
+	//common to be searched for without false alarms.
+	private static boolean isIdentifyingVR(int vr) {
+		return (vr == VRs.PN) || (vr == VRs.LO) || (vr == VRs.SH) || (vr == VRs.LT)
+				|| (vr == VRs.ST) || (vr == VRs.UT) || (vr == VRs.DA) || (vr == VRs.DT)
+				|| (vr == VRs.UI) || (vr == VRs.AE);
+	}
+
+	//The VRs of the elements that are scanned.
+	private static boolean isTextVR(int vr) {
+		return isIdentifyingVR(vr) || (vr == VRs.CS) || (vr == VRs.AS)
+				|| (vr == VRs.IS) || (vr == VRs.DS) || (vr == VRs.TM);
+	}
+
+	/**
+	 * A case-insensitive Aho-Corasick automaton over chars. A match is
+	 * only recorded if the chars on either side of it are not letters or
+	 * digits. The trie is
+	 * held in int arrays, with the children of each state in a linked
+	 * list, which is small and cheap to build for the few hundred states
+	 * of the values of one object.
+	 */
+	static class Automaton {
+		char[] symbol = new char[256];		//the char that leads to each state
+		int[] firstChild = new int[256];
+		int[] nextSibling = new int[256];
+		int[] output = new int[256];		//the pattern that ends at each state, or -1
+		int[] fail;
+		int[] link;							//the next state on the fail path with an output
+		int states = 1;
+		ArrayList<String> patterns = new ArrayList<String>();
+		ArrayList<Integer> sources = new ArrayList<Integer>();
+		HashSet<String> added = new HashSet<String>();
+		int maxLength = 0;
+
+		public Automaton() {
+			output[0] = -1;
+		}
+
+		public int size() {
+			return patterns.size();
+		}
+
+		public void add(String pattern, int sourceTag) {
+			pattern = pattern.trim().toLowerCase();
+			if ((pattern.length() < minLength) || !added.add(pattern)) return;
+			int state = 0;
+			for (int i=0; i<pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				int child = child(state, c);
+				if (child == 0) {
+					if (states == symbol.length) grow();
+					child = states++;
+					symbol[child] = c;
+					output[child] = -1;
+					firstChild[child] = 0;
+					nextSibling[child] = firstChild[state];
+					firstChild[state] = child;
+				}
+				state = child;
+			}
+			patterns.add(pattern);
+			sources.add(sourceTag);
+			maxLength = Math.max(maxLength, pattern.length());
+			output[state] = patterns.size() - 1;
+		}
+
+		private void grow() {
+			int n = 2 * symbol.length;
+			symbol = Arrays.copyOf(symbol, n);
+			firstChild = Arrays.copyOf(firstChild, n);
+			nextSibling = Arrays.copyOf(nextSibling, n);
+			output = Arrays.copyOf(output, n);
+		}
+
+		//Get the child of a state for a char, or 0 if there is none.
+		private int child(int state, char c) {
+			for (int s = firstChild[state]; s != 0; s = nextSibling[s]) {
+				if (symbol[s] == c) return s;
+			}
+			return 0;
+		}
+
+		//Add the failure links, breadth first.
+		public void compile() {
+			fail = new int[states];
+			link = new int[states];
+			int[] queue = new int[states];
+			int head = 0, tail = 0;
+			for (int s = firstChild[0]; s != 0; s = nextSibling[s]) {
+				fail[s] = 0;
+				link[s] = 0;
+				queue[tail++] = s;
+			}
+			while (head < tail) {
+				int r = queue[head++];
+				for (int s = firstChild[r]; s != 0; s = nextSibling[s]) {
+					int f = fail[r];
+					int t;
+					while (((t = child(f, symbol[s])) == 0) && (f != 0)) f = fail[f];
+					fail[s] = t;
+					link[s] = (output[t] >= 0) ? t : link[t];
+					queue[tail++] = s;
+				}
+			}
+		}
+
+		public void search(String text, String where, List<String> hits) {
+			Search search = new Search(where, hits);
+			for (int i=0; i<text.length(); i++) search.next(text.charAt(i));
+			search.end();
+		}
+
+		public void search(Reader reader, String where, List<String> hits) throws IOException {
+			Search search = new Search(where, hits);
+			char[] buffer = new char[8192];
+			int n;
+			while ((n = reader.read(buffer)) != -1) {
+				for (int i=0; i<n; i++) search.next(buffer[i]);
+			}
+			search.end();
+		}
+
+		//The state of a search of one text. The last chars are kept, as
+		//many as the longest pattern and at least 256, to check the char
+		//before a match.
+		class Search {
+			String where;
+			List<String> hits;
+			int state = 0;
+			long pos = 0;
+			char[] window;
+			int mask;
+
+			public Search(String where, List<String> hits) {
+				this.where = where;
+				this.hits = hits;
+				int size = 256;
+				while (size <= maxLength) size <<= 1;
+				window = new char[size];
+				mask = size - 1;
+			}
+
+			public void next(char c) {
+				if (state != 0) checkEnd(state, pos, c, this);
+				window[(int)(pos & mask)] = c;
+				pos++;
+				char lc = Character.toLowerCase(c);
+				int t;
+				while (((t = child(state, lc)) == 0) && (state != 0)) state = fail[state];
+				state = t;
+			}
+
+			public void end() {
+				if (state != 0) checkEnd(state, pos, ' ', this);
+			}
+		}
+
+		//When the char after a state is seen, record the patterns that end
+		//at the state if the chars after and before them are word boundaries.
+		private void checkEnd(int state, long end, int after, Search search) {
+			if (Character.isLetterOrDigit(after)) return;
+			List<String> hits = search.hits;
+			for (int s = (output[state] >= 0) ? state : link[state]; s != 0; s = link[s]) {
+				int p = output[s];
+				String pattern = patterns.get(p);
+				long start = end - pattern.length();
+				if (start > 0) {
+					char before = search.window[(int)((start - 1) & search.mask)];
+					if (Character.isLetterOrDigit(before)) continue;
+				}
+				String hit = search.where + " contains \"" + pattern + "\" from " + Tags.toString(sources.get(p));
+				if ((hits.size() < maxHitsPerFile) && !hits.contains(hit)) hits.add(hit);
+			}
+		}
+	}
+
+}
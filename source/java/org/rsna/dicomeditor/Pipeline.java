@@ -0,0 +1,457 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.UIDs;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.util.FileUtil;
+
+/**
+ * Processes each file of a batch through a chain of stages in one pass:
+ * the file is read once, each stage transforms the object in memory, and
+ * the result is written once, or not at all if the file is written in
+ * place and no stage changed it. A stage can also drop an object, which
+ * leaves the file alone. Since the whole object is held in memory, files
+ * larger than an array can hold are refused.
+ * <p>
+ * The time spent in each stage, and in reading and writing the files, is
+ * accumulated over all the threads of the batch. The same Pipeline can be
+ * used by any number of threads at once.
+ */
+public class Pipeline {
+
+	static final Logger logger = Logger.getLogger(Pipeline.class);
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	//The largest file that can be held in an array.
+	static final long maxLength = Integer.MAX_VALUE - 8;
+
+	final Stage[] stages;
+	final AtomicLong[] nanos;
+	final AtomicInteger[] changed;
+	final AtomicInteger[] dropped;
+	final AtomicLong readNanos = new AtomicLong();
+	final AtomicLong writeNanos = new AtomicLong();
+	final AtomicInteger written = new AtomicInteger();
+	final AtomicInteger unchanged = new AtomicInteger();
+	final ConcurrentHashMap<File,File> outputs = new ConcurrentHashMap<File,File>();
+	DirectoryCache directories;
+	Manifest manifest = null;
+
+	/**
+	 * Create a Pipeline.
+	 * @param stages the stages, in the order in which they are applied.
+	 * @param directories the cache through which the directories of the
+	 * output files are created.
+	 */
+	public Pipeline(List<Stage> stages, DirectoryCache directories) {
+		this.stages = stages.toArray(new Stage[stages.size()]);
+		this.directories = directories;
+		nanos = new AtomicLong[this.stages.length];
+		changed = new AtomicInteger[this.stages.length];
+		dropped = new AtomicInteger[this.stages.length];
+		for (int i=0; i<this.stages.length; i++) {
+			nanos[i] = new AtomicLong();
+			changed[i] = new AtomicInteger();
+			dropped[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Set the manifest to which an entry is added for each file written,
+	 * with a digest computed while the file is written.
+	 * @param manifest the manifest, or null if none is to be written.
+	 */
+	public void setManifest(Manifest manifest) {
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Process one file through the stages.
+	 * @param file the file.
+	 * @param data the contents of the file, or null if the file is to be read.
+	 * @param outFile the output file. It may be the same as the input file.
+	 * A stage may change its name or place it in a subdirectory.
+	 * @return the result.
+	 * @throws Exception if the file cannot be read or written, or a
+	 * stage fails.
+	 */
+	public BatchProcessor.Result process(File file, byte[] data, File outFile) throws Exception {
+		long t = System.nanoTime();
+		if (data == null) {
+			if (file.length() > maxLength) {
+				throw new Exception("The file is too large to be processed in memory; "
+									+ "use Anonymize, which streams the pixel data");
+			}
+			data = Files.readAllBytes(file.toPath());
+			readNanos.addAndGet(System.nanoTime() - t);
+		}
+		Item item = new Item(file, data, outFile.getName());
+		for (int i=0; i<stages.length; i++) {
+			t = System.nanoTime();
+			int changes = item.changes;
+			boolean keep = stages[i].process(item);
+			nanos[i].addAndGet(System.nanoTime() - t);
+			if (!keep) {
+				dropped[i].incrementAndGet();
+				String reason = (item.reason != null) ? item.reason : "dropped by " + stages[i].getName();
+				return BatchProcessor.Result.skipped(file, reason);
+			}
+			if (item.changes != changes) changed[i].incrementAndGet();
+		}
+
+		t = System.nanoTime();
+		File dir = outFile.getAbsoluteFile().getParentFile();
+		if (!item.path.equals("")) dir = directories.mkdirs(new File(dir, item.path));
+		File target = new File(dir, item.name);
+		if ((item.changes == 0) && target.equals(file.getAbsoluteFile())) {
+			unchanged.incrementAndGet();
+			return BatchProcessor.Result.info(file, "unchanged");
+		}
+		write(item.data, target);
+		writeNanos.addAndGet(System.nanoTime() - t);
+		written.incrementAndGet();
+		outputs.put(file, target);
+		if (item.warnings.length() > 0) return BatchProcessor.Result.ok(file, item.warnings.toString());
+		return BatchProcessor.Result.ok(file, "");
+	}
+
+	/**
+	 * Get the file to which a file was written.
+	 * @param file the file.
+	 * @return the output, or null if the file was not written.
+	 */
+	public File getOutput(File file) {
+		return outputs.get(file);
+	}
+
+	//Write an object to a temporary file in the directory of the
+	//target and rename it, so a failed write never leaves half a file.
+	private void write(byte[] data, File target) throws IOException {
+		File tempFile = File.createTempFile("DCMtemp-", ".pipe", target.getParentFile());
+		OutputStream out = null;
+		try {
+			MessageDigest md = (manifest != null) ? Manifest.getDigest() : null;
+			out = new FileOutputStream(tempFile);
+			if (md != null) out = new DigestOutputStream(out, md);
+			out.write(data);
+			out.close();
+			out = null;
+			if (target.exists() && !target.delete()) throw new IOException("Unable to delete " + target);
+			if (!tempFile.renameTo(target)) throw new IOException("Unable to rename "+tempFile+" to "+target);
+			if (md != null) manifest.add(target, data.length, md.digest());
+		}
+		finally {
+			FileUtil.close(out);
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Add the timings of the stages to the summary of a batch.
+	 * @param summary the summary.
+	 */
+	public void addStatistics(BatchProcessor.Summary summary) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("read " + millis(readNanos.get()));
+		for (int i=0; i<stages.length; i++) {
+			sb.append("; " + stages[i].getName() + " " + millis(nanos[i].get()));
+			int c = changed[i].get();
+			int d = dropped[i].get();
+			if ((c > 0) || (d > 0)) {
+				sb.append(" (" + c + " changed" + ((d > 0) ? ", " + d + " dropped" : "") + ")");
+			}
+		}
+		sb.append("; write " + millis(writeNanos.get()));
+		summary.addStatistic("Stage times", sb.toString() + " (summed over threads)");
+		summary.addStatistic("Output", written.get() + " written; " + unchanged.get() + " unchanged");
+	}
+
+	private static String millis(long nanos) {
+		return (nanos / 1000000) + " ms";
+	}
+
+	/**
+	 * An object passing through the stages.
+	 */
+	public static class Item {
+		/** The input file. */
+		public final File file;
+		/** The current contents of the object. */
+		public byte[] data;
+		/** The name of the output file. */
+		public String name;
+		/** The subdirectory of the output file, relative to its directory. */
+		public String path = "";
+		/** The reason for dropping the object, if it is dropped. */
+		public String reason = null;
+		final StringBuffer warnings = new StringBuffer();
+		int changes = 0;
+
+		Item(File file, byte[] data, String name) {
+			this.file = file;
+			this.data = data;
+			this.name = name;
+		}
+
+		/**
+		 * Replace the contents of the object.
+		 * @param data the new contents.
+		 */
+		public void setData(byte[] data) {
+			this.data = data;
+			changes++;
+		}
+
+		/**
+		 * Add a warning to the result for the object.
+		 * @param warning the warning, as HTML.
+		 */
+		public void addWarning(String warning) {
+			if (warnings.length() > 0) warnings.append("<br>");
+			warnings.append(warning);
+		}
+	}
+
+	/**
+	 * A transformation applied to each object. Implementations must be
+	 * safe for use by several threads at once.
+	 */
+	public interface Stage {
+		/**
+		 * Get the name of the stage, for the summary of a batch.
+		 * @return the name.
+		 */
+		public String getName();
+
+		/**
+		 * Process one object.
+		 * @param item the object.
+		 * @return true if the object is to continue through the stages;
+		 * false if it is to be dropped.
+		 * @throws Exception if the object cannot be processed.
+		 */
+		public boolean process(Item item) throws Exception;
+	}
+
+	/**
+	 * An edit of the header of an object.
+	 */
+	interface HeaderEditor {
+		/**
+		 * Edit the header.
+		 * @param ds the elements that precede the pixel data.
+		 * @return true if the header was changed.
+		 * @throws Exception if the header cannot be edited.
+		 */
+		public boolean edit(Dataset ds) throws Exception;
+	}
+
+	/**
+	 * Parse the header of an object up to the pixel data.
+	 * @param data the object.
+	 * @return the header, with its file meta information if it has any.
+	 * @throws IOException if the object cannot be parsed.
+	 */
+	static Dataset parseHeader(byte[] data) throws IOException {
+		DcmParser parser = pFact.newDcmParser(new ByteArrayInputStream(data));
+		FileFormat fileFormat = parser.detectFileFormat();
+		if (fileFormat == null) throw new IOException("Unrecognized file format");
+		Dataset ds = oFact.newDataset();
+		parser.setDcmHandler(ds.getDcmHandler());
+		parser.parseDcmFile(fileFormat, Tags.PixelData);
+		return ds;
+	}
+
+	/**
+	 * Edit the header of an object and rewrite it in its own transfer
+	 * syntax, copying the pixel data and anything that follows it unchanged.
+	 * @param data the object.
+	 * @param editor the edit.
+	 * @return the edited object, or null if the edit did not change the header.
+	 * @throws Exception if the object cannot be parsed or the edit fails.
+	 */
+	static byte[] rewriteHeader(byte[] data, HeaderEditor editor) throws Exception {
+		DcmParser parser = pFact.newDcmParser(new ByteArrayInputStream(data));
+		FileFormat fileFormat = parser.detectFileFormat();
+		if (fileFormat == null) throw new IOException("Unrecognized file format");
+		Dataset ds = oFact.newDataset();
+		parser.setDcmHandler(ds.getDcmHandler());
+		parser.parseDcmFile(fileFormat, Tags.PixelData);
+		if (!editor.edit(ds)) return null;
+
+		FileMetaInfo fmi = ds.getFileMetaInfo();
+		DcmEncodeParam encoding = getEncodeParam(fmi, parser.getDcmDecodeParam());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 1024);
+		if (fmi != null) fmi.write(out);
+		ds.writeDataset(out, encoding);
+		if (parser.getReadTag() == Tags.PixelData) {
+			ds.writeHeader(out, encoding, Tags.PixelData, parser.getReadVR(), parser.getReadLength());
+			int valueStart = (int)parser.getStreamPosition();
+			out.write(data, valueStart, data.length - valueStart);
+		}
+		return out.toByteArray();
+	}
+
+	//Get the encoding of an object in its original transfer syntax: the
+	//one in the file meta information, or without it, the one the parser
+	//found.
+	static DcmEncodeParam getEncodeParam(FileMetaInfo fmi, DcmDecodeParam fileParam) {
+		String tsuid;
+		if (fmi != null) tsuid = fmi.getTransferSyntaxUID();
+		else if (!fileParam.explicitVR) tsuid = UIDs.ImplicitVRLittleEndian;
+		else if (fileParam.byteOrder == ByteOrder.BIG_ENDIAN) tsuid = UIDs.ExplicitVRBigEndian;
+		else tsuid = UIDs.ExplicitVRLittleEndian;
+		return (DcmEncodeParam)DcmDecodeParam.valueOf(tsuid);
+	}
+
+	/**
+	 * A stage that drops the objects whose headers do not match a query.
+	 */
+	public static class FilterStage implements Stage {
+		IndexQuery query;
+		public FilterStage(IndexQuery query) {
+			this.query = query;
+		}
+		public String getName() {
+			return "filter";
+		}
+		public boolean process(Item item) throws Exception {
+			if (query.matches(parseHeader(item.data))) return true;
+			item.reason = "does not match " + query;
+			return false;
+		}
+	}
+
+	/**
+	 * A stage that corrects the VRs of the elements of the header, as
+	 * the Fix VRs operation does.
+	 */
+	public static class FixVRsStage implements Stage {
+		public String getName() {
+			return "fixvrs";
+		}
+		public boolean process(Item item) throws Exception {
+			byte[] data = rewriteHeader(item.data, new HeaderEditor() {
+				public boolean edit(Dataset ds) {
+					return VRCorrector.correct(ds);
+				}
+			});
+			if (data != null) item.setData(data);
+			return true;
+		}
+	}
+
+	/**
+	 * A stage that sets the PatientID to the name of the directory under
+	 * a root directory in which the file is found, as the Set PatientIDs
+	 * operation does.
+	 */
+	public static class PatientIDStage implements Stage {
+		String[] rootPath;
+		public PatientIDStage(File root) {
+			rootPath = root.getAbsolutePath().split("[\\\\/]");
+		}
+		public String getName() {
+			return "patientids";
+		}
+		public boolean process(Item item) throws Exception {
+			String[] path = item.file.getAbsolutePath().split("[\\\\/]");
+			if (path.length < rootPath.length + 2) {
+				throw new Exception("Unable to process files in the base directory");
+			}
+			final String name = path[rootPath.length];
+			byte[] data = rewriteHeader(item.data, new HeaderEditor() {
+				public boolean edit(Dataset ds) {
+					if (name.equals(ds.getString(Tags.PatientID))) return false;
+					ds.putLO(Tags.PatientID, name);
+					return true;
+				}
+			});
+			if (data != null) item.setData(data);
+			return true;
+		}
+	}
+
+	/**
+	 * A stage that clears the preamble of a DICOM Part 10 object, as the
+	 * Clear preamble operation does. Other objects are passed unchanged.
+	 */
+	public static class PreambleStage implements Stage {
+		public String getName() {
+			return "preamble";
+		}
+		public boolean process(Item item) {
+			byte[] b = item.data;
+			if ((b.length < 132) || (b[128] != 'D') || (b[129] != 'I') || (b[130] != 'C') || (b[131] != 'M')) {
+				return true;
+			}
+			int i = 0;
+			while ((i < 128) && (b[i] == 0)) i++;
+			if (i == 128) return true;
+			byte[] data = (byte[])b.clone();
+			Arrays.fill(data, 0, 128, (byte)0);
+			item.setData(data);
+			return true;
+		}
+	}
+
+	/**
+	 * A stage that anonymizes the object with a FileAnonymizer, which may
+	 * rename it or place it in the Patient/Study/Series hierarchy. Objects
+	 * that the script skips are dropped.
+	 */
+	public static class AnonymizeStage implements Stage {
+		FileAnonymizer anonymizer;
+		public AnonymizeStage(FileAnonymizer anonymizer) {
+			this.anonymizer = anonymizer;
+		}
+		public String getName() {
+			return "anonymize";
+		}
+		public boolean process(Item item) throws Exception {
+			File file = item.file.getAbsoluteFile();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(item.data.length + 4096);
+			LinkedList<String> residuals = new LinkedList<String>();
+			AnonymizerStatus status = anonymizer.anonymize(file, item.data, out, residuals);
+			if (status.isSKIP()) {
+				item.reason = status.getMessage();
+				return false;
+			}
+			if (!status.isOK()) throw new Exception(status.getMessage());
+			item.setData(out.toByteArray());
+			File named = status.getFile();
+			if (!named.getName().equals(file.getName())) item.name = named.getName();
+			String parent = file.getParent();
+			String dir = named.getParent();
+			if ((dir != null) && (dir.length() > parent.length())) item.path = dir.substring(parent.length() + 1);
+			if (residuals.size() > 0) {
+				StringBuffer sb = new StringBuffer("Residual PHI:");
+				for (String residual : residuals) sb.append("<br>" + RightPanel.escape(residual));
+				item.addWarning(sb.toString());
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.Tags;
+import org.rsna.util.FileUtil;
+
+/**
+ * Checks that the pixel data of anonymized objects is identical to that
+ * of the originals, without decoding it.
+ * <p>
+ * The FileAnonymizer computes a SHA-256 hash of the value of the PixelData
+ * element of the original object as it copies it, in the byte order of
+ * the output. After the output is written, the checker parses it up to the
+ * PixelData element, hashes its value the same way, and compares the two
+ * hashes. For encapsulated pixel data, the hash covers the values of the
+ * fragments. The same PixelChecker can be used by any number of threads.
+ */
+public class PixelChecker {
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	static final int bufferSize = 65536;
+
+	final AtomicInteger checked = new AtomicInteger();
+	final AtomicInteger altered = new AtomicInteger();
+
+	/**
+	 * Create a digest for the hash of the pixel data of an original object.
+	 * @return the digest.
+	 */
+	public MessageDigest getDigest() {
+		return Manifest.getDigest();
+	}
+
+	/**
+	 * Check the pixel data of an anonymized file.
+	 * @param hash the hash of the pixel data of the original object.
+	 * @param file the anonymized file.
+	 * @return true if the pixel data of the anonymized file has the same hash.
+	 * @throws IOException if the anonymized file cannot be read.
+	 */
+	public boolean check(byte[] hash, File file) throws IOException {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file), bufferSize);
+			return check(hash, in);
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	/**
+	 * Check the pixel data of an anonymized object in memory.
+	 * @param hash the hash of the pixel data of the original object.
+	 * @param bytes the anonymized object.
+	 * @return true if the pixel data of the anonymized object has the same hash.
+	 * @throws IOException if the anonymized object cannot be parsed.
+	 */
+	public boolean check(byte[] hash, byte[] bytes) throws IOException {
+		return check(hash, new ByteArrayInputStream(bytes));
+	}
+
+	private boolean check(byte[] hash, InputStream in) throws IOException {
+		checked.incrementAndGet();
+		byte[] outHash = hash(in);
+		boolean ok = (outHash != null) && Arrays.equals(hash, outHash);
+		if (!ok) altered.incrementAndGet();
+		return ok;
+	}
+
+	//Hash the value of the PixelData element of an object, or return
+	//null if it has none.
+	private byte[] hash(InputStream in) throws IOException {
+		DcmParser parser = pFact.newDcmParser(in);
+		FileFormat fileFormat = parser.detectFileFormat();
+		if (fileFormat == null) throw new IOException("Unrecognized file format");
+		Dataset ds = oFact.newDataset();
+		parser.setDcmHandler(ds.getDcmHandler());
+		parser.parseDcmFile(fileFormat, Tags.PixelData);
+		if (parser.getReadTag() != Tags.PixelData) return null;
+		MessageDigest md = getDigest();
+		byte[] buffer = new byte[bufferSize];
+		if (parser.getReadLength() != -1) {
+			digest(parser, parser.getReadLength() & 0xFFFFFFFFL, md, buffer);
+		}
+		else {
+			parser.parseHeader();
+			while (parser.getReadTag() == Tags.Item) {
+				digest(parser, parser.getReadLength() & 0xFFFFFFFFL, md, buffer);
+				parser.parseHeader();
+			}
+			if (parser.getReadTag() != Tags.SeqDelimitationItem) {
+				throw new IOException("Unexpected tag in the pixel data: " + Tags.toString(parser.getReadTag()));
+			}
+		}
+		return md.digest();
+	}
+
+	private static void digest(DcmParser parser, long len, MessageDigest md, byte[] buffer) throws IOException {
+		InputStream in = parser.getInputStream();
+		while (len > 0) {
+			int n = in.read(buffer, 0, (int)Math.min(buffer.length, len));
+			if (n == -1) throw new EOFException("EOF while reading the pixel data");
+			md.update(buffer, 0, n);
+			len -= n;
+		}
+	}
+
+	/**
+	 * Get a description of the checks, for the summary of a batch.
+	 * @return the numbers of objects checked and of objects whose
+	 * pixel data was altered.
+	 */
+	public String toString() {
+		return checked.get() + " checked; " + altered.get() + " altered";
+	}
+
+}
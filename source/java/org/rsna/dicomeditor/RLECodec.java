@@ -0,0 +1,191 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.IOException;
+
+/**
+ * The DICOM RLE Lossless codec (PS3.5 Annex G) for one frame of native
+ * pixel data. A frame is split into one segment for each byte of each
+ * sample, most significant byte first, and each segment is compressed
+ * with the PackBits scheme. An instance holds the buffers for one frame
+ * size and is used by one thread.
+ */
+public class RLECodec {
+
+	static final int headerLength = 64;
+	static final int maxSegments = 15;
+
+	final int pixels;
+	final int samples;
+	final int bytesPerSample;
+	final boolean planar;
+	final boolean bigEndian;
+	final int segments;
+	final byte[] segment;
+	final byte[] encoded;
+
+	/**
+	 * Create a codec for frames of native pixel data.
+	 * @param pixels the number of pixels in a frame (rows times columns).
+	 * @param samples the number of samples per pixel.
+	 * @param bitsAllocated the bits allocated for a sample (8, 16 or 32).
+	 * @param planar true if the samples are stored by plane
+	 * (PlanarConfiguration 1), false if they are interleaved.
+	 * @param bigEndian true if the frames are in big endian byte order.
+	 * @throws IOException if the frames cannot be encoded in RLE.
+	 */
+	public RLECodec(int pixels, int samples, int bitsAllocated, boolean planar, boolean bigEndian)
+																		throws IOException {
+		if ((bitsAllocated != 8) && (bitsAllocated != 16) && (bitsAllocated != 32)) {
+			throw new IOException("Unsupported BitsAllocated for RLE: "+bitsAllocated);
+		}
+		this.pixels = pixels;
+		this.samples = samples;
+		this.bytesPerSample = bitsAllocated / 8;
+		this.planar = planar;
+		this.bigEndian = bigEndian;
+		this.segments = samples * bytesPerSample;
+		if ((pixels <= 0) || (samples <= 0) || (segments > maxSegments)) {
+			throw new IOException("Unsupported image for RLE: "+samples+" samples of "+bitsAllocated+" bits");
+		}
+		this.segment = new byte[pixels];
+		this.encoded = new byte[headerLength + segments * (pixels + pixels/128 + 4)];
+	}
+
+	/**
+	 * Get the number of bytes in a frame.
+	 * @return the frame length.
+	 */
+	public int getFrameLength() {
+		return pixels * segments;
+	}
+
+	/**
+	 * Encode a frame. The encoded frame, including the RLE header, is
+	 * left in the buffer returned by getEncoded.
+	 * @param frame the frame.
+	 * @return the length of the encoded frame, which is even.
+	 */
+	public int encode(byte[] frame) {
+		for (int i=0; i<headerLength; i++) encoded[i] = 0;
+		putInt(encoded, 0, segments);
+		int p = headerLength;
+		for (int s=0; s<segments; s++) {
+			putInt(encoded, 4 + 4*s, p);
+			extract(frame, s);
+			p = pack(segment, pixels, encoded, p);
+			if ((p & 1) != 0) encoded[p++] = 0;
+		}
+		return p;
+	}
+
+	/**
+	 * Get the buffer holding the last encoded frame.
+	 * @return the buffer.
+	 */
+	public byte[] getEncoded() {
+		return encoded;
+	}
+
+	/**
+	 * Decode an encoded frame and compare it with the original frame.
+	 * @param rle the encoded frame.
+	 * @param length the length of the encoded frame.
+	 * @param frame the original frame.
+	 * @return true if the decoded frame is identical to the original.
+	 */
+	public boolean verify(byte[] rle, int length, byte[] frame) {
+		if (getInt(rle, 0) != segments) return false;
+		for (int s=0; s<segments; s++) {
+			int start = getInt(rle, 4 + 4*s);
+			int end = (s + 1 < segments) ? getInt(rle, 8 + 4*s) : length;
+			if ((start < headerLength) || (end > length) || (start > end)) return false;
+			if (!unpack(rle, start, end, segment, pixels)) return false;
+			int k = s / bytesPerSample;
+			int b = s % bytesPerSample;
+			for (int i=0; i<pixels; i++) {
+				if (frame[index(i, k, b)] != segment[i]) return false;
+			}
+		}
+		return true;
+	}
+
+	//Copy one byte of one sample of each pixel into the segment buffer.
+	private void extract(byte[] frame, int s) {
+		int k = s / bytesPerSample;
+		int b = s % bytesPerSample;
+		for (int i=0; i<pixels; i++) segment[i] = frame[index(i, k, b)];
+	}
+
+	//Get the index in a frame of byte b (0 = most significant) of
+	//sample k of pixel i.
+	private int index(int i, int k, int b) {
+		int sample = planar ? (k * pixels + i) : (i * samples + k);
+		return sample * bytesPerSample + (bigEndian ? b : (bytesPerSample - 1 - b));
+	}
+
+	//PackBits: runs of two or more equal bytes are replicated (header
+	//1-n), and other bytes are copied literally (header n-1), at most
+	//128 bytes at a time.
+	static int pack(byte[] src, int n, byte[] dst, int p) {
+		int i = 0;
+		while (i < n) {
+			int run = 1;
+			while ((i + run < n) && (run < 128) && (src[i + run] == src[i])) run++;
+			if (run >= 2) {
+				dst[p++] = (byte)(1 - run);
+				dst[p++] = src[i];
+				i += run;
+			}
+			else {
+				int start = i++;
+				while ((i < n) && (i - start < 128) && !((i + 1 < n) && (src[i] == src[i + 1]))) i++;
+				dst[p++] = (byte)(i - start - 1);
+				System.arraycopy(src, start, dst, p, i - start);
+				p += i - start;
+			}
+		}
+		return p;
+	}
+
+	//Unpack a segment, returning false if it does not decode to exactly
+	//n bytes. Padding after the last run is ignored.
+	static boolean unpack(byte[] src, int p, int end, byte[] dst, int n) {
+		int q = 0;
+		while ((p < end) && (q < n)) {
+			int h = src[p++];
+			if (h >= 0) {
+				int len = h + 1;
+				if ((p + len > end) || (q + len > n)) return false;
+				System.arraycopy(src, p, dst, q, len);
+				p += len;
+				q += len;
+			}
+			else if (h != -128) {
+				int len = 1 - h;
+				if ((p >= end) || (q + len > n)) return false;
+				byte v = src[p++];
+				for (int j=0; j<len; j++) dst[q++] = v;
+			}
+		}
+		return q == n;
+	}
+
+	private static void putInt(byte[] b, int p, int v) {
+		b[p] = (byte)v;
+		b[p+1] = (byte)(v >> 8);
+		b[p+2] = (byte)(v >> 16);
+		b[p+3] = (byte)(v >> 24);
+	}
+
+	private static int getInt(byte[] b, int p) {
+		return (b[p] & 0xFF) | ((b[p+1] & 0xFF) << 8) | ((b[p+2] & 0xFF) << 16) | ((b[p+3] & 0xFF) << 24);
+	}
+
+}
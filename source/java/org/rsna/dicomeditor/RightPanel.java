@@ -11,15 +11,12 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.*;
 import org.dcm4che.dict.Tags;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
-import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
-import org.rsna.ctp.stdstages.anonymizer.LookupTable;
-import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
-import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
-import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMCorrector;
 import org.rsna.ctp.stdstages.anonymizer.xml.XMLAnonymizer;
 import org.rsna.ui.ApplicationProperties;
 import org.rsna.ui.FileEvent;
@@ -50,10 +47,21 @@ public class RightPanel extends JPanel
 	boolean changeNames = false;
 	boolean forceIVRLE = false;
 	boolean renameToSOPIUID = false;
+	boolean sortBySeries = false;
+	boolean verifyPHI = false;
+	boolean checkPixels = false;
+	boolean dedup = false;
+	boolean writeManifest = false;
+	File inputRoot = null;
+	File outputRoot = null;
+	DirectoryCache directories = null;
 	String dicomScriptFile = null;
 	String lookupTableFile = null;
 	String xmlScriptFile = null;
-	GeneralFileFilter filter = null;
+	FileFilter filter = null;
+	IndexQuery query = null;
+	Thread indexThread = null;
+	Thread batchThread = null;
 	Color background = Color.getHSBColor(0.58f, 0.17f, 0.95f);
 
 	/**
@@ -84,6 +92,11 @@ public class RightPanel extends JPanel
 		footerPanel.fixVRs.addActionListener(this);
 		footerPanel.clearPreamble.addActionListener(this);
 		footerPanel.setPatientIDs.addActionListener(this);
+		footerPanel.transcode.addActionListener(this);
+		footerPanel.compress.addActionListener(this);
+		footerPanel.index.addActionListener(this);
+		footerPanel.verifyManifest.addActionListener(this);
+		footerPanel.runPipeline.addActionListener(this);
 	}
 
 	/**
@@ -103,79 +116,846 @@ public class RightPanel extends JPanel
 	 * @param event the event
 	 */
 	public void actionPerformed(ActionEvent event) {
-		Object source = event.getSource();
-		if (currentSelection != null) {
+		final Object source = event.getSource();
+		if (source.equals(footerPanel.index)) {
+			index();
+		}
+		else if (source.equals(footerPanel.verifyManifest)) {
+			verifyManifest();
+		}
+		else if ((currentSelection != null) && (indexThread == null) && (batchThread == null)) {
 			subdirectories = sourcePanel.getSubdirectories();
 			changeNames = footerPanel.changeNameBox.isSelected();
 			renameToSOPIUID = footerPanel.renameToSOPIUIDBox.isSelected();
+			sortBySeries = footerPanel.hierarchyBox.isSelected();
+			verifyPHI = footerPanel.verifyBox.isSelected();
+			checkPixels = footerPanel.pixelBox.isSelected();
+			dedup = footerPanel.dedupBox.isSelected();
+			writeManifest = footerPanel.manifestBox.isSelected();
+			outputRoot = footerPanel.getOutputRoot();
 			filter = sourcePanel.getFileFilter();
 			resultsPane.clear();
+			if (!applyQuery()) {
+				resultsPane.showText();
+				return;
+			}
 			resultsPane.append("<ol>");
-			if (source.equals(footerPanel.anonymize)) anonymize(currentSelection);
-			else if (source.equals(footerPanel.fixVRs)) fixVRs(currentSelection);
-			else if (source.equals(footerPanel.clearPreamble)) clearPreamble(currentSelection);
-			else if (source.equals(footerPanel.setPatientIDs)) setPatientIDs(currentSelection);
-			resultsPane.append("</ol><b>Done.</b>");
-			resultsPane.showText();
+			if (source.equals(footerPanel.anonymize)
+					|| source.equals(footerPanel.compress)
+					|| source.equals(footerPanel.transcode)
+					|| source.equals(footerPanel.runPipeline)) {
+				if (!setOutputRoot()) {
+					resultsPane.showText();
+					return;
+				}
+				if (source.equals(footerPanel.anonymize)) anonymize(currentSelection);
+				else if (source.equals(footerPanel.compress)) compress(currentSelection);
+				else if (source.equals(footerPanel.transcode)) {
+					transcode(currentSelection, footerPanel.getTranscodeSyntax());
+				}
+				else if (!pipeline(currentSelection, footerPanel.getPipeline())) resultsPane.showText();
+				return;
+			}
+			final File selection = currentSelection;
+			restrictToQuery(new Runnable() {
+				public void run() {
+					FileClassifier classifier = null;
+					if (source.equals(footerPanel.fixVRs)) {
+						classifier = new FileClassifier();
+						fixVRs(selection, classifier);
+					}
+					else if (source.equals(footerPanel.clearPreamble)) clearPreamble(selection);
+					else if (source.equals(footerPanel.setPatientIDs)) setPatientIDs(selection);
+					resultsPane.append("</ol>");
+					if (classifier != null) resultsPane.append("File types: " + classifier + "<br>");
+					resultsPane.append("<b>Done.</b>");
+					resultsPane.showText();
+				}
+			});
 		}
 		else Toolkit.getDefaultToolkit().beep();
 	}
 
-	// Anonymize the selected file(s).
-	private void anonymize(File file) {
-		if (file.isFile()) {
-			File copy = file;
-			if (changeNames) {
-				String name = file.getName();
-				int k = name.length();
-				if (!name.matches("[\\d\\.]+")) {
-					k = name.lastIndexOf(".");
-					if (k == -1) k = name.length();
-					if (name.substring(0,k).endsWith("-no-phi")) return;
+	// Build or refresh the header index of the selected directory
+	// in the background and report the number of files matching
+	// the current query.
+	private void index() {
+		if ((currentSelection == null) || !currentSelection.isDirectory()
+				|| (indexThread != null) || (batchThread != null)) {
+			Toolkit.getDefaultToolkit().beep();
+			return;
+		}
+		final File dir = currentSelection;
+		final String queryText = footerPanel.queryField.getText().trim();
+		resultsPane.clear();
+		resultsPane.newItem("Indexing "+dir+"...");
+		indexThread = new Thread() {
+			public void run() {
+				final StringBuffer sb = new StringBuffer();
+				try {
+					long startTime = System.currentTimeMillis();
+					HeaderIndexer indexer = getIndexer(dir);
+					HeaderIndex index = indexer.update();
+					long time = System.currentTimeMillis() - startTime;
+					sb.append("Indexed "+index.size()+" files in "+time+" ms<br>");
+					sb.append(indexer.getParsedCount()+" files parsed; ");
+					sb.append(indexer.getReusedCount()+" files unchanged<br>");
+					if (!queryText.equals("")) {
+						HashSet<String> paths = index.select(new IndexQuery(queryText));
+						sb.append(paths.size()+" files match \""+escape(queryText)+"\"<br>");
+					}
+				}
+				catch (Exception ex) {
+					sb.append("<font color=red><b>"+escape(ex.getMessage())+"</b></font><br>");
 				}
-				name = name.substring(0,k) + "-no-phi" + name.substring(k);
-				copy = new File(file.getParentFile(),name);
-			}
-			resultsPane.newItem("<li>Anonymizing: "+file);
-
-			//If the filename ends in ".xml", do an XML anonymization;
-			//otherwise, do a DICOM anonymization.
-			String result = "";
-			if (file.getName().toLowerCase().endsWith(".xml")) {
-				File xmlScript = new File(xmlScriptFile);
-				LookupTable lookupTable = LookupTable.getInstance( new File(lookupTableFile) );
-				result = 
-					XMLAnonymizer.anonymize(
-						file, copy, 
-						xmlScript, 
-						lookupTable.getProperties()).isOK() ? "" : "failed";
-			}
-			else {
-				DAScript dicomScript = DAScript.getInstance( new File(dicomScriptFile) );
-				LookupTable lookupTable = LookupTable.getInstance( new File(lookupTableFile) );
-				result =
-					DICOMAnonymizer.anonymize(
-						file, copy,
-						dicomScript.toProperties(), lookupTable.getProperties(), (IntegerTable)null,
-						forceIVRLE, renameToSOPIUID).isOK() ? "" : "failed";;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						resultsPane.clear();
+						resultsPane.append(sb.toString());
+						resultsPane.append("<b>Done.</b>");
+						resultsPane.showText();
+						indexThread = null;
+					}
+				});
 			}
-			//Report the results
-			if (result.equals("")) {
-				resultsPane.appendItem("<br><b>OK</b></li>");
+		};
+		indexThread.start();
+	}
+
+	// If a query has been entered for the selected directory, parse it.
+	// The index is refreshed and the files are restricted to those which
+	// match the query when the operation runs: in the background for the
+	// batch operations, or by restrictToQuery for the others. Return false
+	// if the query cannot be parsed.
+	private boolean applyQuery() {
+		query = null;
+		String queryText = footerPanel.queryField.getText().trim();
+		properties.setProperty("index-query", queryText);
+		if (queryText.equals("") || !currentSelection.isDirectory()) return true;
+		try {
+			query = new IndexQuery(queryText);
+			resultsPane.append("Query: "+escape(queryText)+"<br>");
+			return true;
+		}
+		catch (Exception ex) {
+			resultsPane.append("<font color=red><b>"+escape(ex.getMessage())+"</b></font><br>");
+			return false;
+		}
+	}
+
+	// Restrict the filter to the files which match the query and then run
+	// an operation that does not run in the background. The index of the
+	// selected directory is refreshed in a background thread, which blocks
+	// the other operations until it is done; the operation is then run on
+	// the event thread. If there is no query, the operation is run at once.
+	private void restrictToQuery(final Runnable operation) {
+		if (query == null) {
+			operation.run();
+			return;
+		}
+		final File dir = currentSelection;
+		final IndexQuery indexQuery = query;
+		indexThread = new Thread() {
+			public void run() {
+				HashSet<String> paths = null;
+				String error = null;
+				try { paths = getIndexer(dir).update().select(indexQuery); }
+				catch (Exception ex) { error = (ex.getMessage() != null) ? ex.getMessage() : ex.toString(); }
+				final HashSet<String> selected = paths;
+				final String message = error;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						indexThread = null;
+						if (selected == null) {
+							resultsPane.append("<font color=red><b>"+escape(message)+"</b></font><br>");
+							resultsPane.showText();
+							return;
+						}
+						if (!dir.equals(currentSelection)) {
+							resultsPane.append("<font color=red><b>The selection changed while the index was refreshed.</b></font><br>");
+							resultsPane.showText();
+							return;
+						}
+						resultsPane.append(selected.size()+" files match the query<br>");
+						filter = new QueryFilter(filter, selected);
+						operation.run();
+					}
+				});
 			}
-			else {
-				resultsPane.appendItem("<br><font color=red><b>Failed</b></font><br></li>");
+		};
+		indexThread.start();
+	}
+
+	private HeaderIndexer getIndexer(File dir) {
+		Configuration config = Configuration.getInstance();
+		return new HeaderIndexer(
+					new File(config.indexDirectory), dir, config.getIndexTags());
+	}
+
+	static String escape(String s) {
+		if (s == null) return "";
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	// A FileFilter that accepts only those files which pass the
+	// SourcePanel's filter and match the index query.
+	class QueryFilter implements FileFilter {
+		FileFilter base;
+		HashSet<String> paths;
+		public QueryFilter(FileFilter base, HashSet<String> paths) {
+			this.base = base;
+			this.paths = paths;
+		}
+		public boolean accept(File file) {
+			if ((base != null) && !base.accept(file)) return false;
+			return file.isDirectory() || paths.contains(file.getAbsolutePath());
+		}
+	}
+
+	// Set up the mirror tree for the anonymized copies, if an output
+	// directory has been selected. The input root is the selected
+	// directory, or the parent of the selected file; the output directory
+	// cannot be within it, or the copies would be anonymized again.
+	private boolean setOutputRoot() {
+		directories = new DirectoryCache();
+		if (outputRoot == null) return true;
+		inputRoot = currentSelection.isDirectory() ? currentSelection : currentSelection.getParentFile();
+		inputRoot = inputRoot.getAbsoluteFile();
+		outputRoot = outputRoot.getAbsoluteFile();
+		try {
+			String in = inputRoot.getCanonicalPath() + File.separator;
+			String out = outputRoot.getCanonicalPath() + File.separator;
+			if (out.startsWith(in)) {
+				resultsPane.append("<font color=red><b>The output directory cannot be in the selected directory.</b></font>");
+				return false;
 			}
+			directories.mkdirs(outputRoot);
+			return true;
+		}
+		catch (IOException ex) {
+			resultsPane.append("<font color=red><b>"+escape(ex.getMessage())+"</b></font>");
+			return false;
+		}
+	}
+
+	// Anonymize the selected file(s) in the background with the batch engine.
+	// The script is compiled once for the whole batch.
+	// A selected ZIP file is anonymized into a new archive.
+	private void anonymize(File file) {
+		final LinkedList<File> files = new LinkedList<File>();
+		listFilesToAnonymize(file, files);
+		final boolean isZip = file.isFile() && file.getName().toLowerCase().endsWith(".zip");
+		final CompiledScript script;
+		try { script = new CompiledScript(AnonymizerScript.load(new File(dicomScriptFile))); }
+		catch (RuntimeException ex) {
+			//The script or the CTP library cannot be used.
+			resultsPane.append("<font color=red><b>"+escape(ex.getMessage())+"</b></font>");
+			resultsPane.showText();
 			return;
 		}
+		final Properties lkup = LookupStore.getProperties(new File(lookupTableFile));
+		final File xmlScript = new File(xmlScriptFile);
+		final XMLStreamAnonymizer xmlAnonymizer = getXMLStreamAnonymizer(xmlScript, lkup);
+		final IntegerStore integers = Configuration.getInstance().getIntegerStore();
+		final long assignments = (integers != null) ? integers.getAssignments() : 0;
+		final long commits = (integers != null) ? integers.getCommits() : 0;
+		final FileAnonymizer anonymizer =
+					new FileAnonymizer(script, lkup, integers, forceIVRLE, renameToSOPIUID);
+		final PHIVerifier verifier =
+			verifyPHI ? new PHIVerifier(script, Configuration.getInstance().getVerifyRawBytes()) : null;
+		anonymizer.setVerifier(verifier);
+		anonymizer.setPixelPassthrough(Configuration.getInstance().getPixelPassthrough());
+		if (sortBySeries) anonymizer.setHierarchy(directories);
+		final PixelChecker pixelChecker = checkPixels ? new PixelChecker() : null;
+		anonymizer.setPixelChecker(pixelChecker);
+		final Manifest manifest = writeManifest ? new Manifest(getManifestRoot()) : null;
+		if (!isZip) anonymizer.setManifest(manifest);
+		final FileClassifier classifier = new FileClassifier();
+		class AnonymizerTask implements BatchProcessor.PrefetchTask, BatchProcessor.Reporter, Linker {
+			final ConcurrentHashMap<File,File> outputs = new ConcurrentHashMap<File,File>();
+			public BatchProcessor.Result process(File file) throws Exception {
+				return process(file, null);
+			}
+			public BatchProcessor.Result process(File file, byte[] data) throws Exception {
+				//Sniff the file to route it: XML files get an XML anonymization,
+				//DICOM files a DICOM anonymization, and anything else is skipped.
+				int type = (data != null) ? classifier.classify(data) : classifier.classify(file);
+				if ((type == FileClassifier.DICOMDIR) || (type == FileClassifier.OTHER)) {
+					return BatchProcessor.Result.skipped(file, FileClassifier.getName(type));
+				}
+				File copy = getCopy(file, sortBySeries && (type != FileClassifier.XML));
+				AnonymizerStatus status;
+				if (type == FileClassifier.XML) {
+					if (xmlAnonymizer != null) status = xmlAnonymizer.anonymize(file, copy);
+					else status = XMLAnonymizer.anonymize(file, copy, xmlScript, lkup);
+					if (status.isOK() && (manifest != null)) manifest.add(copy);
+				}
+				else {
+					LinkedList<String> residuals = new LinkedList<String>();
+					status = anonymizer.anonymize(file, data, copy, residuals);
+					if (status.isOK() && (residuals.size() > 0)) {
+						StringBuffer sb = new StringBuffer("Residual PHI:");
+						for (String residual : residuals) sb.append("<br>" + escape(residual));
+						return BatchProcessor.Result.ok(file, sb.toString());
+					}
+				}
+				if (status.isOK()) {
+					outputs.put(file, (status.getFile() != null) ? status.getFile() : copy);
+					return BatchProcessor.Result.ok(file, "");
+				}
+				return BatchProcessor.Result.failed(file, status.getMessage());
+			}
+			public File getOutput(File file) {
+				return outputs.get(file);
+			}
+			public File getTarget(File duplicate, File output) throws IOException {
+				File copy = getCopy(duplicate, sortBySeries);
+				File dir = sortBySeries ? output.getParentFile() : copy.getParentFile();
+				return new File(dir, renameToSOPIUID ? output.getName() : copy.getName());
+			}
+			public boolean isInPlace(File duplicate) throws IOException {
+				return !sortBySeries && getCopy(duplicate).equals(duplicate);
+			}
+			public void linked(File target, File output) throws IOException {
+				if (manifest != null) {
+					manifest.add(target);
+					manifest.flush();
+				}
+			}
+			public void addStatistics(BatchProcessor.Summary summary) {
+				summary.addStatistic("File types", classifier.toString());
+				summary.addStatistic("Hash cache", script.getFunctionCache().toString());
+				if ((outputRoot != null) || sortBySeries) {
+					int n = directories.getCreated();
+					String where = (outputRoot != null) ? outputRoot + " " : "";
+					if (sortBySeries) where += "by patient, study and series ";
+					summary.addStatistic("Output", where + "(" + n + " director" + ((n != 1) ? "ies" : "y") + " created)");
+				}
+				if (verifier != null) summary.addStatistic("PHI verification", verifier.toString());
+				if (pixelChecker != null) summary.addStatistic("Pixel data check", pixelChecker.toString());
+				if (manifest != null) {
+					try {
+						manifest.flush();
+						summary.addStatistic("Manifest", manifest.toString());
+					}
+					catch (IOException ex) { summary.addStatistic("Manifest", "<font color=red>" + escape(ex.getMessage()) + "</font>"); }
+				}
+				if (integers != null) {
+					long n = integers.getAssignments() - assignments;
+					if (n > 0) {
+						long c = integers.getCommits() - commits;
+						summary.addStatistic("New integers", n + " in " + c + " commit" + ((c != 1) ? "s" : ""));
+					}
+				}
+			}
+		}
+		if (isZip) {
+			final File zip = file;
+			final Configuration config = Configuration.getInstance();
+			runInBackground("Anonymizing", new Batch() {
+				public BatchProcessor.Summary run(BatchProcessor.Listener listener) throws Exception {
+					ZipAnonymizer zipAnonymizer = new ZipAnonymizer(anonymizer, xmlScript, lkup,
+												config.getBatchThreads(), config.getPrefetchLimit());
+					zipAnonymizer.setClassifier(classifier);
+					zipAnonymizer.setXMLAnonymizer(xmlAnonymizer);
+					File outZip = getCopy(zip);
+					BatchProcessor.Summary summary = zipAnonymizer.anonymize(zip, outZip, listener);
+					if ((manifest != null) && outZip.exists()) manifest.add(outZip);
+					new AnonymizerTask().addStatistics(summary);
+					return summary;
+				}
+			});
+		}
+		else runBatch("Anonymizing", files, new AnonymizerTask());
+	}
+
+	// Convert the selected file(s) to a transfer syntax in the background
+	// with the batch engine. Files are converted in place unless an output
+	// directory has been selected.
+	private void transcode(File file, String tsuid) {
+		final LinkedList<File> files = new LinkedList<File>();
+		listFiles(file, files);
+		final FileTranscoder transcoder = new FileTranscoder(tsuid);
+		final FileClassifier classifier = new FileClassifier();
+		class TranscodeTask implements BatchProcessor.PrefetchTask, BatchProcessor.Reporter, Linker {
+			final ConcurrentHashMap<File,File> outputs = new ConcurrentHashMap<File,File>();
+			public BatchProcessor.Result process(File file) throws Exception {
+				return process(file, null);
+			}
+			public BatchProcessor.Result process(File file, byte[] data) throws Exception {
+				int type = (data != null) ? classifier.classify(data) : classifier.classify(file);
+				if ((type != FileClassifier.PART10) && (type != FileClassifier.DATASET)) {
+					return BatchProcessor.Result.skipped(file, FileClassifier.getName(type));
+				}
+				File target = getInPlaceTarget(file);
+				AnonymizerStatus status = transcoder.transcode(file, data, target);
+				if (status.isOK()) {
+					outputs.put(file, target);
+					return BatchProcessor.Result.ok(file, "");
+				}
+				return BatchProcessor.Result.failed(file, status.getMessage());
+			}
+			public File getOutput(File file) {
+				return outputs.get(file);
+			}
+			public File getTarget(File duplicate, File output) throws IOException {
+				return getInPlaceTarget(duplicate);
+			}
+			public boolean isInPlace(File duplicate) throws IOException {
+				return getInPlaceTarget(duplicate).equals(duplicate);
+			}
+			public void linked(File target, File output) { }
+			public void addStatistics(BatchProcessor.Summary summary) {
+				summary.addStatistic("File types", classifier.toString());
+				summary.addStatistic("Transcoding", transcoder.toString());
+			}
+		}
+		runBatch("Transcoding", files, new TranscodeTask());
+	}
+
+	// Compress the native pixel data of the selected file(s) to RLE in
+	// the background with the batch engine. Files are compressed in place
+	// unless an output directory has been selected.
+	private void compress(File file) {
+		final LinkedList<File> files = new LinkedList<File>();
+		listFiles(file, files);
+		final FileCompressor compressor = new FileCompressor();
+		final FileClassifier classifier = new FileClassifier();
+		class CompressTask implements BatchProcessor.PrefetchTask, BatchProcessor.Reporter, Linker {
+			final ConcurrentHashMap<File,File> outputs = new ConcurrentHashMap<File,File>();
+			public BatchProcessor.Result process(File file) throws Exception {
+				return process(file, null);
+			}
+			public BatchProcessor.Result process(File file, byte[] data) throws Exception {
+				int type = (data != null) ? classifier.classify(data) : classifier.classify(file);
+				if ((type != FileClassifier.PART10) && (type != FileClassifier.DATASET)) {
+					return BatchProcessor.Result.skipped(file, FileClassifier.getName(type));
+				}
+				File target = getInPlaceTarget(file);
+				AnonymizerStatus status = compressor.compress(file, data, target);
+				if (status.isOK()) {
+					outputs.put(file, target);
+					return BatchProcessor.Result.info(file, status.getMessage());
+				}
+				if (status.isSKIP()) return BatchProcessor.Result.skipped(file, status.getMessage());
+				return BatchProcessor.Result.failed(file, status.getMessage());
+			}
+			public void addStatistics(BatchProcessor.Summary summary) {
+				summary.addStatistic("File types", classifier.toString());
+				summary.addStatistic("RLE compression", compressor.toString());
+			}
+			public File getOutput(File file) {
+				return outputs.get(file);
+			}
+			public File getTarget(File duplicate, File output) throws IOException {
+				return getInPlaceTarget(duplicate);
+			}
+			public boolean isInPlace(File duplicate) throws IOException {
+				return getInPlaceTarget(duplicate).equals(duplicate);
+			}
+			public void linked(File target, File output) { }
+		}
+		runBatch("Compressing", files, new CompressTask());
+	}
+
+	// Run the selected file(s) through the chain of stages in the pipeline
+	// field in the background with the batch engine, reading and writing
+	// each file once. The stages are separated by commas and applied in
+	// order. If the chain anonymizes, the output is written as the Anonymize
+	// button writes it; otherwise files are changed in place unless an
+	// output directory has been selected, and files that no stage changed
+	// are not written. Return false if the chain cannot be set up.
+	private boolean pipeline(File file, String spec) {
+		final List<Pipeline.Stage> stages = new LinkedList<Pipeline.Stage>();
+		FileAnonymizer anonymizer = null;
+		CompiledScript script = null;
+		PHIVerifier verifier = null;
+		PixelChecker pixelChecker = null;
+		try {
+			for (String name : splitStages(spec)) {
+				String lc = name.toLowerCase();
+				if (lc.equals("fixvrs")) stages.add(new Pipeline.FixVRsStage());
+				else if (lc.equals("preamble")) stages.add(new Pipeline.PreambleStage());
+				else if (lc.equals("patientids")) {
+					if (!currentSelection.isDirectory()) throw new Exception(currentSelection + " is not a directory.");
+					stages.add(new Pipeline.PatientIDStage(currentSelection));
+				}
+				else if (lc.startsWith("filter(") && lc.endsWith(")")) {
+					IndexQuery query = new IndexQuery(name.substring(7, name.length() - 1).trim());
+					stages.add(new Pipeline.FilterStage(query));
+				}
+				else if (lc.equals("anonymize") && (anonymizer == null)) {
+					script = new CompiledScript(AnonymizerScript.load(new File(dicomScriptFile)));
+					Properties lkup = LookupStore.getProperties(new File(lookupTableFile));
+					IntegerStore integers = Configuration.getInstance().getIntegerStore();
+					anonymizer = new FileAnonymizer(script, lkup, integers, forceIVRLE, renameToSOPIUID);
+					if (verifyPHI) verifier = new PHIVerifier(script, Configuration.getInstance().getVerifyRawBytes());
+					anonymizer.setVerifier(verifier);
+					if (sortBySeries) anonymizer.setHierarchy(directories);
+					if (checkPixels) pixelChecker = new PixelChecker();
+					anonymizer.setPixelChecker(pixelChecker);
+					stages.add(new Pipeline.AnonymizeStage(anonymizer));
+				}
+				else throw new Exception("Unknown pipeline stage: " + name);
+			}
+			if (stages.size() == 0) throw new Exception("The pipeline has no stages.");
+		}
+		catch (Exception ex) {
+			resultsPane.append("<font color=red><b>"+escape(ex.getMessage())+"</b></font>");
+			return false;
+		}
+		final boolean anonymizes = (anonymizer != null);
+		final LinkedList<File> files = new LinkedList<File>();
+		if (anonymizes) listFilesToAnonymize(file, files);
+		else listFiles(file, files);
+		final Pipeline pipeline = new Pipeline(stages, directories);
+		final Manifest manifest = writeManifest ? new Manifest(getManifestRoot()) : null;
+		pipeline.setManifest(manifest);
+		final CompiledScript anonymizerScript = script;
+		final PHIVerifier phiVerifier = verifier;
+		final PixelChecker checker = pixelChecker;
+		final FileClassifier classifier = new FileClassifier();
+		class PipelineTask implements BatchProcessor.PrefetchTask, BatchProcessor.Reporter, Linker {
+			public BatchProcessor.Result process(File file) throws Exception {
+				return process(file, null);
+			}
+			public BatchProcessor.Result process(File file, byte[] data) throws Exception {
+				int type = (data != null) ? classifier.classify(data) : classifier.classify(file);
+				if ((type != FileClassifier.PART10) && (type != FileClassifier.DATASET)) {
+					return BatchProcessor.Result.skipped(file, FileClassifier.getName(type));
+				}
+				File target = anonymizes ? getCopy(file, sortBySeries) : getInPlaceTarget(file);
+				return pipeline.process(file, data, target);
+			}
+			public File getOutput(File file) {
+				return pipeline.getOutput(file);
+			}
+			public File getTarget(File duplicate, File output) throws IOException {
+				if (!anonymizes) return getInPlaceTarget(duplicate);
+				File copy = getCopy(duplicate, sortBySeries);
+				File dir = sortBySeries ? output.getParentFile() : copy.getParentFile();
+				return new File(dir, renameToSOPIUID ? output.getName() : copy.getName());
+			}
+			public boolean isInPlace(File duplicate) throws IOException {
+				if (!anonymizes) return getInPlaceTarget(duplicate).equals(duplicate);
+				return !sortBySeries && getCopy(duplicate).equals(duplicate);
+			}
+			public void linked(File target, File output) throws IOException {
+				if (manifest != null) {
+					manifest.add(target);
+					manifest.flush();
+				}
+			}
+			public void addStatistics(BatchProcessor.Summary summary) {
+				summary.addStatistic("File types", classifier.toString());
+				summary.addStatistic("Pipeline", escape(footerPanel.getPipeline()));
+				pipeline.addStatistics(summary);
+				if (anonymizerScript != null) summary.addStatistic("Hash cache", anonymizerScript.getFunctionCache().toString());
+				if (phiVerifier != null) summary.addStatistic("PHI verification", phiVerifier.toString());
+				if (checker != null) summary.addStatistic("Pixel data check", checker.toString());
+				if (manifest != null) {
+					try {
+						manifest.flush();
+						summary.addStatistic("Manifest", manifest.toString());
+					}
+					catch (IOException ex) { summary.addStatistic("Manifest", "<font color=red>" + escape(ex.getMessage()) + "</font>"); }
+				}
+			}
+		}
+		runBatch("Processing", files, new PipelineTask());
+		return true;
+	}
+
+	// Split the text of a pipeline into the names of its stages at the
+	// commas that are not within parentheses, brackets or quotes.
+	private static List<String> splitStages(String spec) {
+		List<String> names = new LinkedList<String>();
+		int depth = 0;
+		boolean quoted = false;
+		int start = 0;
+		for (int i=0; i<=spec.length(); i++) {
+			char c = (i < spec.length()) ? spec.charAt(i) : ',';
+			if (c == '"') quoted = !quoted;
+			else if (quoted) continue;
+			else if ((c == '(') || (c == '[')) depth++;
+			else if ((c == ')') || (c == ']')) depth--;
+			else if ((c == ',') && (depth <= 0)) {
+				String name = spec.substring(start, i).trim();
+				if (!name.equals("")) names.add(name);
+				start = i + 1;
+			}
+		}
+		return names;
+	}
+
+	// List all the files of the selection.
+	private void listFiles(File file, List<File> list) {
+		if (file.isFile()) list.add(file);
+		else {
+			File[] files = file.listFiles(filter);
+			for (File f : files) {
+				if (f.isFile() || subdirectories) listFiles(f, list);
+			}
+		}
+	}
+
+	// List the files to be anonymized, omitting any manifest, and the
+	// anonymized copies of files if the names of copies are being changed.
+	private void listFilesToAnonymize(File file, List<File> list) {
+		if (file.isFile()) {
+			if (file.getName().equals(Manifest.name)) return;
+			if (!changeNames || !isCopy(file)) list.add(file);
+		}
 		else {
 			File[] files = file.listFiles(filter);
 			for (File f : files) {
-				if (f.isFile() || subdirectories) anonymize(f);
+				if (f.isFile() || subdirectories) listFilesToAnonymize(f, list);
 			}
 		}
 	}
 
+	// Determine whether a file is an anonymized copy.
+	private static boolean isCopy(File file) {
+		String name = file.getName();
+		if (name.matches("[\\d\\.]+")) return false;
+		int k = name.lastIndexOf(".");
+		if (k == -1) k = name.length();
+		return name.substring(0,k).endsWith("-no-phi");
+	}
+
+	// Get the file to which the anonymized copy of a file is written.
+	// If an output directory has been selected, the copy is placed at
+	// the same relative path under it as the file is under the input root.
+	private File getCopy(File file) throws IOException {
+		return getCopy(file, false);
+	}
+
+	// Get the file to which the anonymized copy of a file is written,
+	// placing it directly in the output directory if it is to be sorted
+	// into the Patient/Study/Series hierarchy under that directory.
+	private File getCopy(File file, boolean sorted) throws IOException {
+		File dir = file.getParentFile();
+		if (outputRoot != null) dir = sorted ? outputRoot : getOutputDirectory(file);
+		if (!changeNames) return new File(dir, file.getName());
+		String name = file.getName();
+		int k = name.length();
+		if (!name.matches("[\\d\\.]+")) {
+			k = name.lastIndexOf(".");
+			if (k == -1) k = name.length();
+		}
+		name = name.substring(0,k) + "-no-phi" + name.substring(k);
+		return new File(dir,name);
+	}
+
+	// Get the file to which a file is written by an operation that
+	// changes files in place unless an output directory has been selected.
+	private File getInPlaceTarget(File file) throws IOException {
+		if (outputRoot == null) return file;
+		return new File(getOutputDirectory(file), file.getName());
+	}
+
+	// Get the directory under the output root that corresponds to the
+	// directory of a file under the input root, creating it if necessary.
+	private File getOutputDirectory(File file) throws IOException {
+		String path = file.getAbsoluteFile().getParent();
+		String root = inputRoot.getPath();
+		String relative = path.equals(root) ? "" : path.substring(root.length() + 1);
+		return directories.mkdirs(new File(outputRoot, relative));
+	}
+
+	// Run a batch of files with the batch engine. If a query has been
+	// entered, the index is refreshed in the background and the batch is
+	// restricted to the files which match it. If duplicates are to be
+	// processed once, the copies of each instance are found first, and
+	// after the batch they are reported and, if the task supports it and
+	// the configuration asks for it, given links to the outputs of the
+	// files they duplicate. A duplicate that the task would change in
+	// place is never left as it is: it is given a link to the output of
+	// the file it duplicates, or processed if that file has no output.
+	private void runBatch(final String verb, final List<File> files, final BatchProcessor.Task task) {
+		final Configuration config = Configuration.getInstance();
+		final BatchProcessor processor =
+			new BatchProcessor(config.getBatchThreads(), config.getReaderThreads(), config.getPrefetchLimit());
+		final boolean findDuplicates = dedup;
+		final IndexQuery batchQuery = query;
+		final File indexRoot = currentSelection;
+		runInBackground(verb, new Batch() {
+			public BatchProcessor.Summary run(BatchProcessor.Listener listener) throws Exception {
+				long startTime = System.currentTimeMillis();
+				List<File> batch = files;
+				if (batchQuery != null) {
+					HeaderIndex index = getIndexer(indexRoot).update();
+					QueryFilter queryFilter = new QueryFilter(null, index.select(batchQuery));
+					batch = new LinkedList<File>();
+					for (File file : files) {
+						if (queryFilter.accept(file)) batch.add(file);
+					}
+				}
+				BatchProcessor.Summary summary = run(batch, listener);
+				summary.elapsed = System.currentTimeMillis() - startTime;
+				if (batchQuery != null) {
+					summary.addStatistic("Query", escape(batchQuery.toString())
+											+ " (" + batch.size() + " of " + files.size() + " files match)");
+				}
+				return summary;
+			}
+			private BatchProcessor.Summary run(List<File> batch, BatchProcessor.Listener listener) throws Exception {
+				if (!findDuplicates) return processor.run(batch, task, listener);
+				Deduplicator.Result scan = new Deduplicator(config.getBatchThreads()).scan(batch);
+				BatchProcessor.Summary summary = processor.run(scan.unique, task, listener);
+				boolean link = config.getLinkDuplicates();
+				int[] counts = new int[2];
+				for (Map.Entry<File,File> entry : scan.duplicates.entrySet()) {
+					BatchProcessor.Result result = duplicate(entry.getKey(), entry.getValue(), task, link, counts);
+					summary.add(result);
+					listener.resultAvailable(result);
+				}
+				String s = scan.toString();
+				if (link || (counts[0] > 0)) s += "; " + counts[0] + " linked";
+				if (counts[1] > 0) s += "; " + counts[1] + " processed in place";
+				summary.addStatistic("Duplicates", s);
+				return summary;
+			}
+		});
+	}
+
+	// Get the result for a duplicate. It is linked to the output of the
+	// file it duplicates if links are asked for or the task would change
+	// the duplicate in place, and that file has an output. A duplicate
+	// that would be changed in place and cannot be linked is processed.
+	// A task that is not a Linker has all its duplicates processed.
+	// The numbers of duplicates linked and processed are added to counts.
+	private BatchProcessor.Result duplicate(File file, File original, BatchProcessor.Task task,
+											boolean link, int[] counts) {
+		String message = "duplicate of " + original;
+		try {
+			Linker linker = (task instanceof Linker) ? (Linker)task : null;
+			boolean inPlace = (linker == null) || linker.isInPlace(file);
+			File output = ((linker != null) && (link || inPlace)) ? linker.getOutput(original) : null;
+			if (output == null) {
+				if (!inPlace) return BatchProcessor.Result.skipped(file, message);
+				counts[1]++;
+				return task.process(file);
+			}
+			File target = linker.getTarget(file, output);
+			if (target.getAbsoluteFile().equals(output.getAbsoluteFile())) {
+				return BatchProcessor.Result.skipped(file, message);
+			}
+			boolean hardLink = Deduplicator.link(output, target);
+			linker.linked(target, output);
+			counts[0]++;
+			return BatchProcessor.Result.info(file, message + "; " + (hardLink ? "linked" : "copied") + " to " + target);
+		}
+		catch (Exception ex) {
+			return BatchProcessor.Result.failed(file, message + ": " + ex.getMessage());
+		}
+	}
+
+	// A task whose outputs can be linked to the places of the outputs
+	// of the duplicates of the files it processed.
+	interface Linker {
+		public File getOutput(File file);
+		public File getTarget(File duplicate, File output) throws IOException;
+		public boolean isInPlace(File duplicate) throws IOException;
+		public void linked(File target, File output) throws IOException;
+	}
+
+	// Get the streaming anonymizer for the XML files of a batch, or null
+	// if streaming is disabled or the script cannot be parsed, in which
+	// case the XML files are anonymized with the DOM-based XMLAnonymizer.
+	private XMLStreamAnonymizer getXMLStreamAnonymizer(File xmlScript, Properties lkup) {
+		if (!Configuration.getInstance().getXMLStreaming()) return null;
+		try { return new XMLStreamAnonymizer(xmlScript, lkup); }
+		catch (Exception ex) { return null; }
+	}
+
+	// Get the root of the tree described by the manifest of a batch:
+	// the output directory, if one has been selected, or otherwise the
+	// selected directory or the parent of the selected file.
+	private File getManifestRoot() {
+		if (outputRoot != null) return outputRoot;
+		return currentSelection.isDirectory() ? currentSelection : currentSelection.getAbsoluteFile().getParentFile();
+	}
+
+	// Verify the files of the selected directory against its manifest,
+	// or the files of the directory of a selected manifest, in the
+	// background with the batch engine.
+	private void verifyManifest() {
+		if ((currentSelection == null) || (indexThread != null) || (batchThread != null)) {
+			Toolkit.getDefaultToolkit().beep();
+			return;
+		}
+		final File manifestFile = currentSelection.isDirectory()
+									? new File(currentSelection, Manifest.name) : currentSelection;
+		resultsPane.clear();
+		if (!manifestFile.isFile() || !manifestFile.getName().equals(Manifest.name)) {
+			resultsPane.append("<font color=red><b>No " + Manifest.name + " was found in the selection.</b></font><br>");
+			resultsPane.showText();
+			return;
+		}
+		resultsPane.append("<ol>");
+		final int threads = Configuration.getInstance().getBatchThreads();
+		runInBackground("Verifying", new Batch() {
+			public BatchProcessor.Summary run(BatchProcessor.Listener listener) throws Exception {
+				return Manifest.verify(manifestFile, threads, listener);
+			}
+		});
+	}
+
+	// The work of a batch run in the background.
+	interface Batch {
+		public BatchProcessor.Summary run(BatchProcessor.Listener listener) throws Exception;
+	}
+
+	// Run a batch in the background, listing the results as they become
+	// available and the summary of the batch when it is done.
+	private void runInBackground(final String verb, final Batch batch) {
+		final BatchProcessor.Listener listener = new BatchProcessor.Listener() {
+			public void resultAvailable(final BatchProcessor.Result result) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						resultsPane.newItem("<li>"+verb+": "+result.file);
+						if (result.isOK() && !result.message.equals("") && result.warning) {
+							resultsPane.appendItem("<br><b>OK</b><br><font color=red>"+result.message+"</font></li>");
+						}
+						else if (result.isOK() && !result.message.equals("")) {
+							resultsPane.appendItem("<br><b>OK</b> ("+result.message+")</li>");
+						}
+						else if (result.isOK()) {
+							resultsPane.appendItem("<br><b>OK</b></li>");
+						}
+						else if (result.status == BatchProcessor.Result.SKIPPED) {
+							String reason = result.message.equals("") ? "" : " ("+escape(result.message)+")";
+							resultsPane.appendItem("<br><b>Skipped</b>"+reason+"</li>");
+						}
+						else resultsPane.appendItem("<br><font color=red><b>Failed</b></font><br>"+escape(result.message)+"</li>");
+					}
+				});
+			}
+		};
+		batchThread = new Thread() {
+			public void run() {
+				BatchProcessor.Summary result = null;
+				String error = null;
+				try { result = batch.run(listener); }
+				catch (Exception ex) { error = ex.getMessage(); }
+				final BatchProcessor.Summary summary = result;
+				final String message = error;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						resultsPane.append("</ol>");
+						if (summary != null) resultsPane.append(summary.toHTML());
+						else resultsPane.append("<font color=red><b>"+escape(message)+"</b></font><br>");
+						resultsPane.append("<b>Done.</b>");
+						resultsPane.showText();
+						batchThread = null;
+					}
+				});
+			}
+		};
+		batchThread.start();
+	}
+
 	// Insert directory names in the PatientID elements of the selected file(s).
 	private void setPatientIDs(File file) {
 		if (!currentSelection.isDirectory()) {
@@ -268,24 +1048,37 @@ public class RightPanel extends JPanel
 	}
 
 	// Fix the VRs in the selected file(s).
-	// Note: this method always overwrites the file,
+	// Note: this method corrects the file in place,
 	// even if the Change names box is checked.
-	private void fixVRs(File file) {
+	// Only the header is read, and a file is only written
+	// if one of its elements needs to be corrected.
+	// Files that are not DICOM datasets are skipped without being parsed.
+	private void fixVRs(File file, FileClassifier classifier) {
 		if (file.isFile()) {
 			resultsPane.newItem("<li>Correcting: "+file);
-			AnonymizerStatus status = DICOMCorrector.correct(file, file, false, false, false);
-			String result = (status.isOK() || status.isSKIP()) ? "" : "Failed;";
-			if (result.equals(""))
-				resultsPane.appendItem("<br><b>OK</b></li>");
-			else
-				resultsPane.appendItem("<br><font color=red><b>Failed</b></font><br></li>");
-
+			try {
+				int type = classifier.classify(file);
+				if ((type != FileClassifier.PART10) && (type != FileClassifier.DATASET)) {
+					resultsPane.appendItem("<br><b>Skipped</b> ("+FileClassifier.getName(type)+")</li>");
+					return;
+				}
+				int result = VRCorrector.correct(file);
+				if (result == VRCorrector.UNCHANGED)
+					resultsPane.appendItem("<br><b>OK</b> (unchanged)</li>");
+				else if (result == VRCorrector.PATCHED)
+					resultsPane.appendItem("<br><b>OK</b> (corrected in place)</li>");
+				else
+					resultsPane.appendItem("<br><b>OK</b> (header rewritten)</li>");
+			}
+			catch (Exception ex) {
+				resultsPane.appendItem("<br><font color=red><b>Failed</b></font><br>"+escape(ex.toString())+"</li>");
+			}
 			return;
 		}
 		else {
 			File[] files = file.listFiles(filter);
 			for (File f : files) {
-				if (f.isFile() || subdirectories) fixVRs(f);
+				if (f.isFile() || subdirectories) fixVRs(f, classifier);
 			}
 		}
 	}
@@ -353,8 +1146,24 @@ public class RightPanel extends JPanel
 		public JButton fixVRs;
 		public JButton setPatientIDs;
 		public JButton clearPreamble;
+		public JButton index;
+		public JButton transcode;
+		public JButton compress;
+		public JComboBox<String> syntaxBox;
 		public JCheckBox changeNameBox;
 		public JCheckBox renameToSOPIUIDBox;
+		public JCheckBox hierarchyBox;
+		public JCheckBox verifyBox;
+		public JCheckBox pixelBox;
+		public JCheckBox dedupBox;
+		public JCheckBox manifestBox;
+		public JButton verifyManifest;
+		public JButton runPipeline;
+		public JTextField pipelineField;
+		public JCheckBox outputBox;
+		public JTextField outputField;
+		public JButton outputBrowse;
+		public JTextField queryField;
 		public String remapperURL;
 		public FooterPanel() {
 			super();
@@ -380,13 +1189,98 @@ public class RightPanel extends JPanel
 			renameToSOPIUIDBox.setBackground(background);
 			renameToSOPIUIDBox.addActionListener(this);
 
+			String sortBySeries = (String)properties.getProperty("sort-by-series");
+			if (sortBySeries == null) {
+				sortBySeries = "no";
+				properties.setProperty("sort-by-series",sortBySeries);
+			}
+			hierarchyBox = new JCheckBox("Sort by patient/study/series",sortBySeries.equals("yes"));
+			hierarchyBox.setToolTipText("Place each anonymized file in PatientID/StudyInstanceUID/SeriesInstanceUID directories");
+			hierarchyBox.setBackground(background);
+			hierarchyBox.addActionListener(this);
+
+			String verify = (String)properties.getProperty("verify-phi");
+			if (verify == null) {
+				verify = "no";
+				properties.setProperty("verify-phi",verify);
+			}
+			verifyBox = new JCheckBox("Verify that no PHI remains",verify.equals("yes"));
+			verifyBox.setBackground(background);
+			verifyBox.addActionListener(this);
+
+			String checkPixels = (String)properties.getProperty("check-pixels");
+			if (checkPixels == null) {
+				checkPixels = "no";
+				properties.setProperty("check-pixels",checkPixels);
+			}
+			pixelBox = new JCheckBox("Check pixels",checkPixels.equals("yes"));
+			pixelBox.setToolTipText("Compare the SHA-256 of the pixel data of each anonymized file with that of the original");
+			pixelBox.setBackground(background);
+			pixelBox.addActionListener(this);
+
+			String dedup = (String)properties.getProperty("dedup");
+			if (dedup == null) {
+				dedup = "no";
+				properties.setProperty("dedup",dedup);
+			}
+			dedupBox = new JCheckBox("Process duplicate instances once",dedup.equals("yes"));
+			dedupBox.setToolTipText("Find copies of the same instance by length, SOPInstanceUID and content, and process only one");
+			dedupBox.setBackground(background);
+			dedupBox.addActionListener(this);
+
+			String manifest = (String)properties.getProperty("write-manifest");
+			if (manifest == null) {
+				manifest = "no";
+				properties.setProperty("write-manifest",manifest);
+			}
+			manifestBox = new JCheckBox("Write SHA-256 manifest",manifest.equals("yes"));
+			manifestBox.setToolTipText("Append the path, length and SHA-256 of each anonymized file to "+Manifest.name);
+			manifestBox.setBackground(background);
+			manifestBox.addActionListener(this);
+
+			String useOutput = (String)properties.getProperty("use-output-root");
+			if (useOutput == null) {
+				useOutput = "no";
+				properties.setProperty("use-output-root",useOutput);
+			}
+			outputBox = new JCheckBox("Write copies under:",useOutput.equals("yes"));
+			outputBox.setBackground(background);
+			outputBox.addActionListener(this);
+			String output = (String)properties.getProperty("output-root");
+			outputField = new JTextField((output != null) ? output : "");
+			outputField.setToolTipText("The directory in which the anonymized copies are written, in the same tree as the originals");
+			outputField.addActionListener(this);
+			outputBrowse = new JButton("Browse");
+			outputBrowse.addActionListener(this);
+
 			anonymize = new JButton("Anonymize");
 			fixVRs = new JButton("Fix VRs");
 			clearPreamble = new JButton("Clear preamble");
 			setPatientIDs = new JButton("Set PatientIDs");
+			index = new JButton("Index");
+			transcode = new JButton("Transcode");
+			compress = new JButton("Compress");
+			verifyManifest = new JButton("Verify");
+			verifyManifest.setToolTipText("Check the files of the selected directory against its "+Manifest.name);
+			compress.setToolTipText("Compress the pixel data to RLE Lossless, verifying every frame");
+
+			syntaxBox = new JComboBox<String>(FileTranscoder.syntaxNames);
+			String syntax = (String)properties.getProperty("transcode-syntax");
+			for (int i=0; i<FileTranscoder.syntaxes.length; i++) {
+				if (FileTranscoder.syntaxes[i].equals(syntax)) syntaxBox.setSelectedIndex(i);
+			}
+			syntaxBox.setToolTipText("The transfer syntax to which the Transcode button converts files");
+			syntaxBox.setMaximumSize(syntaxBox.getPreferredSize());
+			syntaxBox.addActionListener(this);
+
+			String query = (String)properties.getProperty("index-query");
+			queryField = new JTextField((query != null) ? query : "");
+			queryField.setToolTipText("Process only files whose indexed elements match, e.g. Modality = CT & SliceThickness < 1");
 
 			Box rowA = new Box(BoxLayout.X_AXIS);
 			rowA.add(changeNameBox);
+			rowA.add(Box.createHorizontalStrut(4));
+			rowA.add(manifestBox);
 			rowA.add(Box.createHorizontalGlue());
 			rowA.add(setPatientIDs);
 			rowA.add(Box.createHorizontalStrut(4));
@@ -395,12 +1289,63 @@ public class RightPanel extends JPanel
 
 			Box rowB = new Box(BoxLayout.X_AXIS);
 			rowB.add(renameToSOPIUIDBox);
+			rowB.add(Box.createHorizontalStrut(4));
+			rowB.add(hierarchyBox);
 			rowB.add(Box.createHorizontalGlue());
 			rowB.add(clearPreamble);
 			rowB.add(Box.createHorizontalStrut(4));
 			rowB.add(anonymize);
 			rowB.add(Box.createHorizontalStrut(17));
 
+			Box rowD = new Box(BoxLayout.X_AXIS);
+			rowD.add(verifyBox);
+			rowD.add(Box.createHorizontalStrut(4));
+			rowD.add(pixelBox);
+			rowD.add(Box.createHorizontalStrut(4));
+			rowD.add(dedupBox);
+			rowD.add(Box.createHorizontalGlue());
+			rowD.add(syntaxBox);
+			rowD.add(Box.createHorizontalStrut(4));
+			rowD.add(transcode);
+			rowD.add(Box.createHorizontalStrut(4));
+			rowD.add(compress);
+			rowD.add(Box.createHorizontalStrut(17));
+
+			Box rowE = new Box(BoxLayout.X_AXIS);
+			rowE.add(outputBox);
+			rowE.add(outputField);
+			rowE.add(Box.createHorizontalStrut(4));
+			rowE.add(outputBrowse);
+			rowE.add(Box.createHorizontalStrut(4));
+			rowE.add(verifyManifest);
+			rowE.add(Box.createHorizontalStrut(17));
+
+			String pipeline = (String)properties.getProperty("pipeline");
+			if (pipeline == null) {
+				pipeline = "fixvrs, anonymize";
+				properties.setProperty("pipeline",pipeline);
+			}
+			pipelineField = new JTextField(pipeline);
+			pipelineField.setToolTipText("Stages applied in one pass, separated by commas: filter(query), patientids, fixvrs, preamble, anonymize");
+			runPipeline = new JButton("Run");
+			runPipeline.setToolTipText("Read each file once, apply the stages in order, and write it once");
+
+			Box rowF = new Box(BoxLayout.X_AXIS);
+			rowF.add(Box.createHorizontalStrut(4));
+			rowF.add(new JLabel("Pipeline: "));
+			rowF.add(pipelineField);
+			rowF.add(Box.createHorizontalStrut(4));
+			rowF.add(runPipeline);
+			rowF.add(Box.createHorizontalStrut(17));
+
+			Box rowC = new Box(BoxLayout.X_AXIS);
+			rowC.add(Box.createHorizontalStrut(4));
+			rowC.add(new JLabel("Query: "));
+			rowC.add(queryField);
+			rowC.add(Box.createHorizontalStrut(4));
+			rowC.add(index);
+			rowC.add(Box.createHorizontalStrut(17));
+
 			Dimension anSize = anonymize.getPreferredSize();
 			Dimension vrSize = fixVRs.getPreferredSize();
 			Dimension cpSize = clearPreamble.getPreferredSize();
@@ -418,13 +1363,62 @@ public class RightPanel extends JPanel
 			fixVRs.setPreferredSize(anSize);
 			clearPreamble.setPreferredSize(anSize);
 			setPatientIDs.setPreferredSize(anSize);
+			index.setPreferredSize(anSize);
+			transcode.setPreferredSize(anSize);
+			compress.setPreferredSize(anSize);
+			outputBrowse.setPreferredSize(anSize);
+			verifyManifest.setPreferredSize(anSize);
+			runPipeline.setPreferredSize(anSize);
+			Dimension qfSize = queryField.getPreferredSize();
+			qfSize.width = Integer.MAX_VALUE;
+			queryField.setMaximumSize(qfSize);
+			Dimension pfSize = pipelineField.getPreferredSize();
+			pfSize.width = Integer.MAX_VALUE;
+			pipelineField.setMaximumSize(pfSize);
+			Dimension ofSize = outputField.getPreferredSize();
+			ofSize.width = Integer.MAX_VALUE;
+			outputField.setMaximumSize(ofSize);
 
 			this.add(rowA);
 			this.add(rowB);
+			this.add(rowD);
+			this.add(rowE);
+			this.add(rowF);
+			this.add(rowC);
+		}
+		public String getTranscodeSyntax() {
+			return FileTranscoder.syntaxes[syntaxBox.getSelectedIndex()];
+		}
+		public String getPipeline() {
+			String pipeline = pipelineField.getText().trim();
+			properties.setProperty("pipeline",pipeline);
+			return pipeline;
+		}
+		public File getOutputRoot() {
+			String path = outputField.getText().trim();
+			properties.setProperty("output-root",path);
+			if (!outputBox.isSelected() || path.equals("")) return null;
+			return new File(path);
 		}
 		public void actionPerformed(ActionEvent evt) {
+			if (evt.getSource().equals(outputBrowse)) {
+				JFileChooser chooser = new JFileChooser(outputField.getText().trim());
+				chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+				if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+					outputField.setText(chooser.getSelectedFile().getAbsolutePath());
+					outputBox.setSelected(true);
+				}
+			}
+			properties.setProperty("transcode-syntax",getTranscodeSyntax());
+			properties.setProperty("use-output-root",(outputBox.isSelected() ? "yes" : "no"));
+			properties.setProperty("output-root",outputField.getText().trim());
 			properties.setProperty("change-name",(changeNameBox.isSelected() ? "yes" : "no"));
 			properties.setProperty("use-sopiuid",(renameToSOPIUIDBox.isSelected() ? "yes" : "no"));
+			properties.setProperty("sort-by-series",(hierarchyBox.isSelected() ? "yes" : "no"));
+			properties.setProperty("verify-phi",(verifyBox.isSelected() ? "yes" : "no"));
+			properties.setProperty("check-pixels",(pixelBox.isSelected() ? "yes" : "no"));
+			properties.setProperty("dedup",(dedupBox.isSelected() ? "yes" : "no"));
+			properties.setProperty("write-manifest",(manifestBox.isSelected() ? "yes" : "no"));
 		}
 	}
 
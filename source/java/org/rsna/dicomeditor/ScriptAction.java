@@ -0,0 +1,361 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerContext;
+import org.rsna.ctp.stdstages.anonymizer.dicom.FnCall;
+
+/**
+ * The script of one element, parsed once when the script is compiled.
+ * <p>
+ * Scripts that consist of a single action, like @remove() or @empty(),
+ * or of literal text, are recognized when they are parsed and are never
+ * evaluated. Other scripts are parsed into a sequence of literal text
+ * and function calls, with the arguments of each call already split,
+ * so evaluating the script for an element only calls the functions.
+ * The functions themselves are those of the DICOMAnonymizer, so the
+ * results are identical to those of DICOMAnonymizer.makeReplacement.
+ * <p>
+ * The hashing functions (@hash, @hashdate and @hashuid) depend only on
+ * their arguments and the values of the elements they name, and the
+ * objects of a series share most of those values, so if a FunctionCache
+ * is supplied, their results are memoized in it.
+ */
+public class ScriptAction {
+
+	static final Logger logger = Logger.getLogger(ScriptAction.class);
+
+	/** The kinds of action. */
+	public static final int KEEP = 0;
+	public static final int REMOVE = 1;
+	public static final int EMPTY = 2;
+	public static final int BLANK = 3;
+	public static final int VALUE = 4;
+	public static final int EXPRESSION = 5;
+
+	static final int maxBlankLength = 55;
+
+	//The names of the functions and the methods of the DICOMAnonymizer that implement them.
+	static final String[][] functionNames = {
+		{ "contents", "contents" },			{ "value", "value" },
+		{ "truncate", "truncate" },			{ "date", "date" },
+		{ "dateinterval", "dateinterval" },	{ "decrypt", "decrypt" },
+		{ "encrypt", "encrypt" },			{ "hash", "hash" },
+		{ "hashname", "hashname" },			{ "hashptid", "hashptid" },
+		{ "hashuid", "hashuid" },			{ "if", "iffn" },
+		{ "select", "selectfn" },			{ "append", "appendfn" },
+		{ "always", "alwaysfn" },			{ "hashdate", "hashdate" },
+		{ "incrementdate", "incrementdate" },	{ "lowercase", "lowercase" },
+		{ "uppercase", "uppercase" },		{ "modifydate", "modifydate" },
+		{ "initials", "initials" },			{ "lookup", "lookup" },
+		{ "integer", "integer" },			{ "param", "param" },
+		{ "require", "require" },			{ "round", "round" },
+		{ "time", "time" },					{ "process", "processfn" },
+		{ "call", "callfn" },				{ "pathelement", "pathelement" }
+	};
+	static final HashMap<String,Method> functions = new HashMap<String,Method>();
+	static String missingFunctions = "";
+	static {
+		for (String[] names : functionNames) {
+			try {
+				Method method = DICOMAnonymizer.class.getDeclaredMethod(names[1], FnCall.class);
+				method.setAccessible(true);
+				functions.put(names[0], method);
+			}
+			catch (Exception ex) {
+				missingFunctions += (missingFunctions.equals("") ? "" : ", ") + "@" + names[0];
+			}
+		}
+		if (!missingFunctions.equals("")) {
+			logger.error("The CTP library does not implement the script functions " + missingFunctions);
+		}
+	}
+
+	//The DICOMAnonymizer formats dates for these functions with shared
+	//formatters, so calls to them are serialized.
+	static final Object dateLock = new Object();
+	static final String[] serializedFunctions = { "dateinterval", "call" };
+
+	//The deterministic functions whose results are memoized.
+	static final String[] memoizedFunctions = { "hash", "hashdate", "hashuid" };
+
+	public final int kind;
+	public final String script;
+	public final boolean always;
+	public final String value;
+	public final int blankLength;
+	final Object[] nodes;
+	final boolean[] serialized;
+	final boolean[] memoized;
+	final FunctionCache cache;
+
+	/**
+	 * Check that the DICOMAnonymizer methods that implement the script
+	 * functions were found in the CTP library. The methods are private,
+	 * so a CTP library of another version may not have them.
+	 * @throws IllegalStateException if any of the methods is missing.
+	 */
+	public static void checkFunctions() {
+		if (!missingFunctions.equals("")) {
+			throw new IllegalStateException(
+				"The CTP library is not the version DicomEditor was built with: "
+				+ "the DICOMAnonymizer does not implement " + missingFunctions);
+		}
+	}
+
+	/**
+	 * Parse a script.
+	 * @param script the script of an element.
+	 * @throws IllegalArgumentException if the script calls @integer
+	 * within another function.
+	 */
+	public ScriptAction(String script) {
+		this(script, null);
+	}
+
+	/**
+	 * Parse a script.
+	 * @param script the script of an element.
+	 * @param cache the cache for the results of the hashing functions,
+	 * or null if they are not to be memoized.
+	 * @throws IllegalArgumentException if the script calls @integer
+	 * within another function.
+	 */
+	public ScriptAction(String script, FunctionCache cache) {
+		this.script = script;
+		this.cache = cache;
+		String s = script.trim();
+		this.always = s.startsWith("@always()");
+		int kind = EXPRESSION;
+		String value = null;
+		int blankLength = 0;
+		if (s.equals("@keep()")) kind = KEEP;
+		else if (s.equals("@remove()")) kind = REMOVE;
+		else if (s.equals("@empty()")) kind = EMPTY;
+		else if (s.matches("@blank\\(\\d*\\)")) {
+			kind = BLANK;
+			String n = s.substring("@blank(".length(), s.length()-1);
+			blankLength = Math.min(Integer.parseInt("0" + n), maxBlankLength);
+		}
+		else if ((s.indexOf('@') < 0) && (s.indexOf('\\') < 0)) {
+			kind = VALUE;
+			value = s;
+		}
+		this.kind = kind;
+		this.value = value;
+		this.blankLength = blankLength;
+		if (kind == EXPRESSION) {
+			nodes = parse(script);
+			serialized = new boolean[nodes.length];
+			memoized = new boolean[nodes.length];
+			for (int i=0; i<nodes.length; i++) {
+				if (nodes[i] instanceof FnCall) {
+					checkNesting((FnCall)nodes[i]);
+					serialized[i] = isSerialized((FnCall)nodes[i]);
+					memoized[i] = (cache != null) && isMemoized((FnCall)nodes[i]);
+				}
+			}
+		}
+		else {
+			nodes = null;
+			serialized = null;
+			memoized = null;
+		}
+	}
+
+	/**
+	 * Evaluate the script for an element. The result is what
+	 * DICOMAnonymizer.makeReplacement returns for the same script.
+	 * @param context the context of the object being anonymized.
+	 * @param tag the tag of the element.
+	 * @return the replacement value, which may be one of the actions
+	 * (@keep(), @remove(), etc.) if the script produced one.
+	 * @throws Exception if the script requires the object to be
+	 * skipped or quarantined, or if a function fails.
+	 */
+	public String evaluate(DICOMAnonymizerContext context, int tag) throws Exception {
+		switch (kind) {
+			case KEEP: return "@keep()";
+			case REMOVE: return "@remove()";
+			case EMPTY: return "@empty()";
+			case VALUE: return script;
+		}
+		if (nodes == null) return script;
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<nodes.length; i++) {
+			Object node = nodes[i];
+			if (node instanceof String) sb.append((String)node);
+			else {
+				FnCall call = new BoundCall((FnCall)node, context, tag);
+				if (serialized[i]) {
+					synchronized (dateLock) { sb.append(call(call)); }
+				}
+				else if (memoized[i]) sb.append(callMemoized(call));
+				else sb.append(call(call));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String call(FnCall fn) throws Exception {
+		if (fn.name.equals("quarantine")) throw new Exception("!quarantine!");
+		if (fn.name.equals("skip")) throw new Exception("!skip!");
+		if (fn.name.equals("integer") && (fn.context instanceof CompiledScript.Context)) {
+			IntegerStore integers = ((CompiledScript.Context)fn.context).integers;
+			if (integers != null) return integer(fn, integers);
+		}
+		Method method = functions.get(fn.name);
+		if (method == null) return "@" + fn.getCall();
+		try { return (String)method.invoke(null, fn); }
+		catch (InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof Exception) throw (Exception)cause;
+			throw ex;
+		}
+	}
+
+	//Call a hashing function, using the cached result if there is one.
+	private String callMemoized(FnCall fn) throws Exception {
+		String key = getMemoKey(fn);
+		if (key == null) return call(fn);
+		String value = cache.get(key);
+		if (value == null) {
+			value = call(fn);
+			cache.put(key, value);
+		}
+		return value;
+	}
+
+	//Get the key of a hashing function call: the call itself, whose
+	//parameters are fixed by the script, and the values of the elements
+	//that the function reads. Calls that read anything else, or whose
+	//elements are missing, are not cached.
+	private static String getMemoKey(FnCall fn) {
+		DICOMAnonymizerContext context = fn.context;
+		String[] args = fn.args;
+		String v1 = null;
+		String v2 = "";
+		if (fn.name.equals("hashuid")) {
+			if (args.length != 2) return null;
+			v1 = context.contentsNull(args[1], fn.thisTag);
+		}
+		else if (fn.name.equals("hashdate")) {
+			if (args.length < 2) return null;
+			v1 = context.contentsNull(args[0], fn.thisTag);
+			v2 = context.contentsNull(args[1], fn.thisTag);
+		}
+		else if (fn.name.equals("hash")) {
+			if (args.length < 1) return null;
+			v1 = context.contentsNull(args[0], fn.thisTag);
+		}
+		if ((v1 == null) || (v2 == null)) return null;
+		return fn.getCall() + "\u0000" + v1 + "\u0000" + v2;
+	}
+
+	//The @integer function, with the IntegerStore in place of the
+	//IntegerTable and the errors of DICOMAnonymizer.integer.
+	private static String integer(FnCall fn, IntegerStore integers) throws Exception {
+		try {
+			String value = fn.context.contents(fn.args[0], fn.thisTag);
+			String type = fn.args[1];
+			int width = 0;
+			if (fn.args.length > 2) {
+				try { width = Integer.parseInt(fn.args[2]); }
+				catch (Exception useDefault) { }
+			}
+			if (value == null) throw new Exception("lookup key missing");
+			return integers.getInteger(type, value, width);
+		}
+		catch (Exception ex) {
+			throw new Exception("!quarantine! - " + ex.getMessage());
+		}
+	}
+
+	//Split a script into literal text and function calls, following
+	//the rules of DICOMAnonymizer.makeReplacement.
+	private static Object[] parse(String script) {
+		ArrayList<Object> list = new ArrayList<Object>();
+		StringBuilder text = new StringBuilder();
+		boolean escape = false;
+		int i = 0;
+		while (i < script.length()) {
+			char c = script.charAt(i++);
+			if (escape) {
+				text.append(c);
+				escape = false;
+			}
+			else if (c == '\\') escape = true;
+			else if (c == '@') {
+				FnCall fn = new FnCall(script.substring(i), null, 0);
+				if (fn.length == -1) break;
+				i += fn.length;
+				if (text.length() > 0) {
+					list.add(text.toString());
+					text.setLength(0);
+				}
+				list.add(fn);
+			}
+			else text.append(c);
+		}
+		if (text.length() > 0) list.add(text.toString());
+		return list.toArray();
+	}
+
+	//The IntegerStore is only available to calls of @integer at the top
+	//level of a script; the DICOMAnonymizer evaluates the clauses of
+	//@if, @append and @always itself, with no IntegerTable, so a nested
+	//call would quarantine every object. Such scripts are refused.
+	private void checkNesting(FnCall fn) {
+		if (fn.name.equals("integer")) return;
+		String[] parts = { fn.getCall(), fn.trueCode, fn.falseCode };
+		for (String part : parts) {
+			if ((part != null) && part.contains("@integer")) {
+				throw new IllegalArgumentException(
+					"@integer cannot be used within @" + fn.name + " in the script \""
+					+ script + "\"; it is only supported at the top level of a script.");
+			}
+		}
+	}
+
+	private static boolean isSerialized(FnCall fn) {
+		for (String name : serializedFunctions) {
+			if (fn.name.equals(name) || fn.getCall().contains("@" + name)) return true;
+		}
+		return false;
+	}
+
+	private static boolean isMemoized(FnCall fn) {
+		for (String name : memoizedFunctions) {
+			if (fn.name.equals(name)) return true;
+		}
+		return false;
+	}
+
+	//A parsed function call bound to the element being processed.
+	//The parsed call is shared by all threads; each evaluation gets
+	//its own copy, so the parse is never repeated.
+	static class BoundCall extends FnCall {
+		public BoundCall(FnCall parsed, DICOMAnonymizerContext context, int tag) {
+			super("()", null, 0);
+			this.context = context;
+			this.thisTag = tag;
+			this.name = parsed.name;
+			this.args = parsed.args;
+			this.trueCode = parsed.trueCode;
+			this.falseCode = parsed.falseCode;
+			this.length = parsed.length;
+			this.fnCall = parsed.fnCall;
+		}
+	}
+
+}
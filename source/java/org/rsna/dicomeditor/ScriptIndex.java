@@ -0,0 +1,129 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.util.*;
+
+/**
+ * A search index for the rules of an AnonymizerScript. The index is
+ * built when the script is loaded. It holds a lower-case search key for
+ * each rule, containing the tag in all its common forms, the element
+ * name and the script text, along with a flag for each rule that applies
+ * to a private group.
+ * <p>
+ * A search is a list of words, all of which must appear in the key of
+ * a rule. Since a search that extends the previous search can only
+ * match a subset of the previous results, only those rules are examined,
+ * so typing into a search field costs less with every keystroke.
+ */
+public class ScriptIndex {
+
+	/** The quick filters. */
+	public static final int ALL = 0;
+	public static final int ENABLED = 1;
+	public static final int DISABLED = 2;
+	public static final int PRIVATE = 3;
+
+	AnonymizerScript script;
+	String[] keys;
+	boolean[] isPrivate;
+	String lastText = null;
+	int lastFilter = -1;
+	int[] lastResult = null;
+
+	/**
+	 * Build the index for a script.
+	 * @param script the script.
+	 */
+	public ScriptIndex(AnonymizerScript script) {
+		this.script = script;
+		int n = script.size();
+		keys = new String[n];
+		isPrivate = new boolean[n];
+		for (int i=0; i<n; i++) update(i);
+	}
+
+	/**
+	 * Update the key for a rule whose value has changed.
+	 * @param i the index of the rule.
+	 */
+	public void update(int i) {
+		AnonymizerScript.Rule rule = script.get(i);
+		StringBuffer sb = new StringBuffer();
+		String t = rule.t.toLowerCase();
+		if ((rule.type == 'e') && (t.length() == 8)) {
+			String g = t.substring(0,4);
+			String e = t.substring(4,8);
+			sb.append("[" + g + "," + e + "] (" + g + "," + e + ") " + t);
+			isPrivate[i] = isOdd(g);
+		}
+		else {
+			sb.append(t);
+			isPrivate[i] = (rule.type == 'r') && t.equals("privategroups");
+		}
+		sb.append(" " + rule.n.toLowerCase());
+		sb.append("\t" + rule.value.toLowerCase());
+		keys[i] = sb.toString();
+		lastText = null;
+	}
+
+	/**
+	 * Find the rules which match a search and a quick filter.
+	 * @param text the words to search for, separated by whitespace.
+	 * @param filter the quick filter (ALL, ENABLED, DISABLED, or PRIVATE).
+	 * @return the indexes of the matching rules, in script order.
+	 */
+	public int[] search(String text, int filter) {
+		text = text.toLowerCase().trim();
+		int[] candidates = null;
+		if ((lastText != null) && (filter == lastFilter) && text.startsWith(lastText)) {
+			candidates = lastResult;
+		}
+		String[] words = text.split("\\s+");
+		int n = (candidates != null) ? candidates.length : keys.length;
+		int[] result = new int[n];
+		int count = 0;
+		for (int k=0; k<n; k++) {
+			int i = (candidates != null) ? candidates[k] : k;
+			if (filter == ENABLED) {
+				if (!script.get(i).enabled) continue;
+			}
+			else if (filter == DISABLED) {
+				AnonymizerScript.Rule rule = script.get(i);
+				if (rule.enabled || !rule.isCheckable()) continue;
+			}
+			else if (filter == PRIVATE) {
+				if (!isPrivate[i]) continue;
+			}
+			if (matches(keys[i], words)) result[count++] = i;
+		}
+		result = Arrays.copyOf(result, count);
+		//The enabled flags can change without a change in the keys,
+		//so the results of a filtered search are not reused.
+		if ((filter == ALL) || (filter == PRIVATE)) {
+			lastText = text;
+			lastFilter = filter;
+			lastResult = result;
+		}
+		else lastText = null;
+		return result;
+	}
+
+	private static boolean matches(String key, String[] words) {
+		for (String word : words) {
+			if (!key.contains(word)) return false;
+		}
+		return true;
+	}
+
+	private static boolean isOdd(String hex) {
+		char c = hex.charAt(hex.length() - 1);
+		return (Character.digit(c, 16) & 1) != 0;
+	}
+
+}
@@ -0,0 +1,246 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.*;
+import org.rsna.util.FileUtil;
+
+/**
+ * Corrects the VRs of the elements of a dataset that is already in memory,
+ * making the same corrections as the CTP DICOMCorrector: an element whose
+ * VR differs from the one in the dictionary is converted if the dictionary
+ * VR is FD, FL, CS, LO, SH or UI, and the items of sequences are corrected
+ * recursively. Elements that cannot be converted are left alone.
+ * <p>
+ * Files can also be corrected without being loaded: only the header is
+ * parsed, a file that needs no corrections is not written at all, and
+ * corrections that keep the lengths of the elements are patched into the
+ * file in place. Only the other files have their headers rewritten, with
+ * the pixel data copied after them.
+ */
+public class VRCorrector {
+
+	static final Logger logger = Logger.getLogger(VRCorrector.class);
+
+	static final TagDictionary tagDictionary = DictionaryFactory.getInstance().getDefaultTagDictionary();
+
+	/** The file needed no corrections and was not written. */
+	public static final int UNCHANGED = 0;
+	/** The corrections were written into the file in place. */
+	public static final int PATCHED = 1;
+	/** The header of the file was rewritten. */
+	public static final int REWRITTEN = 2;
+
+	/**
+	 * Correct the VRs of the elements of a dataset.
+	 * @param ds the dataset.
+	 * @return true if any element was corrected.
+	 */
+	public static boolean correct(Dataset ds) {
+		return correct(ds, ds.getSpecificCharacterSet(), null);
+	}
+
+	/**
+	 * Correct the VRs of the elements of the header of a file, reading
+	 * only the header. The file is not written if no element needs to be
+	 * corrected. If every corrected element keeps its length and the form
+	 * of its header, the corrections are written into the file in place;
+	 * otherwise the header is rewritten in the file's transfer syntax and
+	 * the pixel data and anything that follows it are copied unchanged.
+	 * @param file the file.
+	 * @return UNCHANGED, PATCHED or REWRITTEN.
+	 * @throws Exception if the file cannot be parsed or written.
+	 */
+	public static int correct(File file) throws Exception {
+		Dataset ds = DcmObjectFactory.getInstance().newDataset();
+		DcmParser parser = parse(file, ds, Tags.PixelData);
+		DcmDecodeParam fileParam = parser.getDcmDecodeParam();
+		if (fileParam.deflated) {
+			//The positions are in the inflated stream, so the
+			//whole dataset is needed to rewrite the file.
+			ds = DcmObjectFactory.getInstance().newDataset();
+			parser = parse(file, ds, -1);
+		}
+		List<DcmElement[]> changes = new LinkedList<DcmElement[]>();
+		correct(ds, ds.getSpecificCharacterSet(), changes);
+		if (changes.size() == 0) return UNCHANGED;
+		if (!fileParam.deflated && patch(file, changes, fileParam)) return PATCHED;
+		rewrite(file, ds, parser);
+		return REWRITTEN;
+	}
+
+	//Parse a file up to a tag, closing the file.
+	private static DcmParser parse(File file, Dataset ds, int stopTag) throws Exception {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			DcmParser parser = DcmParserFactory.getInstance().newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new IOException("Unrecognized file format");
+			parser.setDcmHandler(ds.getDcmHandler());
+			parser.parseDcmFile(fileFormat, stopTag);
+			return parser;
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	//Write corrections into a file in place, if every corrected element
+	//keeps its length and the size of its length field. Each element is
+	//checked against the file before anything is written, and nothing is
+	//written if any of them cannot be patched.
+	private static boolean patch(File file, List<DcmElement[]> changes, DcmDecodeParam fileParam) throws Exception {
+		ByteOrder order = fileParam.byteOrder;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[][] values = new byte[changes.size()][];
+			int k = 0;
+			for (DcmElement[] change : changes) {
+				DcmElement el = change[0];
+				DcmElement corrected = change[1];
+				long pos = el.getStreamPosition();
+				if ((pos < 0) || (el.length() < 0)) return false;
+				if (fileParam.explicitVR
+						&& !(VRs.isLengthField16Bit(el.vr()) && VRs.isLengthField16Bit(corrected.vr()))) {
+					return false;
+				}
+				//Values are padded to even lengths when they are written.
+				ByteBuffer bb = corrected.getByteBuffer(order);
+				int len = bb.remaining();
+				if ((len != el.length()) && ((len & 1) == 0 || (len + 1 != el.length()))) return false;
+				byte[] value = new byte[el.length()];
+				bb.get(value, 0, len);
+				if (len < value.length) value[len] = (corrected.vr() == VRs.UI) ? (byte)0 : (byte)' ';
+				byte[] header = new byte[6];
+				raf.seek(pos);
+				raf.readFully(header);
+				ByteBuffer hb = ByteBuffer.wrap(header).order(order);
+				int tag = ((hb.getShort(0) & 0xFFFF) << 16) | (hb.getShort(2) & 0xFFFF);
+				if (tag != el.tag()) return false;
+				if (fileParam.explicitVR && !new String(header, 4, 2, "US-ASCII").equals(VRs.toString(el.vr()))) {
+					return false;
+				}
+				values[k++] = value;
+			}
+			k = 0;
+			for (DcmElement[] change : changes) {
+				long pos = change[0].getStreamPosition();
+				if (fileParam.explicitVR) {
+					raf.seek(pos + 4);
+					raf.write(VRs.toString(change[1].vr()).getBytes("US-ASCII"));
+				}
+				raf.seek(pos + 8);
+				raf.write(values[k++]);
+			}
+			return true;
+		}
+		finally { raf.close(); }
+	}
+
+	//Rewrite the header of a file through a temporary file, copying the
+	//pixel data and anything that follows it unchanged.
+	private static void rewrite(File file, Dataset ds, DcmParser parser) throws Exception {
+		File tempFile = File.createTempFile("DCMtemp-", ".fix", file.getAbsoluteFile().getParentFile());
+		FileOutputStream fos = null;
+		try {
+			FileMetaInfo fmi = ds.getFileMetaInfo();
+			DcmEncodeParam encoding = Pipeline.getEncodeParam(fmi, parser.getDcmDecodeParam());
+			fos = new FileOutputStream(tempFile);
+			BufferedOutputStream out = new BufferedOutputStream(fos);
+			if (fmi != null) fmi.write(out);
+			ds.writeDataset(out, encoding);
+			if (parser.getReadTag() == Tags.PixelData) {
+				ds.writeHeader(out, encoding, Tags.PixelData, parser.getReadVR(), parser.getReadLength());
+				out.flush();
+				long valueStart = parser.getStreamPosition();
+				FileChannel channel = fos.getChannel();
+				FileAnonymizer.transfer(file, valueStart, file.length() - valueStart, channel);
+			}
+			out.close();
+			fos = null;
+			if (!file.delete()) throw new IOException("Unable to delete " + file);
+			if (!tempFile.renameTo(file)) throw new IOException("Unable to rename "+tempFile+" to "+file);
+		}
+		finally {
+			FileUtil.close(fos);
+			tempFile.delete();
+		}
+	}
+
+	//Correct the elements of a dataset and its sequences, adding the
+	//original and corrected versions of each corrected element to a
+	//list of changes, if one is supplied.
+	private static boolean correct(Dataset ds, SpecificCharacterSet cs, List<DcmElement[]> changes) {
+		boolean changed = false;
+		for (Iterator it = ds.iterator(); it.hasNext(); ) {
+			DcmElement el = (DcmElement)it.next();
+			int tag = el.tag();
+			TagDictionary.Entry entry = tagDictionary.lookup(tag);
+			if (((entry != null) && entry.vr.equals("SQ")) || (el.vr() == VRs.SQ)) {
+				Dataset item;
+				for (int i=0; (item = el.getItem(i)) != null; i++) changed |= correct(item, cs, changes);
+			}
+			else if ((entry != null) && !entry.vr.equals(VRs.toString(el.vr()))) {
+				try {
+					if (convert(ds, el, entry.vr, cs)) {
+						changed = true;
+						if (changes != null) changes.add(new DcmElement[] { el, ds.get(tag) });
+					}
+				}
+				catch (Exception ex) { logger.warn("Unable to convert " + Tags.toString(tag), ex); }
+			}
+		}
+		return changed;
+	}
+
+	//Convert an element to the VR in the dictionary, if it is one that
+	//can be converted. Returns true if the element was converted.
+	private static boolean convert(Dataset ds, DcmElement el, String vr, SpecificCharacterSet cs) throws Exception {
+		int tag = el.tag();
+		int len = el.length();
+		if (vr.equals("FD") && (len > 0) && ((len % 8) == 0)) {
+			ByteBuffer bb = el.getByteBuffer();
+			double[] values = new double[len / 8];
+			for (int i=0; i<values.length; i++) values[i] = bb.getDouble(8 * i);
+			ds.putFD(tag, values);
+			return true;
+		}
+		if (vr.equals("FL") && (len > 0) && ((len % 4) == 0)) {
+			ByteBuffer bb = el.getByteBuffer();
+			float[] values = new float[len / 4];
+			for (int i=0; i<values.length; i++) values[i] = bb.getFloat(4 * i);
+			ds.putFL(tag, values);
+			return true;
+		}
+		if (vr.equals("CS") || vr.equals("LO") || vr.equals("SH") || vr.equals("UI")) {
+			String value = "";
+			if (len > 0) {
+				if (cs == null) throw new Exception("No character set for " + Tags.toString(tag));
+				value = cs.decode(el.getByteBuffer().array());
+			}
+			if (vr.equals("CS")) ds.putCS(tag, value);
+			else if (vr.equals("LO")) ds.putLO(tag, value);
+			else if (vr.equals("SH")) ds.putSH(tag, value);
+			else {
+				if (value.endsWith(".")) value = value.substring(0, value.length() - 1);
+				ds.putUI(tag, value);
+			}
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,820 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import javax.xml.namespace.QName;
+import javax.xml.stream.*;
+import javax.xml.stream.events.*;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.xml.XMLAnonymizer;
+import org.rsna.util.FileUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Anonymizes XML files with the XML anonymizer script by streaming them
+ * through StAX rather than building a DOM, so the memory used depends on
+ * the depth of the document, not its size.
+ * <p>
+ * The script is parsed once for all the files of a batch. The commands
+ * have the same meaning as for the CTP XMLAnonymizer: paths select the
+ * first matching child at each step unless they have an index or [*]
+ * qualifier, // selects descendants at any depth, and the values are
+ * computed by the CTP XmlScript, so all its functions are available. The
+ * commands are applied to the elements as they stream by, each element
+ * receiving the commands that select it in the order of the script.
+ * <p>
+ * When the script's expressions reference paths, the file is read twice:
+ * first to collect the few nodes the references reach into a small
+ * document, and then to write the output. The path commands are applied
+ * to that small document in the order of the script as well, so a
+ * reference sees the values the earlier commands have given its node, as
+ * it does in the DOM version. The indexes of elements among their siblings
+ * do not count the siblings removed by earlier commands. A script in which
+ * a $remove command could change the node a reference selects is run with
+ * the DOM-based XMLAnonymizer instead. Elements created by $require receive
+ * only the command that creates them. The same XMLStreamAnonymizer can be
+ * used by any number of threads at once.
+ */
+public class XMLStreamAnonymizer {
+
+	static final Logger logger = Logger.getLogger(XMLStreamAnonymizer.class);
+
+	final File scriptFile;
+	final Command[] commands;
+	final Segment[][] references;
+	final Properties lkup;
+	final boolean streaming;
+	final XMLInputFactory inputFactory;
+	final XMLOutputFactory outputFactory;
+	final XMLEventFactory eventFactory;
+
+	/**
+	 * Create an XMLStreamAnonymizer.
+	 * @param scriptFile the XML anonymizer script.
+	 * @param lkup the lookup table, or null.
+	 * @throws Exception if the script cannot be parsed.
+	 */
+	public XMLStreamAnonymizer(File scriptFile, Properties lkup) throws Exception {
+		this.scriptFile = scriptFile;
+		this.lkup = lkup;
+		commands = parseScript(FileUtil.getText(scriptFile));
+		List<Segment[]> refs = new LinkedList<Segment[]>();
+		for (Command command : commands) {
+			List<String> paths = findReferences(command.right);
+			command.hasReferences = (paths.size() > 0);
+			for (String path : paths) refs.add(parsePath(path));
+		}
+		references = refs.toArray(new Segment[refs.size()][]);
+
+		//Find the path commands that may change the nodes the references
+		//reach. Removals among them could make a reference select a node
+		//that is not in the small document, so those scripts are left to
+		//the DOM version.
+		boolean canStream = true;
+		for (Command command : commands) {
+			if (command.path == null) continue;
+			for (Segment[] ref : references) command.touchesReferences |= mayOverlap(command.path, ref);
+			if (command.touchesReferences && command.removed
+					&& (command.path[command.path.length - 1].kind == Segment.END)) {
+				canStream = false;
+			}
+		}
+		streaming = canStream;
+
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		inputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		try { inputFactory.setProperty("http://java.sun.com/xml/stream/properties/ignore-external-dtd", Boolean.TRUE); }
+		catch (IllegalArgumentException ex) { }
+		try { inputFactory.setProperty("http://java.sun.com/xml/stream/properties/report-cdata-event", Boolean.TRUE); }
+		catch (IllegalArgumentException ex) { }
+		outputFactory = XMLOutputFactory.newInstance();
+		eventFactory = XMLEventFactory.newInstance();
+	}
+
+	/**
+	 * Anonymize a file.
+	 * @param inFile the file to anonymize.
+	 * @param outFile the output file. It may be the same as the input file.
+	 * @return the status of the anonymization: OK or QUARANTINE.
+	 */
+	public AnonymizerStatus anonymize(File inFile, File outFile) {
+		if (!streaming) return XMLAnonymizer.anonymize(inFile, outFile, scriptFile, lkup);
+		File tempFile = null;
+		OutputStream out = null;
+		try {
+			Document skeleton = getSkeleton(inFile);
+
+			//Run the commands in order against the small document,
+			//giving each path command the variables assigned before it
+			//and the state of the document the commands before it left.
+			//The document is copied before a command changes it if an
+			//earlier command's expression still refers to it.
+			Hashtable<String,String> table = new Hashtable<String,String>();
+			Expression[] scripts = new Expression[commands.length];
+			boolean shared = false;
+			for (int i=0; i<commands.length; i++) {
+				Command command = commands[i];
+				if (command.path == null) {
+					String value = new Expression(skeleton, table, command.right, lkup).getValue("");
+					if (command.left.equals("$print")) logger.warn(value);
+					else {
+						table = new Hashtable<String,String>(table);
+						table.put(command.left, value);
+					}
+					continue;
+				}
+				scripts[i] = new Expression(skeleton, table, command.right, lkup);
+				shared |= command.hasReferences;
+				if (command.touchesReferences) {
+					if (shared) skeleton = (Document)skeleton.cloneNode(true);
+					shared = false;
+					apply(skeleton, command, 0, new Expression(skeleton, table, command.right, lkup));
+				}
+			}
+
+			tempFile = File.createTempFile("XMLtemp-", ".anon", outFile.getAbsoluteFile().getParentFile());
+			out = new BufferedOutputStream(new FileOutputStream(tempFile));
+			transform(inFile, out, scripts);
+			out.close();
+			out = null;
+			if (outFile.exists() && !outFile.delete()) logger.warn("Unable to delete " + outFile);
+			if (!tempFile.renameTo(outFile)) throw new IOException("Unable to rename "+tempFile+" to "+outFile);
+			return AnonymizerStatus.OK(outFile, "");
+		}
+		catch (Exception ex) {
+			FileUtil.close(out);
+			if (tempFile != null) tempFile.delete();
+			return AnonymizerStatus.QUARANTINE(inFile, ex.getMessage());
+		}
+	}
+
+	//Stream the document to the output, applying the path commands.
+	private void transform(File inFile, OutputStream out, Expression[] scripts) throws Exception {
+		InputStream in = null;
+		XMLEventReader reader = null;
+		XMLEventWriter writer = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(inFile));
+			reader = inputFactory.createXMLEventReader(in);
+			LinkedList<Frame> stack = new LinkedList<Frame>();
+			Frame top = new Frame();
+			for (int i=0; i<commands.length; i++) {
+				if (commands[i].path != null) top.active.add(new State(i, 0));
+			}
+			List<State> roots = new LinkedList<State>(top.active);
+			int skip = 0;
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (writer == null) {
+					String encoding = "UTF-8";
+					if (event.isStartDocument() && ((StartDocument)event).encodingSet()) {
+						encoding = ((StartDocument)event).getCharacterEncodingScheme();
+					}
+					writer = outputFactory.createXMLEventWriter(out, encoding);
+				}
+				if (skip > 0) {
+					if (event.isStartElement()) skip++;
+					else if (event.isEndElement()) skip--;
+					continue;
+				}
+				if (event.isStartElement()) {
+					StartElement se = event.asStartElement();
+					Frame frame = select(top, getName(se.getName()), stack.isEmpty());
+					if (frame.removed) {
+						skip = 1;
+						continue;
+					}
+					writer.add(applyAttributes(se, frame, scripts));
+					stack.push(top);
+					top = frame;
+				}
+				else if (event.isEndElement()) {
+					if (top.values.size() > 0) {
+						String value = top.text.toString();
+						Collections.sort(top.values);
+						for (Integer i : top.values) value = scripts[i].getValue(value);
+						if (value.length() > 0) writer.add(eventFactory.createCharacters(value));
+					}
+					for (State state : top.own) {
+						if (!state.matched && commands[state.command].required) {
+							create(writer, state.command, state.segment, scripts[state.command]);
+						}
+					}
+					writer.add(event);
+					top = stack.pop();
+				}
+				else if (event.isCharacters() && (top.text != null)) {
+					top.text.append(event.asCharacters().getData());
+				}
+				else writer.add(event);
+			}
+			//A required path that does not select the root element
+			//would need a second root.
+			for (State state : roots) {
+				if (!state.matched && commands[state.command].required) {
+					throw new Exception("Unable to create a second root element for "+commands[state.command].left);
+				}
+			}
+			writer.flush();
+		}
+		finally {
+			if (reader != null) {
+				try { reader.close(); }
+				catch (Exception ignore) { }
+			}
+			if (writer != null) {
+				try { writer.close(); }
+				catch (Exception ignore) { }
+			}
+			FileUtil.close(in);
+		}
+	}
+
+	//Find the commands that select an element, from the states of its
+	//parent, and create the frame of the element. The first command that
+	//removes the element hides it from the commands after it, as it does
+	//in the DOM version, so they neither select it nor count it when they
+	//index its later siblings.
+	private Frame select(Frame parent, String name, boolean isRoot) {
+		Frame frame = new Frame();
+		int removedBy = Integer.MAX_VALUE;
+		for (State state : parent.active) {
+			Command command = commands[state.command];
+			if ((state.command < removedBy) && command.removed
+					&& (command.path[state.segment + 1].kind == Segment.END)
+					&& selects(parent, state, name, isRoot)) {
+				removedBy = state.command;
+			}
+		}
+		if (removedBy != Integer.MAX_VALUE) {
+			for (State state : parent.active) {
+				if ((state.command <= removedBy) && selects(parent, state, name, isRoot)) state.matched = true;
+			}
+			parent.addChild(name, removedBy);
+			frame.removed = true;
+			return frame;
+		}
+		for (State state : parent.active) {
+			Segment segment = commands[state.command].path[state.segment];
+			if (selects(parent, state, name, isRoot)) {
+				state.matched = true;
+				State next = new State(state.command, state.segment + 1);
+				Segment nextSegment = commands[next.command].path[next.segment];
+				if (nextSegment.kind == Segment.END) {
+					if (commands[next.command].removed) frame.removed = true;
+					else frame.values.add(next.command);
+				}
+				else if (nextSegment.kind == Segment.ATTRIBUTE) frame.attributes.add(next.command);
+				else {
+					frame.active.add(next);
+					frame.own.add(next);
+				}
+			}
+			if (!isRoot && (segment.kind == Segment.DESCENDANT)) frame.active.add(state);
+		}
+		parent.addChild(name, removedBy);
+		if (frame.values.size() > 0) frame.text = new StringBuilder();
+		return frame;
+	}
+
+	//Determine whether a state selects the next child of its element.
+	private boolean selects(Frame parent, State state, String name, boolean isRoot) {
+		Segment segment = commands[state.command].path[state.segment];
+		if (isRoot) return segment.matchesRoot(name);
+		return segment.matches(name, parent.getIndex(name, state.command));
+	}
+
+	//Apply the attribute commands that select an element.
+	private StartElement applyAttributes(StartElement se, Frame frame, Expression[] scripts) throws Exception {
+		if (frame.attributes.size() == 0) return se;
+		LinkedHashMap<String,Attribute> attributes = new LinkedHashMap<String,Attribute>();
+		for (Iterator it = se.getAttributes(); it.hasNext(); ) {
+			Attribute attribute = (Attribute)it.next();
+			attributes.put(getName(attribute.getName()), attribute);
+		}
+		Collections.sort(frame.attributes);
+		for (Integer i : frame.attributes) {
+			Command command = commands[i];
+			String name = command.path[command.path.length - 1].name;
+			Attribute attribute = attributes.get(name);
+			String value = scripts[i].getValue((attribute != null) ? attribute.getValue() : "");
+			if (command.removed) attributes.remove(name);
+			else if (command.required || (attribute != null)) {
+				attributes.put(name, eventFactory.createAttribute(name, value));
+			}
+		}
+		return eventFactory.createStartElement(se.getName(), attributes.values().iterator(), se.getNamespaces());
+	}
+
+	//Write the elements required by a command whose path has no match,
+	//as the DOM version creates them. As there, a wildcard cannot be created.
+	private void create(XMLEventWriter writer, int command, int k, Expression script) throws Exception {
+		Segment[] path = commands[command].path;
+		Segment segment = path[k];
+		if ((segment.name.length() == 0) || (segment.name.indexOf("*") != -1)) {
+			throw new Exception("Unable to create an element for "+segment.text);
+		}
+		Segment next = path[k + 1];
+		List<Attribute> attributes = new LinkedList<Attribute>();
+		if (next.kind == Segment.ATTRIBUTE) {
+			attributes.add(eventFactory.createAttribute(next.name, script.getValue("")));
+		}
+		writer.add(eventFactory.createStartElement("", "", segment.name, attributes.iterator(), null));
+		if (next.kind == Segment.END) {
+			String value = script.getValue("");
+			if (value.length() > 0) writer.add(eventFactory.createCharacters(value));
+		}
+		else if (next.kind != Segment.ATTRIBUTE) create(writer, command, k + 1, script);
+		writer.add(eventFactory.createEndElement("", "", segment.name));
+	}
+
+	//Apply a path command to the small document, as the DOM version
+	//applies it to the whole one.
+	private void apply(org.w3c.dom.Node node, Command command, int k, Expression script) throws Exception {
+		Segment segment = command.path[k];
+		if (segment.kind == Segment.ATTRIBUTE) {
+			if (!(node instanceof Element)) return;
+			Element element = (Element)node;
+			String value = script.getValue(element.getAttribute(segment.name));
+			if (command.removed) element.removeAttribute(segment.name);
+			else if (command.required || element.hasAttribute(segment.name)) {
+				element.setAttribute(segment.name, value);
+			}
+		}
+		else if (segment.kind == Segment.END) {
+			if (command.removed) {
+				node.getParentNode().removeChild(node);
+				return;
+			}
+			StringBuffer sb = new StringBuffer();
+			List<org.w3c.dom.Node> texts = new LinkedList<org.w3c.dom.Node>();
+			for (org.w3c.dom.Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (child instanceof org.w3c.dom.Text) {
+					sb.append(child.getNodeValue());
+					texts.add(child);
+				}
+			}
+			String value = script.getValue(sb.toString());
+			for (org.w3c.dom.Node text : texts) node.removeChild(text);
+			node.appendChild(node.getOwnerDocument().createTextNode(value));
+		}
+		else {
+			List<Element> list = getNodeList(node, segment);
+			if ((list.size() == 0) && command.required) {
+				Document doc = (node instanceof Document) ? (Document)node : node.getOwnerDocument();
+				Element element = doc.createElement(segment.name);
+				node.appendChild(element);
+				apply(element, command, k + 1, script);
+			}
+			else for (Element element : list) apply(element, command, k + 1, script);
+		}
+	}
+
+	//Get the elements a segment selects below a node of the small document.
+	private static List<Element> getNodeList(org.w3c.dom.Node node, Segment segment) {
+		List<Element> list = new ArrayList<Element>();
+		if (node instanceof Document) {
+			Element root = ((Document)node).getDocumentElement();
+			if ((root != null) && segment.matchesRoot(root.getTagName())) list.add(root);
+		}
+		else if (segment.kind == Segment.DESCENDANT) {
+			org.w3c.dom.NodeList nl = ((Element)node).getElementsByTagName(segment.name);
+			for (int i=0; i<nl.getLength(); i++) list.add((Element)nl.item(i));
+		}
+		else {
+			int index = 0;
+			for (org.w3c.dom.Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (!(child instanceof Element)) continue;
+				if (segment.kind == Segment.WILDCARD) list.add((Element)child);
+				else if (segment.matches(child.getNodeName(), index)) list.add((Element)child);
+				if (child.getNodeName().equals(segment.name)) index++;
+			}
+		}
+		return list;
+	}
+
+	//Determine whether a command may change the node a reference selects
+	//or its value, comparing the names of the steps of their paths. That
+	//is the case if the command may select the referenced element or one
+	//of its ancestors, or the referenced attribute. A command on a node
+	//below the referenced one cannot change the node's attributes or its
+	//own text, and a descendant step may match anything below it.
+	static boolean mayOverlap(Segment[] command, Segment[] reference) {
+		for (int i=0; (i < command.length) && (i < reference.length); i++) {
+			Segment sa = command[i];
+			Segment sb = reference[i];
+			if (sb.kind == Segment.ATTRIBUTE) {
+				return (sa.kind == Segment.END)
+							|| ((sa.kind == Segment.ATTRIBUTE) && sa.name.equals(sb.name));
+			}
+			if (sb.kind == Segment.END) return (sa.kind == Segment.END);
+			if (sa.kind == Segment.ATTRIBUTE) return false;
+			if (sa.kind == Segment.END) return true;
+			if ((sa.kind == Segment.DESCENDANT) || (sb.kind == Segment.DESCENDANT)) return true;
+			if ((sa.kind == Segment.WILDCARD) || (sb.kind == Segment.WILDCARD)) continue;
+			if (!sa.name.equals(sb.name)) return false;
+		}
+		return true;
+	}
+
+	//Read the document once to collect the nodes reached by the paths
+	//referenced in the script's expressions, keeping the ancestors of
+	//those nodes, their attributes, and the text of the nodes whose
+	//values are referenced. The paths resolve in this small document
+	//just as they do in the whole one.
+	private Document getSkeleton(File inFile) throws Exception {
+		Document doc = XmlUtil.getDocument();
+		if (references.length == 0) return doc;
+		InputStream in = null;
+		XMLStreamReader reader = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(inFile));
+			reader = inputFactory.createXMLStreamReader(in);
+			Reference[] refs = new Reference[references.length];
+			for (int i=0; i<refs.length; i++) refs[i] = new Reference(references[i]);
+			ArrayList<Node> stack = new ArrayList<Node>();
+			int depth = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					Node node = new Node(getName(reader.getName()));
+					if (depth > 1) node.index = stack.get(stack.size() - 1).count(node.name);
+					stack.add(node);
+					for (Reference ref : refs) {
+						if (!ref.visit(node.name, depth)) continue;
+						include(doc, stack, reader);
+						if (ref.path[ref.k].kind == Segment.END) node.keepText = true;
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT) {
+					for (Reference ref : refs) ref.leave(depth);
+					stack.remove(stack.size() - 1);
+					depth--;
+				}
+				else if ((event == XMLStreamConstants.CHARACTERS)
+							|| (event == XMLStreamConstants.CDATA)
+							|| (event == XMLStreamConstants.SPACE)) {
+					if (depth > 0) {
+						Node node = stack.get(stack.size() - 1);
+						if (node.keepText) node.element.appendChild(doc.createTextNode(reader.getText()));
+					}
+				}
+			}
+			return doc;
+		}
+		finally {
+			if (reader != null) {
+				try { reader.close(); }
+				catch (Exception ignore) { }
+			}
+			FileUtil.close(in);
+		}
+	}
+
+	//Add the current element and any of its ancestors that are not
+	//yet in the skeleton, with their attributes. Empty elements stand
+	//in for the preceding siblings with the same name that are not in
+	//the skeleton, so the elements keep their indexes.
+	private void include(Document doc, ArrayList<Node> stack, XMLStreamReader reader) {
+		int first = stack.size() - 1;
+		while ((first > 0) && (stack.get(first - 1).element == null)) first--;
+		for (int i=first; i<stack.size(); i++) {
+			Node node = stack.get(i);
+			if (node.element != null) continue;
+			node.element = doc.createElement(node.name);
+			if (i == stack.size() - 1) {
+				for (int k=0; k<reader.getAttributeCount(); k++) {
+					node.element.setAttribute(getName(reader.getAttributeName(k)), reader.getAttributeValue(k));
+				}
+			}
+			if (i == 0) doc.appendChild(node.element);
+			else {
+				Element parent = stack.get(i - 1).element;
+				int n = 0;
+				for (org.w3c.dom.Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+					if (child.getNodeName().equals(node.name)) n++;
+				}
+				for ( ; n < node.index; n++) parent.appendChild(doc.createElement(node.name));
+				parent.appendChild(node.element);
+			}
+		}
+	}
+
+	static String getName(QName qname) {
+		String prefix = qname.getPrefix();
+		if ((prefix == null) || prefix.equals("")) return qname.getLocalPart();
+		return prefix + ":" + qname.getLocalPart();
+	}
+
+	//An expression of the script, evaluated by the CTP XmlScript so that
+	//the functions are the same as in the DOM version. XmlScript is not
+	//public, so it is reached by reflection.
+	static class Expression {
+		static Constructor<?> constructor;
+		static Method getValue;
+		Object script;
+
+		Expression(Document doc, Hashtable<String,String> table, String script, Properties lkup) throws Exception {
+			synchronized (Expression.class) {
+				if (constructor == null) {
+					Class<?> c = Class.forName("org.rsna.ctp.stdstages.anonymizer.xml.XmlScript");
+					Constructor<?> cons = c.getDeclaredConstructor(
+								Document.class, Hashtable.class, String.class, Properties.class);
+					cons.setAccessible(true);
+					getValue = c.getDeclaredMethod("getValue", String.class);
+					getValue.setAccessible(true);
+					constructor = cons;
+				}
+			}
+			this.script = constructor.newInstance(doc, table, script, lkup);
+		}
+
+		String getValue(String value) throws Exception {
+			try { return (String)getValue.invoke(script, value); }
+			catch (InvocationTargetException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof Exception) throw (Exception)cause;
+				throw ex;
+			}
+		}
+	}
+
+	//An open element of the skeleton pass.
+	static class Node {
+		String name;
+		int index = 0;
+		Element element = null;
+		boolean keepText = false;
+		HashMap<String,Integer> counts = null;
+		Node(String name) {
+			this.name = name;
+		}
+		//Count a child with a name, returning its index among the
+		//children with that name.
+		int count(String name) {
+			if (counts == null) counts = new HashMap<String,Integer>();
+			Integer n = counts.get(name);
+			counts.put(name, Integer.valueOf((n == null) ? 1 : n.intValue() + 1));
+			return (n == null) ? 0 : n.intValue();
+		}
+	}
+
+	//The progress of a referenced path through the document. Like the
+	//XmlScript, it follows the first node selected at each step and does
+	//not come back if that node has no match for the next step.
+	static class Reference {
+		Segment[] path;
+		int k = 0;
+		int depth = 0;
+		int count = 0;
+		boolean done = false;
+		Reference(Segment[] path) {
+			this.path = path;
+			done = (path[0].kind == Segment.END) || (path[0].kind == Segment.ATTRIBUTE);
+		}
+		//Visit an element, returning true if it must be in the skeleton.
+		boolean visit(String name, int d) {
+			if (done) return false;
+			Segment segment = path[k];
+			boolean selected = false;
+			boolean needed = false;
+			if (depth == 0) selected = (d == 1) && segment.matchesRoot(name);
+			else if (segment.kind == Segment.DESCENDANT) selected = segment.matches(name, 0);
+			else if ((d == depth + 1) && segment.kind == Segment.WILDCARD) selected = true;
+			else if ((d == depth + 1) && (segment.kind == Segment.CHILD) && segment.name.equals(name)) {
+				int index = count++;
+				if (segment.index == Segment.NONE) done = true;
+				else if (segment.index == Segment.ALL) selected = (index == 0);
+				else {
+					selected = (index == segment.index);
+					needed = (index < segment.index);
+				}
+			}
+			if (!selected) return needed;
+			k++;
+			depth = d;
+			count = 0;
+			if ((path[k].kind == Segment.END) || (path[k].kind == Segment.ATTRIBUTE)) done = true;
+			return true;
+		}
+		//Leave an element; if it was the last node selected, the path has no match.
+		void leave(int d) {
+			if (!done && (d == depth)) done = true;
+		}
+	}
+
+	//The state of the elements selected by the path commands below an element.
+	static class Frame {
+		List<State> active = new LinkedList<State>();
+		List<State> own = new LinkedList<State>();
+		List<Integer> values = new ArrayList<Integer>(1);
+		List<Integer> attributes = new ArrayList<Integer>(1);
+		StringBuilder text = null;
+		boolean removed = false;
+		HashMap<String,Integer> counts = null;
+		HashMap<String,List<Integer>> removals = null;
+		//Get the index that the next child with a name has for a
+		//command: the number of the children before it with that name,
+		//less those removed by earlier commands.
+		int getIndex(String name, int command) {
+			Integer n = (counts != null) ? counts.get(name) : null;
+			int index = (n == null) ? 0 : n.intValue();
+			List<Integer> removed = (removals != null) ? removals.get(name) : null;
+			if (removed != null) {
+				for (Integer r : removed) if (r.intValue() < command) index--;
+			}
+			return index;
+		}
+		//Count a child with a name, and the command that removed it
+		//if it was removed.
+		void addChild(String name, int removedBy) {
+			if (counts == null) counts = new HashMap<String,Integer>();
+			Integer n = counts.get(name);
+			counts.put(name, Integer.valueOf((n == null) ? 1 : n.intValue() + 1));
+			if (removedBy != Integer.MAX_VALUE) {
+				if (removals == null) removals = new HashMap<String,List<Integer>>();
+				List<Integer> removed = removals.get(name);
+				if (removed == null) {
+					removed = new LinkedList<Integer>();
+					removals.put(name, removed);
+				}
+				removed.add(Integer.valueOf(removedBy));
+			}
+		}
+	}
+
+	//A path command at one of the segments of its path.
+	static class State {
+		int command;
+		int segment;
+		boolean matched = false;
+		State(int command, int segment) {
+			this.command = command;
+			this.segment = segment;
+		}
+	}
+
+	//A command of the script: an assignment to a variable, or a path
+	//and the expression applied to the nodes it selects.
+	static class Command {
+		String left;
+		String right;
+		Segment[] path = null;
+		boolean removed;
+		boolean required;
+		boolean hasReferences;
+		boolean touchesReferences;
+	}
+
+	//Parse a script into commands, as the CTP XmlCommandHandler does.
+	//A command starts on a line beginning with $ or /; the lines that
+	//follow it, other than comments, continue it.
+	static Command[] parseScript(String text) throws Exception {
+		List<Command> list = new LinkedList<Command>();
+		BufferedReader br = new BufferedReader(new StringReader(text));
+		String line = br.readLine();
+		while (line != null) {
+			StringBuffer sb = new StringBuffer(line);
+			while (((line = br.readLine()) != null)
+						&& !line.startsWith("$") && !line.startsWith("/") && !line.startsWith("#")) {
+				sb.append(line + "\n");
+			}
+			while ((line != null) && line.startsWith("#")) line = br.readLine();
+			String s = sb.toString();
+			if (!s.startsWith("$") && !s.startsWith("/")) continue;
+			int k = s.indexOf("=");
+			if (k == -1) throw new Exception("no equal sign");
+			Command command = new Command();
+			command.left = s.substring(0, k).trim();
+			command.right = s.substring(k + 1).trim();
+			command.removed = command.right.startsWith("$remove(");
+			command.required = command.right.startsWith("$require(");
+			if (s.startsWith("/")) command.path = parsePath(command.left);
+			list.add(command);
+		}
+		return list.toArray(new Command[list.size()]);
+	}
+
+	//Find the paths referenced in an expression: the tokens that begin
+	//with / outside quoted strings.
+	static List<String> findReferences(String expression) {
+		List<String> paths = new LinkedList<String>();
+		int i = 0;
+		while (i < expression.length()) {
+			char c = expression.charAt(i);
+			if (c == '"') {
+				boolean escaped = false;
+				for (i++; i < expression.length(); i++) {
+					char q = expression.charAt(i);
+					if (escaped) escaped = false;
+					else if (q == '\\') escaped = true;
+					else if (q == '"') break;
+				}
+				i++;
+			}
+			else if (c == '/') {
+				int k = i;
+				while ((k < expression.length()) && !isDelimiter(expression.charAt(k))) k++;
+				paths.add(expression.substring(i, k).trim());
+				i = k;
+			}
+			else i++;
+		}
+		return paths;
+	}
+
+	private static boolean isDelimiter(char c) {
+		return Character.isWhitespace(c) || (c == '(') || (c == ',') || (c == ')');
+	}
+
+	//Parse a path into its segments, as the CTP XmlPathElement walks it.
+	//The last segment is an attribute or the end of the path.
+	static Segment[] parsePath(String path) {
+		List<Segment> list = new LinkedList<Segment>();
+		path = path.replaceAll("\\s", "");
+		while (true) {
+			String segment = path.startsWith("/") ? path.substring(1) : path;
+			int k = segment.indexOf("/", 1);
+			if (k != -1) segment = segment.substring(0, k);
+			Segment s = new Segment(segment);
+			list.add(s);
+			if ((s.kind == Segment.END) || (s.kind == Segment.ATTRIBUTE)) break;
+			String remaining = path.startsWith("//") ? path.substring(2)
+								: path.startsWith("/") ? path.substring(1) : path;
+			k = remaining.indexOf("/");
+			path = (k != -1) ? remaining.substring(k) : "";
+		}
+		return list.toArray(new Segment[list.size()]);
+	}
+
+	//A step of a path.
+	static class Segment {
+		static final int END = 0;
+		static final int ATTRIBUTE = 1;
+		static final int CHILD = 2;
+		static final int WILDCARD = 3;
+		static final int DESCENDANT = 4;
+		static final int ALL = -1;
+		static final int NONE = -2;
+
+		String text;
+		String name;
+		int kind;
+		int index = 0;
+
+		Segment(String text) {
+			this.text = text;
+			String s = text.startsWith("/") ? text.substring(1) : text;
+			int k = s.indexOf("[");
+			name = (k == -1) ? s.replaceAll("\\]", "") : s.substring(0, k);
+			if (text.equals("")) kind = END;
+			else if (text.startsWith("@")) {
+				kind = ATTRIBUTE;
+				name = text.substring(1);
+			}
+			else if (text.equals("*")) kind = WILDCARD;
+			else if (text.startsWith("/")) kind = DESCENDANT;
+			else {
+				kind = CHILD;
+				int end = text.indexOf("]");
+				String qualifier = ((k != -1) && (end > k)) ? text.substring(k + 1, end).trim() : "";
+				if (qualifier.indexOf("*") != -1) index = ALL;
+				else if (!qualifier.equals("")) {
+					try { index = Integer.parseInt(qualifier); }
+					catch (Exception ex) { index = NONE; }
+				}
+			}
+		}
+
+		//Determine whether the root element is selected by this segment.
+		boolean matchesRoot(String rootName) {
+			return ((kind == CHILD) || (kind == WILDCARD) || (kind == DESCENDANT))
+						&& (text.equals("*") || text.equals(rootName));
+		}
+
+		//Determine whether an element is selected by this segment, given
+		//its index among the children of its parent with the same name.
+		boolean matches(String elementName, int elementIndex) {
+			if (kind == WILDCARD) return true;
+			if (kind == DESCENDANT) return name.equals("*") || name.equals(elementName);
+			if (kind != CHILD) return false;
+			if (!name.equals(elementName) || (index == NONE)) return false;
+			return (index == ALL) || (index == elementIndex);
+		}
+	}
+
+}
@@ -0,0 +1,363 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.*;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.xml.XMLAnonymizer;
+import org.rsna.util.FileUtil;
+
+/**
+ * Anonymizes the entries of a ZIP archive into a new archive, without
+ * extracting the archive to disk.
+ * <p>
+ * The entries are read in order from the input archive by one thread and
+ * anonymized in memory by a pool of workers; the anonymized entries are
+ * written to the output archive in the order of the input, no matter the
+ * order in which the workers finish them. The memory held by entries that
+ * have been read but not yet written is limited: the reader waits when
+ * the limit is reached, and an entry too large to be held in memory is
+ * spooled to a temporary file instead. Entries that are not DICOM or XML,
+ * and entries that are skipped or quarantined by the script, are omitted
+ * from the output archive.
+ */
+public class ZipAnonymizer {
+
+	static final Logger logger = Logger.getLogger(ZipAnonymizer.class);
+
+	static final int chunkSize = 65536;
+
+	FileAnonymizer anonymizer;
+	File xmlScript;
+	Properties lkup;
+	int threads;
+	long bufferLimit;
+	FileClassifier classifier = new FileClassifier();
+	XMLStreamAnonymizer xmlAnonymizer = null;
+
+	/**
+	 * Create a ZipAnonymizer.
+	 * @param anonymizer the anonymizer for the DICOM entries.
+	 * @param xmlScript the script for the XML entries.
+	 * @param lkup the lookup table, or null.
+	 * @param threads the number of worker threads.
+	 * @param bufferLimit the maximum number of bytes of entries held in
+	 * memory between being read and being written.
+	 */
+	public ZipAnonymizer(FileAnonymizer anonymizer, File xmlScript, Properties lkup,
+						 int threads, long bufferLimit) {
+		this.anonymizer = anonymizer;
+		this.xmlScript = xmlScript;
+		this.lkup = lkup;
+		this.threads = Math.max(1, threads);
+		this.bufferLimit = Math.max(4 * chunkSize, Math.min(bufferLimit, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Set the classifier that routes the entries. Entries that are
+	 * neither DICOM datasets nor XML are skipped.
+	 * @param classifier the classifier, which counts the entries of each type.
+	 */
+	public void setClassifier(FileClassifier classifier) {
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Set the streaming anonymizer for the XML entries. If it is not set,
+	 * the XML entries are anonymized with the DOM-based XMLAnonymizer.
+	 * @param xmlAnonymizer the streaming anonymizer, or null.
+	 */
+	public void setXMLAnonymizer(XMLStreamAnonymizer xmlAnonymizer) {
+		this.xmlAnonymizer = xmlAnonymizer;
+	}
+
+	/**
+	 * Anonymize the entries of an archive. This method blocks until all
+	 * the entries have been processed and the output archive is complete.
+	 * @param inZip the archive to anonymize.
+	 * @param outZip the archive to create. It may be the same as the input.
+	 * @param listener the listener for the results of the entries, or null.
+	 * The file of each result is the path of the entry under the archive.
+	 * @return the summary of the entries.
+	 * @throws IOException if the input cannot be read or the output cannot
+	 * be written.
+	 */
+	public BatchProcessor.Summary anonymize(File inZip, File outZip, BatchProcessor.Listener listener)
+																	throws IOException {
+		long startTime = System.currentTimeMillis();
+		BatchProcessor.Summary summary = new BatchProcessor.Summary(threads);
+		File dir = outZip.getAbsoluteFile().getParentFile();
+		File tempZip = File.createTempFile("ZIPtemp-", ".zip", dir);
+		ZipInputStream zin = null;
+		ZipOutputStream zout = null;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		EntryWriter writer = null;
+		try {
+			zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(inZip), chunkSize));
+			zout = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tempZip), chunkSize));
+			writer = new EntryWriter(zout, summary, listener);
+			final File tempParent = dir;
+			Semaphore budget = new Semaphore((int)(bufferLimit / chunkSize));
+			int index = 0;
+			ZipEntry ze;
+			while ((ze = zin.getNextEntry()) != null) {
+				final Entry entry = new Entry(index++, ze, new File(inZip, ze.getName()));
+				if (!ze.isDirectory()) read(zin, entry, budget, dir);
+				writer.expect(entry);
+				if (ze.isDirectory()) writer.done(entry);
+				else {
+					final EntryWriter w = writer;
+					pool.execute(new Runnable() {
+						public void run() {
+							process(entry, tempParent);
+							w.done(entry);
+						}
+					});
+				}
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			writer.check();
+			zout.close();
+			zout = null;
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while anonymizing "+inZip);
+		}
+		finally {
+			pool.shutdownNow();
+			FileUtil.close(zin);
+			if (zout != null) {
+				FileUtil.close(zout);
+				tempZip.delete();
+			}
+		}
+		if (outZip.exists() && !outZip.delete()) {
+			tempZip.delete();
+			throw new IOException("Unable to replace "+outZip);
+		}
+		if (!tempZip.renameTo(outZip)) throw new IOException("Unable to rename "+tempZip+" to "+outZip);
+		summary.elapsed = System.currentTimeMillis() - startTime;
+		summary.addStatistic("Archive", writer.written + " entries written to " + outZip
+								+ "; " + writer.spooled.get() + " spooled to temporary files");
+		return summary;
+	}
+
+	//Read the contents of an entry, in memory if it fits in a quarter of
+	//the buffer limit, and otherwise in a temporary file. The permits for
+	//the memory used are held until the entry has been written.
+	private void read(InputStream in, Entry entry, Semaphore budget, File dir)
+											throws IOException, InterruptedException {
+		int maxChunks = (int)(bufferLimit / chunkSize / 4);
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] chunk = new byte[chunkSize];
+		int n;
+		while ((n = readChunk(in, chunk)) > 0) {
+			if (entry.permits == maxChunks) {
+				entry.spool = File.createTempFile("ZIPentry-", ".tmp", dir);
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(entry.spool), chunkSize);
+				try {
+					buffer.writeTo(out);
+					out.write(chunk, 0, n);
+					while ((n = in.read(chunk)) != -1) out.write(chunk, 0, n);
+				}
+				finally { out.close(); }
+				budget.release(entry.permits);
+				entry.permits = 0;
+				return;
+			}
+			budget.acquire();
+			entry.budget = budget;
+			entry.permits++;
+			buffer.write(chunk, 0, n);
+		}
+		entry.data = buffer.toByteArray();
+	}
+
+	private static int readChunk(InputStream in, byte[] chunk) throws IOException {
+		int n = 0;
+		int k;
+		while ((n < chunk.length) && ((k = in.read(chunk, n, chunk.length - n)) != -1)) n += k;
+		return n;
+	}
+
+	//Anonymize one entry. XML entries and entries spooled to temporary
+	//files are anonymized through temporary files; DICOM entries held in
+	//memory are anonymized in memory.
+	private void process(Entry entry, File dir) {
+		File tempDir = null;
+		try {
+			String name = entry.file.getName();
+			int type = (entry.data != null) ? classifier.classify(entry.data) : classifier.classify(entry.spool);
+			if ((type == FileClassifier.DICOMDIR) || (type == FileClassifier.OTHER)) {
+				entry.result = BatchProcessor.Result.skipped(entry.file, FileClassifier.getName(type));
+				return;
+			}
+			LinkedList<String> residuals = new LinkedList<String>();
+			AnonymizerStatus status;
+			if ((entry.data != null) && (type != FileClassifier.XML)) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(entry.data.length + 4096);
+				status = anonymizer.anonymize(new File(entry.zipEntry.getName()), entry.data, out, residuals);
+				entry.data = null;
+				if (status.isOK()) entry.output = out;
+			}
+			else {
+				tempDir = Files.createTempDirectory(dir.toPath(), "ZIPtemp-").toFile();
+				File in = entry.spool;
+				if (in == null) {
+					in = new File(tempDir, "in");
+					Files.write(in.toPath(), entry.data);
+					entry.data = null;
+				}
+				File outFile = new File(tempDir, name);
+				if (type == FileClassifier.XML) {
+					if (xmlAnonymizer != null) status = xmlAnonymizer.anonymize(in, outFile);
+					else status = XMLAnonymizer.anonymize(in, outFile, xmlScript, lkup);
+				}
+				else status = anonymizer.anonymize(in, outFile, residuals);
+				if (status.isOK()) {
+					entry.spooledOutput = status.getFile();
+					String parent = new File(entry.zipEntry.getName()).getParent();
+					String path = tempDir.toPath().relativize(entry.spooledOutput.toPath()).toString();
+					status = AnonymizerStatus.OK(new File(parent, path), status.getMessage());
+				}
+			}
+			if (status.isOK()) {
+				entry.outName = status.getFile().getPath().replace('\\', '/');
+				if (residuals.size() > 0) {
+					StringBuffer sb = new StringBuffer("Residual PHI:");
+					for (String residual : residuals) sb.append("<br>" + RightPanel.escape(residual));
+					entry.result = BatchProcessor.Result.ok(entry.file, sb.toString());
+				}
+				else entry.result = BatchProcessor.Result.ok(entry.file, "");
+			}
+			else if (status.isSKIP()) entry.result = BatchProcessor.Result.skipped(entry.file, status.getMessage());
+			else entry.result = BatchProcessor.Result.failed(entry.file, status.getMessage());
+		}
+		catch (Throwable t) {
+			logger.warn("Unable to process "+entry.file, t);
+			entry.result = BatchProcessor.Result.failed(entry.file, t.toString());
+		}
+		finally {
+			if (entry.spool != null) entry.spool.delete();
+			entry.tempDir = tempDir;
+		}
+	}
+
+	//An entry of the archive, from the time it is read until it is written.
+	static class Entry {
+		final int index;
+		final ZipEntry zipEntry;
+		final File file;
+		byte[] data = null;
+		File spool = null;
+		Semaphore budget = null;
+		int permits = 0;
+		ByteArrayOutputStream output = null;
+		File spooledOutput = null;
+		File tempDir = null;
+		String outName = null;
+		BatchProcessor.Result result = null;
+
+		public Entry(int index, ZipEntry zipEntry, File file) {
+			this.index = index;
+			this.zipEntry = zipEntry;
+			this.file = file;
+		}
+
+		//Free the memory and temporary files of the entry.
+		public void release() {
+			data = null;
+			output = null;
+			if (tempDir != null) FileUtil.deleteAll(tempDir);
+			if (budget != null) budget.release(permits);
+			permits = 0;
+		}
+	}
+
+	//Writes the entries to the output archive in the order in which they
+	//were read, holding those that finish early until all the earlier
+	//ones have been written.
+	class EntryWriter {
+		ZipOutputStream zout;
+		BatchProcessor.Summary summary;
+		BatchProcessor.Listener listener;
+		TreeMap<Integer,Entry> finished = new TreeMap<Integer,Entry>();
+		HashSet<String> names = new HashSet<String>();
+		int expected = 0;
+		int next = 0;
+		int written = 0;
+		AtomicInteger spooled = new AtomicInteger();
+		IOException exception = null;
+
+		public EntryWriter(ZipOutputStream zout, BatchProcessor.Summary summary, BatchProcessor.Listener listener) {
+			this.zout = zout;
+			this.summary = summary;
+			this.listener = listener;
+		}
+
+		public synchronized void expect(Entry entry) {
+			expected++;
+			if (entry.spool != null) spooled.incrementAndGet();
+		}
+
+		public synchronized void done(Entry entry) {
+			finished.put(entry.index, entry);
+			while (!finished.isEmpty() && (finished.firstKey() == next)) {
+				Entry e = finished.remove(next++);
+				try { write(e); }
+				finally { e.release(); }
+				if (e.result != null) {
+					summary.add(e.result);
+					if (listener != null) {
+						try { listener.resultAvailable(e.result); }
+						catch (Exception ex) { logger.warn("Listener failed", ex); }
+					}
+				}
+			}
+		}
+
+		private void write(Entry e) {
+			if (exception != null) return;
+			String name = e.zipEntry.isDirectory() ? e.zipEntry.getName() : e.outName;
+			if ((name == null) || ((e.output == null) && (e.spooledOutput == null) && !e.zipEntry.isDirectory())) return;
+			if (!names.add(name)) {
+				e.result = BatchProcessor.Result.failed(e.file, "Duplicate entry: "+name);
+				return;
+			}
+			try {
+				ZipEntry ze = new ZipEntry(name);
+				if (e.zipEntry.getTime() != -1) ze.setTime(e.zipEntry.getTime());
+				zout.putNextEntry(ze);
+				if (e.output != null) e.output.writeTo(zout);
+				else if (e.spooledOutput != null) Files.copy(e.spooledOutput.toPath(), zout);
+				zout.closeEntry();
+				if (!e.zipEntry.isDirectory()) written++;
+			}
+			catch (IOException ex) {
+				logger.warn("Unable to write "+name, ex);
+				exception = ex;
+			}
+		}
+
+		//Throw the exception that stopped the writing, if any, or an
+		//exception if any entries were not written.
+		public synchronized void check() throws IOException {
+			if (exception != null) throw exception;
+			if (next != expected) throw new IOException((expected - next) + " entries were not written");
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+/*---------------------------------------------------------------
+*  Copyright 2026 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomeditor;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Properties;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.*;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+
+/**
+ * A check that the FileAnonymizer anonymizes an object much larger than
+ * the heap. A multi-frame object is written as a sparse file and it is
+ * anonymized three times:
+ * <ul>
+ * <li>with pixel passthrough and no pixel check, with the pixel data at
+ * the end of the file, which must be transferred between the file channels;
+ * <li>with pixel passthrough and the pixel check, with a private group
+ * after the pixel data, which the script removes, so the pixel data is
+ * streamed through the digest;
+ * <li>likewise without passthrough and with forced implicit VR.
+ * </ul>
+ * Run it with a heap smaller than the file, for example with the
+ * largefiletest target of the Ant build, which runs it with -Xmx64m.
+ * <p>
+ * Each output must pass the pixel check, if there is one, and end with
+ * the pixel data, and the pixel data must have been transferred between
+ * the file channels exactly when passthrough was possible. The check
+ * fails at once if the CTP library does not have the private
+ * DICOMAnonymizer methods on which the script functions depend.
+ * Arguments: the script file, the size of the pixel data in bytes, and
+ * the directory in which to write the files, which are deleted afterwards.
+ * The program exits with status 1 if any anonymization fails.
+ */
+public class LargeFileTest {
+
+	static final int frameSize = 1024 * 1024 * 2;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Usage: LargeFileTest scriptFile pixelDataSize directory");
+			System.exit(2);
+		}
+		//The script functions are private methods of the CTP DICOMAnonymizer.
+		try {
+			ScriptAction.checkFunctions();
+			DatasetAnonymizer.checkMethods();
+		}
+		catch (IllegalStateException ex) {
+			System.out.println(ex.getMessage());
+			System.out.println("Failed");
+			System.exit(1);
+		}
+		File scriptFile = new File(args[0]);
+		long size = Long.parseLong(args[1]);
+		File dir = new File(args[2]);
+		dir.mkdirs();
+		File inFile = new File(dir, "large.dcm");
+		File outFile = new File(dir, "large-no-phi.dcm");
+
+		long frames = Math.max(1, Math.min(size, 0xFFFFFFFEL) / frameSize);
+		long length = frames * frameSize;
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		System.out.println("Pixel data: " + (length >> 20) + " MB; max heap: " + (maxHeap >> 20) + " MB");
+		if (length <= maxHeap) System.out.println("Warning: the pixel data is not larger than the heap");
+
+		boolean ok = true;
+		try {
+			CompiledScript script = new CompiledScript(AnonymizerScript.load(scriptFile));
+			write(inFile, (int)frames, length, false);
+			ok &= run(script, inFile, outFile, length, true, false, false);
+			write(inFile, (int)frames, length, true);
+			ok &= run(script, inFile, outFile, length, true, false, true);
+			ok &= run(script, inFile, outFile, length, false, true, true);
+		}
+		finally {
+			inFile.delete();
+			outFile.delete();
+		}
+		System.out.println(ok ? "Passed" : "Failed");
+		System.exit(ok ? 0 : 1);
+	}
+
+	//Anonymize the file and check the status, the pixel data, the end of the output,
+	//and whether the pixel data was transferred between the file channels, which
+	//is possible only in the passthrough mode, with no check, when the pixel data
+	//is at the end of the input.
+	private static boolean run(CompiledScript script, File inFile, File outFile, long length,
+							   boolean passthrough, boolean forceIVRLE, boolean check) {
+		FileAnonymizer anonymizer = new FileAnonymizer(script, new Properties(), null, forceIVRLE, false);
+		anonymizer.setPixelPassthrough(passthrough);
+		PixelChecker checker = check ? new PixelChecker() : null;
+		anonymizer.setPixelChecker(checker);
+		boolean transfer = passthrough && !check && endsWithPixels(inFile);
+		resetPeaks();
+		long startTime = System.currentTimeMillis();
+		AnonymizerStatus status = anonymizer.anonymize(inFile, outFile);
+		long time = System.currentTimeMillis() - startTime;
+		boolean transferred = (anonymizer.getTransferCount() == 1);
+		boolean ok = status.isOK() && ((checker == null) || checker.toString().endsWith(" 0 altered"))
+						&& (transferred == transfer)
+						&& (outFile.length() > length) && endsWithPixels(outFile);
+		System.out.println((passthrough ? "Passthrough" : "No passthrough")
+							+ (check ? ", pixel check" : "")
+							+ (forceIVRLE ? ", implicit VR: " : ": ")
+							+ status.getStatus() + " " + status.getMessage()
+							+ "; pixels " + (transferred ? "transferred" : "streamed")
+							+ ((checker != null) ? ", " + checker : "")
+							+ "; output " + (outFile.length() >> 20) + " MB"
+							+ "; peak heap " + (getPeak() >> 20) + " MB"
+							+ "; " + time + " ms"
+							+ (ok ? "" : " - FAILED"));
+		outFile.delete();
+		return ok;
+	}
+
+	//Write a multi-frame object in explicit VR little endian whose pixel
+	//data is a hole in the file, followed, if requested, by a private group.
+	private static void write(File file, int frames, long length, boolean private7FE1)
+																	throws Exception {
+		DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+		Dataset ds = oFact.newDataset();
+		ds.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
+		ds.putUI(Tags.SOPClassUID, UIDs.MultiframeGrayscaleWordSecondaryCaptureImageStorage);
+		ds.putUI(Tags.SOPInstanceUID, "1.2.3.4.5.6");
+		ds.putUI(Tags.StudyInstanceUID, "1.2.3.4");
+		ds.putUI(Tags.SeriesInstanceUID, "1.2.3.4.1");
+		ds.putPN(Tags.PatientName, "Doe^John");
+		ds.putLO(Tags.PatientID, "12345");
+		ds.putCS(Tags.Modality, "OT");
+		ds.putIS(Tags.NumberOfFrames, frames);
+		ds.putUS(Tags.SamplesPerPixel, 1);
+		ds.putCS(Tags.PhotometricInterpretation, "MONOCHROME2");
+		ds.putUS(Tags.Rows, 1024);
+		ds.putUS(Tags.Columns, 1024);
+		ds.putUS(Tags.BitsAllocated, 16);
+		ds.putUS(Tags.BitsStored, 16);
+		ds.putUS(Tags.HighBit, 15);
+		ds.putUS(Tags.PixelRepresentation, 0);
+		ds.setFileMetaInfo(oFact.newFileMetaInfo(ds, UIDs.ExplicitVRLittleEndian));
+
+		DcmEncodeParam encoding = DcmEncodeParam.EVR_LE;
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		ds.getFileMetaInfo().write(header);
+		ds.writeDataset(header, encoding);
+		ds.writeHeader(header, encoding, Tags.PixelData, VRs.OW, (int)length);
+		ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+		if (private7FE1) {
+			ds.writeHeader(trailer, encoding, 0x7FE10010, VRs.LO, 4);
+			trailer.write("TEST".getBytes("US-ASCII"));
+			ds.writeHeader(trailer, encoding, 0x7FE11001, VRs.OB, 4);
+			trailer.write(new byte[] { 1, 2, 3, 4 });
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(header.toByteArray());
+			raf.setLength(header.size() + length);
+			raf.seek(header.size() + length);
+			raf.write(trailer.toByteArray());
+		}
+		finally { raf.close(); }
+	}
+
+	//Check that a file ends with the (zero) pixels, so in an output
+	//the private group after the pixel data was removed.
+	private static boolean endsWithPixels(File file) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.seek(file.length() - 4);
+				return raf.readInt() == 0;
+			}
+			finally { raf.close(); }
+		}
+		catch (IOException ex) { return false; }
+	}
+
+	private static void resetPeaks() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+		}
+	}
+
+	private static long getPeak() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+}